@@ -0,0 +1,59 @@
+package hudson.plugins.campfire;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the heap retained by the Campfire accounts of many jobs, with one {@link Campfire} per
+ * job as loading job configurations used to create, and with the instances shared through
+ * {@link Campfire#forAccount}. Every job gets its own copies of the subdomain and token strings,
+ * as it would when read from its config.xml.
+ *
+ * <pre>java -cp target/benchmarks.jar hudson.plugins.campfire.AccountFootprint jobs=10000 accounts=3</pre>
+ */
+public class AccountFootprint {
+    public static void main(String[] args) throws Exception {
+        int jobs = 10000;
+        int accounts = 3;
+        for (String arg : args) {
+            if (arg.startsWith("jobs=")) {
+                jobs = Integer.parseInt(arg.substring("jobs=".length()));
+            } else if (arg.startsWith("accounts=")) {
+                accounts = Integer.parseInt(arg.substring("accounts=".length()));
+            } else {
+                throw new IllegalArgumentException("Expected jobs=n or accounts=n but got " + arg);
+            }
+        }
+
+        for (boolean shared : new boolean[] {false, true}) {
+            long before = usedHeap();
+            List<Room> rooms = new ArrayList<Room>(jobs);
+            for (int i = 0; i < jobs; i++) {
+                String subdomain = new String("account" + (i % accounts));
+                String token = new String("0123456789abcdef0123456789abcdef0123456" + (i % accounts));
+                Campfire campfire = shared ? Campfire.forAccount(subdomain, token, true) : new Campfire(subdomain, token, true);
+                rooms.add(new Room(campfire, "Room " + (i % 20), null));
+            }
+            long retained = usedHeap() - before;
+
+            Map<Campfire, Boolean> distinct = new IdentityHashMap<Campfire, Boolean>();
+            for (Room room : rooms) {
+                distinct.put(room.getCampfire(), Boolean.TRUE);
+            }
+            System.out.println(String.format("%-8s %7d jobs  %7d Campfire instances  %10d bytes retained  %6.1f bytes/job",
+                shared ? "shared" : "per-job", jobs, distinct.size(), retained, (double) retained / jobs));
+            rooms.clear();
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
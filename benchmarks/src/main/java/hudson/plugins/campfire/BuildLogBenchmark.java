@@ -0,0 +1,84 @@
+package hudson.plugins.campfire;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Reading the end of console logs of up to several gigabytes for %LOG_TAIL% and %LOG_GREP%. The
+ * logs are sparse files with real console output, including console notes and ANSI colors, in
+ * their last 8MB, so that they take no time to create; times should not grow with the log size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BuildLogBenchmark {
+    private static final Pattern ERRORS = Pattern.compile("ERROR");
+
+    @Param({"10485760", "1073741824", "4294967296"})
+    public long logSize;
+
+    private File log;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; output.length() < 8 * 1024 * 1024; i++) {
+            output.append("\u001B[8mha:AAAAWB+LCAAAAAAAAP9b85aBtbiIQSmjNKU4P08vOT+vOD8nVc8DzHWtSE4tKMnMz/PLL0ldFfupYyWoAwBtCkBoNQAAAA==\u001B[0m");
+            output.append("[INFO] \u001B[1mCompiling module ").append(i).append("\u001B[0m");
+            if (i % 1000 == 0) {
+                output.append(" \u001B[31mERROR\u001B[0m tests failed");
+            }
+            output.append('\n');
+        }
+        byte[] tail = output.toString().getBytes("UTF-8");
+
+        log = File.createTempFile("campfire-log", ".log");
+        RandomAccessFile file = new RandomAccessFile(log, "rw");
+        try {
+            file.setLength(Math.max(0, logSize - tail.length));
+            file.seek(file.length());
+            file.write(tail);
+        } finally {
+            file.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        log.delete();
+    }
+
+    @Benchmark
+    public String tail() {
+        return BuildLog.tail(log, BuildLog.DEFAULT_LINES);
+    }
+
+    @Benchmark
+    public String tail100() {
+        return BuildLog.tail(log, BuildLog.MAX_LINES);
+    }
+
+    @Benchmark
+    public String grep() {
+        return BuildLog.grep(log, ERRORS, BuildLog.DEFAULT_LINES);
+    }
+}
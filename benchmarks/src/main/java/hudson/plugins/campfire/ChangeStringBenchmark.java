@@ -0,0 +1,64 @@
+package hudson.plugins.campfire;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Result;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computing the %CHANGES% summary over change sets of increasing size. The git change set goes
+ * through the changelog.xml workaround, with the most recent commit last in iteration order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ChangeStringBenchmark {
+    @Param({"1", "100", "1000", "5000", "10000"})
+    public int commits;
+
+    @Param({"plain", "git"})
+    public String scm;
+
+    private File rootDir;
+    private AbstractBuild<?, ?> build;
+
+    @Setup
+    public void setUp() throws IOException {
+        rootDir = Files.createTempDirectory("campfire-bench").toFile();
+        if ("git".equals(scm)) {
+            build = Fixtures.build(Result.SUCCESS, Fixtures.gitChangeSet(commits, rootDir), rootDir);
+        } else {
+            build = Fixtures.build(Result.SUCCESS, Fixtures.plainChangeSet(commits), rootDir);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        new File(rootDir, "changelog.xml").delete();
+        rootDir.delete();
+    }
+
+    @Benchmark
+    public String computeChangeString() {
+        return CampfireNotifier.computeChangeString(build);
+    }
+}
@@ -0,0 +1,152 @@
+package hudson.plugins.campfire;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import hudson.model.User;
+import hudson.scm.ChangeLogSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Synthetic builds and change sets for the benchmarks. Builds can't be created
+ * outside a running Jenkins, so they are mocks; absolute timings therefore include a little mock
+ * dispatch and are only meaningful when compared against another run of the same benchmark. The mocks
+ * are stub-only, so they don't keep every call for verification and can be used for long runs.
+ */
+public class Fixtures {
+    public static final String TEMPLATE = "%PROJECT_FULL_DISPLAY_NAME% %BUILD_DISPLAY_NAME%: %SMART_RESULT% (%CHANGES%) %BUILD_URL%";
+
+    /**
+     * A build of the job "folder/project", with the given change set recorded in rootDir.
+     */
+    public static AbstractBuild<?, ?> build(Result result, ChangeLogSet<?> changeSet, File rootDir) {
+        AbstractProject<?, ?> project = mock(AbstractProject.class, withSettings().stubOnly());
+        when(project.getName()).thenReturn("project");
+        when(project.getDisplayName()).thenReturn("Project");
+        when(project.getFullName()).thenReturn("folder/project");
+        when(project.getFullDisplayName()).thenReturn("Folder \u00bb Project");
+
+        AbstractBuild<?, ?> build = mock(AbstractBuild.class, withSettings().stubOnly());
+        doReturn(project).when(build).getProject();
+        doReturn(project).when(build).getParent();
+        when(build.getDisplayName()).thenReturn("#42");
+        when(build.getFullDisplayName()).thenReturn("Folder \u00bb Project #42");
+        when(build.getUrl()).thenReturn("job/folder/job/project/42/");
+        when(build.getResult()).thenReturn(result);
+        when(build.hasChangeSetComputed()).thenReturn(changeSet != null);
+        doReturn(changeSet).when(build).getChangeSet();
+        when(build.getRootDir()).thenReturn(rootDir);
+        return build;
+    }
+
+    /**
+     * A change set of the given number of commits, most recent first.
+     */
+    public static PlainChangeSetList plainChangeSet(int commits) {
+        return new PlainChangeSetList(entries(commits));
+    }
+
+    /**
+     * A change set shaped like the git plugin's, which lists commits oldest first, together with
+     * the changelog.xml it would have been parsed from written to rootDir.
+     */
+    public static GitChangeSetList gitChangeSet(int commits, File rootDir) throws IOException {
+        List<CommitEntry> entries = entries(commits);
+        Writer out = new OutputStreamWriter(new FileOutputStream(new File(rootDir, "changelog.xml")), StandardCharsets.UTF_8);
+        try {
+            for (CommitEntry entry : entries) {
+                out.write("commit " + entry.getId() + "\n");
+                out.write("tree 4b825dc642cb6eb9a060e54bf8d69288fbee4904\n");
+                out.write("author " + entry.getAuthor() + " <dev@example.com> 1318000000 +0200\n");
+                out.write("committer " + entry.getAuthor() + " <dev@example.com> 1318000000 +0200\n\n");
+                out.write("    " + entry.getMsg() + "\n\n");
+                out.write(":100644 100644 0000000... 1111111... M\tsrc/main/java/Example" + entry.getId().substring(0, 6) + ".java\n\n");
+            }
+        } finally {
+            out.close();
+        }
+        Collections.reverse(entries);
+        return new GitChangeSetList(entries);
+    }
+
+    private static List<CommitEntry> entries(int commits) {
+        User author = mock(User.class, withSettings().stubOnly());
+        when(author.toString()).thenReturn("Jane Developer");
+        List<CommitEntry> entries = new ArrayList<CommitEntry>(commits);
+        for (int i = 0; i < commits; i++) {
+            entries.add(new CommitEntry(String.format("%040x", 0xc0ffee00L + i),
+                "Commit " + i + ": fix the frobnicator so that it no longer drops widgets on the floor", author));
+        }
+        return entries;
+    }
+
+    public static class PlainChangeSetList extends ChangeLogSet<CommitEntry> {
+        private final List<CommitEntry> entries;
+
+        PlainChangeSetList(List<CommitEntry> entries) {
+            super(null);
+            this.entries = entries;
+        }
+
+        public boolean isEmptySet() {
+            return entries.isEmpty();
+        }
+
+        public Iterator<CommitEntry> iterator() {
+            return entries.iterator();
+        }
+    }
+
+    /**
+     * Named after the git plugin's change set, since the notifier special-cases it by class name.
+     */
+    public static class GitChangeSetList extends PlainChangeSetList {
+        GitChangeSetList(List<CommitEntry> entries) {
+            super(entries);
+        }
+    }
+
+    public static class CommitEntry extends ChangeLogSet.Entry {
+        private final String id;
+        private final String msg;
+        private final User author;
+
+        CommitEntry(String id, String msg, User author) {
+            this.id = id;
+            this.msg = msg;
+            this.author = author;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getMsg() {
+            return msg;
+        }
+
+        public User getAuthor() {
+            return author;
+        }
+
+        public Collection<String> getAffectedPaths() {
+            return Collections.singletonList("src/main/java/Example.java");
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package hudson.plugins.campfire;
+
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Result;
+import hudson.model.StreamBuildListener;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives simulated build completions through {@link CampfireNotifier#perform} from several threads,
+ * once per transport, and reports throughput and latency percentiles. Transports:
+ * <ul>
+ * <li>recording: {@link RecordingTransport}, in process, which measures the plugin's own overhead</li>
+ * <li>commons: {@link CommonsHttpTransport} against a {@link StubCampfireServer} on the loopback interface</li>
+ * <li>nio: {@link NioTransport} against the same stub server</li>
+ * </ul>
+ *
+ * <pre>java -cp target/benchmarks.jar hudson.plugins.campfire.LoadHarness builds=10000 threads=16 transports=recording,commons,nio</pre>
+ *
+ * Other options are jobs (distinct jobs the builds are spread over), rooms (rooms in the account),
+ * latency (simulated milliseconds per request for the recording transport), inFlight (requests in
+ * flight per host for the nio transport) and out (JSON results file).
+ */
+public class LoadHarness {
+    private final int builds;
+    private final int threads;
+    private final int jobs;
+    private final int rooms;
+    private final long latency;
+    private final int inFlight;
+
+    LoadHarness(Map<String, String> options) {
+        builds = Integer.parseInt(option(options, "builds", "5000"));
+        threads = Integer.parseInt(option(options, "threads", "8"));
+        jobs = Integer.parseInt(option(options, "jobs", "50"));
+        rooms = Integer.parseInt(option(options, "rooms", "20"));
+        latency = Long.parseLong(option(options, "latency", "0"));
+        inFlight = Integer.parseInt(option(options, "inFlight", String.valueOf(NioTransport.DEFAULT_MAX_IN_FLIGHT_PER_HOST)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value but got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        // the harness measures the plugin and the transport, not the account's rate limit
+        System.setProperty(RateLimiter.class.getName() + ".permitsPerSecond", "1000000000");
+        System.setProperty(RateLimiter.class.getName() + ".burst", "1000000000");
+
+        LoadHarness harness = new LoadHarness(options);
+        JSONArray results = new JSONArray();
+        for (String transport : option(options, "transports", "recording,commons,nio").split(",")) {
+            JSONObject result = harness.run(transport.trim());
+            System.out.println(String.format("%-10s %8d builds in %6.2fs  %9.1f builds/s  p50 %7.2fms  p99 %7.2fms  p99.9 %7.2fms  max %7.2fms",
+                transport.trim(), result.getLong("builds"), result.getDouble("seconds"), result.getDouble("throughput"),
+                result.getDouble("p50"), result.getDouble("p99"), result.getDouble("p999"), result.getDouble("max")));
+            results.add(result);
+        }
+
+        File out = new File(option(options, "out", "target/load-harness.json"));
+        if (out.getParentFile() != null) {
+            out.getParentFile().mkdirs();
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8);
+        try {
+            writer.write(results.toString(2));
+        } finally {
+            writer.close();
+        }
+        System.out.println("Results written to " + out);
+        System.exit(0);
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    JSONObject run(String transportName) throws Exception {
+        StubCampfireServer server = null;
+        RecordingTransport recording = null;
+        NioTransport nio = null;
+        if ("recording".equals(transportName)) {
+            recording = new RecordingTransport(rooms, latency, 100);
+            Campfire.configure("http://recording.invalid/{subdomain}", recording);
+        } else if ("commons".equals(transportName)) {
+            server = new StubCampfireServer(rooms, Math.max(8, threads));
+            Campfire.configure(server.getUrl() + "/{subdomain}", new CommonsHttpTransport());
+        } else if ("nio".equals(transportName)) {
+            server = new StubCampfireServer(rooms, Math.max(8, threads));
+            nio = new NioTransport(inFlight);
+            Campfire.configure(server.getUrl() + "/{subdomain}", nio);
+        } else {
+            throw new IllegalArgumentException("Unknown transport " + transportName);
+        }
+
+        try {
+            final List<CampfireNotifier> notifiers = new ArrayList<CampfireNotifier>();
+            final List<AbstractBuild<?, ?>> completed = new ArrayList<AbstractBuild<?, ?>>();
+            Result[] results = {Result.SUCCESS, Result.FAILURE, Result.UNSTABLE};
+            for (int i = 0; i < jobs; i++) {
+                // a subdomain per transport, so that room caches and pools from earlier runs aren't reused
+                notifiers.add(new CampfireNotifier(transportName, "token", "Room " + (1 + i % rooms), null,
+                    "http://jenkins.example.com/", Fixtures.TEMPLATE, false, false, false));
+                completed.add(Fixtures.build(results[i % results.length], Fixtures.plainChangeSet(3), null));
+            }
+            final BuildListener listener = new StreamBuildListener(new OutputStream() {
+                public void write(int b) {
+                }
+            }, Charset.defaultCharset());
+
+            // warm up, and resolve every room, before measuring
+            for (int i = 0; i < jobs; i++) {
+                notifiers.get(i).perform(completed.get(i), null, listener);
+            }
+
+            final LatencyHistogram latencies = new LatencyHistogram();
+            final AtomicInteger next = new AtomicInteger();
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+            for (int t = 0; t < threads; t++) {
+                workers.add(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        int n;
+                        while ((n = next.getAndIncrement()) < builds) {
+                            int job = n % jobs;
+                            long start = System.nanoTime();
+                            notifiers.get(job).perform(completed.get(job), null, listener);
+                            latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                        }
+                        return null;
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            for (Future<Void> future : pool.invokeAll(workers)) {
+                future.get();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            pool.shutdown();
+
+            long sent = recording != null ? recording.getPosts() : server.getPosts();
+            return new JSONObject()
+                .element("transport", transportName)
+                .element("builds", builds)
+                .element("threads", threads)
+                .element("messagesSent", sent)
+                .element("seconds", seconds)
+                .element("throughput", builds / seconds)
+                .element("p50", latencies.getPercentile(50) / 1000.0)
+                .element("p99", latencies.getPercentile(99) / 1000.0)
+                .element("p999", latencies.getPercentile(99.9) / 1000.0)
+                .element("max", latencies.getMax() / 1000.0);
+        } finally {
+            if (nio != null) {
+                nio.shutdown();
+            }
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+}
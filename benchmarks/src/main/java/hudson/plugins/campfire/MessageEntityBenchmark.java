@@ -0,0 +1,78 @@
+package hudson.plugins.campfire;
+
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a message body to the request stream with {@link MessageEntity}, against building the
+ * XML as a string and sending it through a {@link StringRequestEntity}. Run with {@code -prof gc}
+ * to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MessageEntityBenchmark {
+    @Param({"80", "4000"})
+    public int length;
+
+    private String body;
+    private CountingOutputStream sink;
+
+    @Setup
+    public void setUp() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append("Build #42 of Folder \u00bb Project: SUCCESS (fix <widget> & gadget) ");
+        }
+        body = text.substring(0, length);
+        sink = new CountingOutputStream();
+    }
+
+    @Benchmark
+    public long messageEntity() throws IOException {
+        MessageEntity entity = new MessageEntity("TextMessage", body);
+        entity.writeRequest(sink);
+        return sink.count;
+    }
+
+    @Benchmark
+    public long stringEntity() throws IOException {
+        String escaped = body.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+        StringRequestEntity entity = new StringRequestEntity("<message><type>TextMessage</type><body>" + escaped + "</body></message>",
+            "application/xml", "UTF8");
+        entity.writeRequest(sink);
+        return sink.count;
+    }
+
+    /**
+     * Discards what is written, keeping a running count so that the writes can't be optimized away.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        public void write(int b) {
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package hudson.plugins.campfire;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a room's live stream, 1000 messages with keep-alives between them, fed to the parser in
+ * segments the size a socket read would return. Run with {@code -prof gc} to see the allocation
+ * per message, which should be little more than the message bodies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MessageStreamParserBenchmark {
+    @Param({"1460", "16384"})
+    public int segmentSize;
+
+    private byte[] stream;
+    private MessageStreamParser parser;
+    private int bodyLength;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder messages = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            messages.append("{\"room_id\":1,\"created_at\":\"2011/09/01 10:00:00 +0000\",\"body\":\"")
+                .append(i % 3 == 0 ? "status job-" + i : "Deployed \\\"build " + i + "\\\" to staging \\u2713")
+                .append("\",\"id\":").append(1000000 + i).append(",\"user_id\":").append(i % 7)
+                .append(",\"type\":\"TextMessage\",\"starred\":false}\r\n");
+            if (i % 5 == 0) {
+                messages.append(' ');
+            }
+        }
+        stream = messages.toString().getBytes("UTF-8");
+        parser = new MessageStreamParser(new MessageStreamParser.Handler() {
+            public void message(long userId, String type, String body) {
+                bodyLength += body.length();
+            }
+        });
+    }
+
+    @Benchmark
+    public int parse() {
+        for (int offset = 0; offset < stream.length; offset += segmentSize) {
+            parser.feed(stream, offset, Math.min(segmentSize, stream.length - offset));
+        }
+        return bodyLength;
+    }
+}
@@ -0,0 +1,48 @@
+package hudson.plugins.campfire;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Result;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiling and rendering the notification template. Each render uses a fresh context, as a
+ * notification does, so every variable the template references is evaluated.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class NotificationTemplateBenchmark {
+    private NotificationTemplate template;
+    private AbstractBuild<?, ?> build;
+
+    @Setup
+    public void setUp() {
+        template = NotificationTemplate.compile(Fixtures.TEMPLATE);
+        build = Fixtures.build(Result.SUCCESS, Fixtures.plainChangeSet(3), null);
+    }
+
+    @Benchmark
+    public NotificationTemplate compile() {
+        return NotificationTemplate.compile(Fixtures.TEMPLATE);
+    }
+
+    @Benchmark
+    public String render() {
+        return template.render(new NotificationTemplate.Context(build, "http://jenkins.example.com/", true));
+    }
+}
@@ -0,0 +1,69 @@
+package hudson.plugins.campfire;
+
+import hudson.model.Items;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the notifiers of many job configurations, as Jenkins does on startup and when reloading
+ * its configuration, with the XStream instance it reads jobs with. Campfire is a
+ * {@link RecordingTransport} that counts requests; loading must not make any, so the benchmark fails
+ * if it did.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class NotifierLoadBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int jobs;
+
+    private RecordingTransport transport;
+    private List<String> configs;
+
+    @Setup
+    public void setUp() {
+        transport = new RecordingTransport(10, 0, 0);
+        Campfire.configure("http://campfire.example.com/{subdomain}", transport);
+        configs = new ArrayList<String>(jobs);
+        for (int i = 0; i < jobs; i++) {
+            CampfireNotifier notifier = new CampfireNotifier("account-" + (i % 5), "token", "Room " + (1 + i % 10),
+                "Room " + (1 + (i + 1) % 10), null, Fixtures.TEMPLATE, false, false, false);
+            configs.add(Items.XSTREAM.toXML(notifier));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        long requests = transport.getGets() + transport.getPosts();
+        if (requests > 0) {
+            throw new IllegalStateException("Loading " + jobs + " notifiers made " + requests + " requests to Campfire");
+        }
+    }
+
+    @Benchmark
+    public List<Object> load() {
+        List<Object> notifiers = new ArrayList<Object>(jobs);
+        for (String config : configs) {
+            notifiers.add(Items.XSTREAM.fromXML(config));
+        }
+        return notifiers;
+    }
+}
@@ -0,0 +1,74 @@
+package hudson.plugins.campfire;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Journaling a message in the durable outbox and acknowledging it, as happens for every message
+ * while the outbox is enabled, in a journal in a temporary directory. The journal is synced in the
+ * background as configured, so this is what sending threads pay for journaling, segment rolling
+ * and compaction included, rather than the disk's sync latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class OutboxBenchmark {
+    @Param({"200", "20000"})
+    public int bodySize;
+
+    private File directory;
+    private Outbox outbox;
+    private Room room;
+    private String body;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("campfire-outbox").toFile();
+        outbox = new Outbox(directory);
+        room = new Room(new Campfire("bench", "token", false), "Room 1", "1");
+        StringBuilder message = new StringBuilder(bodySize);
+        while (message.length() < bodySize) {
+            message.append("Folder \u00bb Project #42: SUCCESS ");
+        }
+        body = message.substring(0, bodySize);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        outbox.close();
+        for (File segment : directory.listFiles()) {
+            segment.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public void appendAndAcknowledge() throws IOException {
+        outbox.acknowledge(outbox.append(room, "TextMessage", body));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void appendAndAcknowledgeConcurrently() throws IOException {
+        outbox.acknowledge(outbox.append(room, "TextMessage", body));
+    }
+}
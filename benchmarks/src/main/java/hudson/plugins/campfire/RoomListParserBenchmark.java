@@ -0,0 +1,89 @@
+package hudson.plugins.campfire;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFactory;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing Campfire's room listing, as done by {@link Campfire#getRooms()} once the response arrives,
+ * against the DOM and XPath parsing it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RoomListParserBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    public int rooms;
+
+    private Campfire campfire;
+    private byte[] xml;
+
+    @Setup
+    public void setUp() {
+        campfire = new Campfire("bench", "token", false);
+        xml = StubCampfireServer.roomsXml(rooms);
+    }
+
+    @Benchmark
+    public List<Room> parse() throws XMLStreamException {
+        return RoomListParser.parse(campfire, new ByteArrayInputStream(xml));
+    }
+
+    /**
+     * The previous implementation: the whole body as a String, a fresh DOM and freshly compiled
+     * XPath expressions for every listing.
+     */
+    @Benchmark
+    public List<Room> domBaseline() throws Exception {
+        String body = new String(xml, StandardCharsets.UTF_8);
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        Document doc = builder.parse(new InputSource(new StringReader(body)));
+
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        XPathExpression roomExpr = xpath.compile("//room");
+        XPathExpression nameExpr = xpath.compile(".//name");
+        XPathExpression idExpr = xpath.compile(".//id");
+
+        NodeList roomNodeList = (NodeList) roomExpr.evaluate(doc, XPathConstants.NODESET);
+        List<Room> result = new ArrayList<Room>();
+        for (int i = 0; i < roomNodeList.getLength(); i++) {
+            Node roomNode = roomNodeList.item(i);
+            String name = ((NodeList) nameExpr.evaluate(roomNode, XPathConstants.NODESET)).item(0).getFirstChild().getNodeValue();
+            String id = ((NodeList) idExpr.evaluate(roomNode, XPathConstants.NODESET)).item(0).getFirstChild().getNodeValue();
+            result.add(new Room(campfire, name.trim(), id.trim()));
+        }
+        return result;
+    }
+}
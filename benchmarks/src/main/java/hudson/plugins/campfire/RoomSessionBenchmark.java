@@ -0,0 +1,65 @@
+package hudson.plugins.campfire;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of each message to one busy room over the non-blocking transport, against an embedded
+ * server that accepts every message, with the room's messages pipelined on one connection kept for
+ * the room or sent over the host's pooled connections.
+ *
+ * <p>The rate limit is lifted so that the stub, not the limiter, sets the pace.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {
+    "-Dhudson.plugins.campfire.RateLimiter.permitsPerSecond=1000000000",
+    "-Dhudson.plugins.campfire.RateLimiter.burst=1000000000"})
+public class RoomSessionBenchmark {
+    private static final String MESSAGE = "Folder \u00bb Project #42: SUCCESS (Commit 1: fix the frobnicator - Jane Developer) "
+        + "http://jenkins.example.com/job/folder/job/project/42/";
+
+    @Param({"false", "true"})
+    public boolean session;
+
+    private StubCampfireServer server;
+    private NioTransport nio;
+    private Campfire campfire;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new StubCampfireServer(1, 8);
+        nio = new NioTransport(NioTransport.DEFAULT_MAX_IN_FLIGHT_PER_HOST);
+        Campfire.configure(server.getUrl(), nio);
+        campfire = new Campfire("bench", "token", false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        nio.shutdown();
+        server.stop();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int speak() throws Exception {
+        return campfire.postAsync("room/1/speak.xml", new MessageEntity("TextMessage", MESSAGE), session ? "room/1" : null).get();
+    }
+}
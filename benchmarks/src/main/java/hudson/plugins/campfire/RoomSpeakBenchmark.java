@@ -0,0 +1,63 @@
+package hudson.plugins.campfire;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending a message to a room over HTTP, against an embedded server that accepts every message.
+ * This measures the client side: pooled connections, rate limiter and circuit breaker bookkeeping,
+ * body encoding and response handling.
+ *
+ * <p>The rate limit is lifted so that the stub, not the limiter, sets the pace.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {
+    "-Dhudson.plugins.campfire.RateLimiter.permitsPerSecond=1000000000",
+    "-Dhudson.plugins.campfire.RateLimiter.burst=1000000000"})
+public class RoomSpeakBenchmark {
+    private static final String MESSAGE = "Folder \u00bb Project #42: SUCCESS (Commit 1: fix the frobnicator - Jane Developer) "
+        + "http://jenkins.example.com/job/folder/job/project/42/";
+
+    private StubCampfireServer server;
+    private Room room;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new StubCampfireServer(1, 8);
+        Campfire.configure(server.getUrl(), new CommonsHttpTransport());
+        room = new Room(new Campfire("bench", "token", false), "Room 1", "1");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public void speak() throws IOException {
+        room.speak(MESSAGE);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void speakConcurrently() throws IOException {
+        room.speak(MESSAGE);
+    }
+}
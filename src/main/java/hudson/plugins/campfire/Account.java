@@ -0,0 +1,33 @@
+package hudson.plugins.campfire;
+
+/**
+ * A further Campfire account defined in the global configuration, which jobs refer to by name when
+ * they notify rooms on it, so that its token is only kept in the global configuration.
+ */
+public class Account {
+    private final String name;
+    private final String subdomain;
+    private final String token;
+
+    public Account(String name, String subdomain, String token) {
+        this.name = name;
+        this.subdomain = subdomain;
+        this.token = token;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSubdomain() {
+        return subdomain;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public Campfire getCampfire(boolean ssl) {
+        return Campfire.forAccount(subdomain, token, ssl);
+    }
+}
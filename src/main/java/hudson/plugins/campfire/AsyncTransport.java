@@ -0,0 +1,25 @@
+package hudson.plugins.campfire;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * A {@link Transport} that can send a request without tying up the calling thread. {@link Campfire}
+ * uses {@link #submit} for asynchronous posts, and {@link #execute} still works for blocking callers.
+ */
+public interface AsyncTransport extends Transport {
+    /**
+     * Starts one request. The response body has been read completely by the time the future
+     * completes, so it can be consumed without blocking.
+     *
+     * @see Transport#execute
+     */
+    CampfireFuture<Response> submit(Campfire campfire, String method, String url, RequestEntity body);
+
+    /**
+     * Starts one request in a session: requests with the same session key are sent in order over
+     * one connection kept for them, without waiting for the previous response.
+     *
+     * @param session the session key, or null to send the request like {@link #submit(Campfire, String, String, RequestEntity)}
+     */
+    CampfireFuture<Response> submit(Campfire campfire, String method, String url, RequestEntity body, String session);
+}
@@ -0,0 +1,183 @@
+package hudson.plugins.campfire;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts lines from the end of a build's console log for notifications. The log is read
+ * backwards from its end with positional reads, so the cost depends on how much is asked for and
+ * not on the size of the log, and never more than {@link #MAX_SCAN_BYTES} are read. Console notes
+ * and ANSI escape sequences are stripped from the lines returned.
+ */
+public class BuildLog {
+    public static final int DEFAULT_LINES = Integer.getInteger(BuildLog.class.getName() + ".lines", 10);
+    public static final int MAX_LINES = 100;
+
+    private static final int MAX_SCAN_BYTES = Integer.getInteger(BuildLog.class.getName() + ".maxScanBytes", 1024 * 1024);
+    private static final int MAX_LENGTH = Integer.getInteger(BuildLog.class.getName() + ".maxLength", 4000);
+    private static final int BLOCK_SIZE = 8192;
+    private static final Logger LOGGER = Logger.getLogger(BuildLog.class.getName());
+
+    // hudson.console.ConsoleNote's serialized form, ESC[8mha:<base64>ESC[0m
+    private static final Pattern CONSOLE_NOTE = Pattern.compile("\u001B\\[8mha:[^\u001B]*\u001B\\[0m");
+    private static final Pattern ANSI_ESCAPE = Pattern.compile("\u001B\\[[0-?]*[ -/]*[@-~]");
+
+    private BuildLog() {
+    }
+
+    /**
+     * Returns the last lines of the log.
+     *
+     * @return the lines, separated by newlines, or an empty string if the log can't be read
+     */
+    public static String tail(File log, int lines) {
+        return scan(log, null, lines);
+    }
+
+    /**
+     * Returns the last lines of the log that contain a match for the pattern, looking no further
+     * back than {@link #MAX_SCAN_BYTES} from the end of the log.
+     *
+     * @return the matching lines, separated by newlines, or an empty string if there are none
+     */
+    public static String grep(File log, Pattern pattern, int lines) {
+        return scan(log, pattern, lines);
+    }
+
+    private static String scan(File log, Pattern pattern, int lines) {
+        // compressed logs can't be read from the end
+        if (log == null || !log.isFile() || log.getName().endsWith(".gz")) {
+            return "";
+        }
+        LinkedList<String> collected = new LinkedList<String>();
+        try {
+            RandomAccessFile file = new RandomAccessFile(log, "r");
+            try {
+                ReverseLineReader reader = new ReverseLineReader(file.getChannel(), MAX_SCAN_BYTES);
+                int length = 0;
+                String line;
+                while (collected.size() < lines && (line = reader.previous()) != null) {
+                    if (pattern != null && !pattern.matcher(line).find()) {
+                        continue;
+                    }
+                    if (length + line.length() > MAX_LENGTH) {
+                        if (collected.isEmpty()) {
+                            collected.add("..." + line.substring(line.length() - (MAX_LENGTH - 3)));
+                        }
+                        break;
+                    }
+                    collected.addFirst(line);
+                    length += line.length() + 1;
+                }
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read build log " + log, e);
+            return "";
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (String line : collected) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(line);
+        }
+        return text.toString();
+    }
+
+    static String strip(String line) {
+        if (line.indexOf('\u001B') < 0) {
+            return line;
+        }
+        return ANSI_ESCAPE.matcher(CONSOLE_NOTE.matcher(line).replaceAll("")).replaceAll("");
+    }
+
+    /**
+     * Reads the lines of a file from last to first, a block at a time.
+     */
+    static class ReverseLineReader {
+        private final FileChannel channel;
+        private final long stop;
+        // bytes before this offset haven't been read yet
+        private long position;
+        // read but not yet returned: buffer[start, end) is the file from position onwards
+        private byte[] buffer = new byte[BLOCK_SIZE * 2];
+        private int start;
+        private int end;
+        private boolean exhausted;
+
+        ReverseLineReader(FileChannel channel, long maxScanBytes) throws IOException {
+            this.channel = channel;
+            this.position = channel.size();
+            this.stop = Math.max(0, position - maxScanBytes);
+            // a trailing newline ends the last line rather than starting an empty one
+            if (position > stop) {
+                ByteBuffer last = ByteBuffer.allocate(1);
+                if (channel.read(last, position - 1) == 1 && last.get(0) == '\n') {
+                    position--;
+                }
+            }
+        }
+
+        /**
+         * @return the line before the one returned last, or null once the start of the file or the
+         *     scan limit has been reached
+         */
+        String previous() throws IOException {
+            while (true) {
+                for (int i = end - 1; i >= start; i--) {
+                    if (buffer[i] == '\n') {
+                        String line = decode(i + 1, end);
+                        end = i;
+                        return line;
+                    }
+                }
+                if (position <= stop) {
+                    if (exhausted || stop > 0) {
+                        // the line the scan limit falls in is incomplete, so leave it out
+                        return null;
+                    }
+                    exhausted = true;
+                    String line = decode(start, end);
+                    end = start;
+                    return line;
+                }
+                read();
+            }
+        }
+
+        private void read() throws IOException {
+            int count = (int) Math.min(BLOCK_SIZE, position - stop);
+            int pending = end - start;
+            byte[] target = pending + count <= buffer.length ? buffer : new byte[(pending + count) * 2];
+            System.arraycopy(buffer, start, target, count, pending);
+            buffer = target;
+            start = 0;
+            end = count + pending;
+            position -= count;
+
+            ByteBuffer block = ByteBuffer.wrap(buffer, 0, count);
+            while (block.hasRemaining()) {
+                if (channel.read(block, position + block.position()) < 0) {
+                    throw new IOException("Build log was truncated while being read");
+                }
+            }
+        }
+
+        private String decode(int from, int to) throws IOException {
+            if (to > from && buffer[to - 1] == '\r') {
+                to--;
+            }
+            return strip(new String(buffer, from, to - from, "UTF-8"));
+        }
+    }
+}
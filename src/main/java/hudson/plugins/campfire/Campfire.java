@@ -1,31 +1,61 @@
 package hudson.plugins.campfire;
 
-import org.apache.commons.httpclient.Credentials;
 import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.UsernamePasswordCredentials;
-import org.apache.commons.httpclient.auth.AuthScope;
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
 import org.apache.commons.httpclient.methods.StringRequestEntity;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.*;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.List;
-
-import hudson.model.Hudson;
-import hudson.ProxyConfiguration;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Campfire {
+    private static final long POST_TIME_BUDGET = Long.getLong(Campfire.class.getName() + ".postTimeBudget", 60000L);
+    private static final long INITIAL_BACKOFF = 500;
+    private static final long MAX_BACKOFF = 30000;
+    private static final int MAX_CONCURRENT_UPLOADS = Integer.getInteger(Campfire.class.getName() + ".maxConcurrentUploads", 2);
+    private static final long UPLOAD_WAIT = Long.getLong(Campfire.class.getName() + ".uploadWait", 600000L);
+    private static final String STREAMING_URL = "https://streaming.campfirenow.com";
+    private static final Pattern USER_ID = Pattern.compile("<id[^>]*>\\s*(\\d+)\\s*</id>");
+    private static final Random RANDOM = new Random();
+    private static final Logger LOGGER = Logger.getLogger(Campfire.class.getName());
+
+    // waits out rate limits and backoff for asynchronous posts, and handles their responses
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Campfire async requests");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // one instance per account, for as long as some notifier is using it
+    private static final ConcurrentMap<String, AccountReference> ACCOUNTS = new ConcurrentHashMap<String, AccountReference>();
+    private static final ReferenceQueue<Campfire> COLLECTED = new ReferenceQueue<Campfire>();
+    private static final ConcurrentMap<String, Semaphore> UPLOADS = new ConcurrentHashMap<String, Semaphore>();
+
+    private static volatile String baseUrl;
+    private static volatile Transport transport = new CommonsHttpTransport();
+
     private String subdomain;
     private String token;
     private boolean ssl;
@@ -37,23 +67,136 @@ public class Campfire {
         this.ssl = ssl;
     }
 
+    /**
+     * Returns the shared instance for the given account, so that jobs notifying the same account
+     * don't each hold their own copy of it. Instances are only weakly held here, and are dropped once
+     * no notifier refers to them any more.
+     */
+    public static Campfire forAccount(String subdomain, String token, boolean ssl) {
+        expungeCollected();
+        String key = subdomain + "|" + token + "|" + ssl;
+        while (true) {
+            AccountReference reference = ACCOUNTS.get(key);
+            Campfire campfire = reference == null ? null : reference.get();
+            if (campfire != null) {
+                return campfire;
+            }
+            Campfire created = new Campfire(subdomain, token, ssl);
+            AccountReference createdReference = new AccountReference(key, created);
+            if (reference == null ? ACCOUNTS.putIfAbsent(key, createdReference) == null : ACCOUNTS.replace(key, reference, createdReference)) {
+                return created;
+            }
+        }
+    }
+
+    /**
+     * Forgets every shared instance, e.g. because the global configuration changed, so that
+     * accounts looked up from now on are created afresh. Notifiers keep the instances they hold.
+     */
+    public static void clearAccounts() {
+        ACCOUNTS.clear();
+    }
+
+    /**
+     * Returns a shared instance for the subdomain that some notifier is still using, e.g. one
+     * configured with a job's own token, or null if there is none.
+     */
+    static Campfire findShared(String subdomain, boolean ssl) {
+        expungeCollected();
+        for (AccountReference reference : ACCOUNTS.values()) {
+            Campfire campfire = reference.get();
+            if (campfire != null && campfire.subdomain.equals(subdomain) && campfire.ssl == ssl) {
+                return campfire;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Number of accounts currently shared.
+     */
+    public static int getAccountCount() {
+        expungeCollected();
+        return ACCOUNTS.size();
+    }
+
+    private static void expungeCollected() {
+        AccountReference collected;
+        while ((collected = (AccountReference) COLLECTED.poll()) != null) {
+            ACCOUNTS.remove(collected.key, collected);
+        }
+    }
+
+    /**
+     * Replaces instances read from a job configuration with the shared instance for their account.
+     */
+    private Object readResolve() {
+        return forAccount(subdomain, token, ssl);
+    }
+
+    private static class AccountReference extends WeakReference<Campfire> {
+        private final String key;
+
+        AccountReference(String key, Campfire campfire) {
+            super(campfire, COLLECTED);
+            this.key = key;
+        }
+    }
+
     protected HttpClient getClient() {
-      HttpClient client = new HttpClient();
-      Credentials defaultcreds = new UsernamePasswordCredentials(this.token, "x");
-      client.getState().setCredentials(new AuthScope(getHost(), -1, AuthScope.ANY_REALM), defaultcreds);
-      client.getParams().setAuthenticationPreemptive(true);
-      client.getParams().setParameter("http.useragent", "Mozilla/5.0 (Macintosh; U; Intel Mac OS X 10_6_4; en-us) AppleWebKit/533.16 (KHTML, like Gecko) Version/5.0 Safari/533.16");
-      ProxyConfiguration proxy = Hudson.getInstance().proxy;
-      if (proxy != null) {
-          client.getHostConfiguration().setProxy(proxy.name, proxy.port);
-      }
-      return client;
+      return getConnectionPool().getClient();
+    }
+
+    public ConnectionPool getConnectionPool() {
+      return ConnectionPool.forAccount(getHost(), this.token);
+    }
+
+    /**
+     * Points every account at the given base URL instead of https://subdomain.campfirenow.com, e.g.
+     * at a local stub. "{subdomain}" in the URL is replaced with the account's subdomain.
+     *
+     * @param url the base URL, or null for Campfire itself
+     */
+    public static void configure(String url, Transport newTransport) {
+        baseUrl = url == null || url.trim().length() == 0 ? null : url.trim().replaceAll("/+$", "");
+        transport = newTransport;
+    }
+
+    protected Transport getTransport() {
+      return transport;
     }
 
     protected String getHost() {
+      String url = baseUrl;
+      if (url != null) {
+        try {
+          return new URL(getBaseUrl()).getHost();
+        } catch (MalformedURLException e) {
+          throw new IllegalArgumentException("Invalid campfire base URL: " + url, e);
+        }
+      }
       return this.subdomain + ".campfirenow.com";
     }
 
+    /**
+     * URL that API paths are relative to, without a trailing slash.
+     */
+    protected String getBaseUrl() {
+      String url = baseUrl;
+      if (url != null) {
+        return url.replace("{subdomain}", subdomain);
+      }
+      return getProtocol() + getHost();
+    }
+
+    /**
+     * URL that room streams are read from, without a trailing slash: the base URL when one is
+     * configured, as for a local stub, otherwise Campfire's streaming host.
+     */
+    String getStreamingUrl() {
+      return baseUrl != null ? getBaseUrl() : STREAMING_URL;
+    }
+
     public String getSubdomain() {
       return this.subdomain;
     }
@@ -62,94 +205,405 @@ public class Campfire {
       return this.token;
     }
 
+    public boolean getSsl() {
+      return this.ssl;
+    }
+
     protected String getProtocol() {
       if (this.ssl) { return "https://"; }
       return "http://";
     }
 
-    public int post(String url, String body) {
-        PostMethod post = new PostMethod(getProtocol() + getHost() + "/" + url);
-        post.setRequestHeader("Content-Type", "application/xml");
+    /**
+     * Posts to the Campfire API, subject to the account's rate limit. Throttled requests (429/503),
+     * gateway errors and I/O failures are retried with exponential backoff and jitter, honoring
+     * Retry-After, until the per-message time budget runs out.
+     *
+     * @return the status code of the last attempt
+     */
+    public int post(String url, String body) throws IOException {
+        return post(url, new StringRequestEntity(body, "application/xml", "UTF8"));
+    }
+
+    /**
+     * @see #post(String, String)
+     */
+    public int post(String url, RequestEntity entity) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(POST_TIME_BUDGET);
+        RateLimiter limiter = RateLimiter.forAccount(subdomain, token);
+        CircuitBreaker breaker = CircuitBreaker.forSubdomain(subdomain);
+        Metrics metrics = Metrics.forAccount(subdomain, Metrics.Operation.POST);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                if (!limiter.acquire(deadline)) {
+                    throw new IOException("Timed out waiting for campfire rate limit after " + POST_TIME_BUDGET + "ms");
+                }
+            } catch (InterruptedException e) {
+                throw (IOException) new InterruptedIOException("Interrupted waiting for campfire rate limit").initCause(e);
+            }
+
+            // fails fast, without retrying, while campfire is known to be down
+            breaker.acquire();
+            long delay = backoff(attempt);
+            Transport.Response response = null;
+            boolean failed = true;
+            long start = System.nanoTime();
+            try {
+                response = getTransport().execute(this, "POST", getBaseUrl() + "/" + url, entity);
+                int status = response.getStatus();
+                metrics.record(start, status);
+                long retryAfter = parseRetryAfter(response.getHeader("Retry-After"));
+                // being told to slow down doesn't mean campfire is down
+                failed = status >= 500 && retryAfter < 0;
+                if (!isRetryable(status)) {
+                    return status;
+                }
+                if (retryAfter >= 0) {
+                    limiter.pause(retryAfter);
+                    delay = retryAfter;
+                }
+                if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) > deadline) {
+                    LOGGER.warning("Giving up on campfire request to " + url + " after " + (attempt + 1) + " attempts, last status " + status);
+                    return status;
+                }
+                LOGGER.fine("Campfire request to " + url + " returned " + status + ", retrying in " + delay + "ms");
+            } catch (IOException e) {
+                metrics.recordFailure(start);
+                if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) > deadline) {
+                    throw e;
+                }
+                LOGGER.log(Level.FINE, "Campfire request to " + url + " failed, retrying in " + delay + "ms", e);
+            } finally {
+                if (response != null) {
+                    response.close();
+                }
+                record(breaker, failed);
+            }
+
+            metrics.recordRetry();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw (IOException) new InterruptedIOException("Interrupted retrying campfire request").initCause(e);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #post(String, RequestEntity)}, but returns once the request has been handed to the
+     * transport. Waiting for the rate limit and between retries is done on a timer rather than by a
+     * blocked thread. A transport that can't send asynchronously is called directly, so the
+     * returned future is already complete.
+     *
+     * @return the status code of the last attempt
+     */
+    public CampfireFuture<Integer> postAsync(String url, RequestEntity entity) {
+        return postAsync(url, entity, null);
+    }
+
+    /**
+     * @param session requests with the same session key are pipelined on one connection, or null
+     * @see #postAsync(String, RequestEntity)
+     * @see AsyncTransport#submit(Campfire, String, String, RequestEntity, String)
+     */
+    CampfireFuture<Integer> postAsync(String url, RequestEntity entity, String session) {
+        Transport current = getTransport();
+        if (!(current instanceof AsyncTransport)) {
+            try {
+                return CampfireFuture.completed(post(url, entity));
+            } catch (IOException e) {
+                return CampfireFuture.failed(e);
+            }
+        }
+        AsyncPost post = new AsyncPost((AsyncTransport) current, url, entity, session);
+        post.run();
+        return post.result;
+    }
+
+    /**
+     * The attempts of one asynchronous post, each run on the scheduler once its permit or backoff
+     * delay is up. Follows the same retry rules as {@link Campfire#post(String, RequestEntity)}.
+     */
+    private class AsyncPost implements Runnable {
+        private final CampfireFuture<Integer> result = new CampfireFuture<Integer>();
+        private final AsyncTransport transport;
+        private final String url;
+        private final RequestEntity entity;
+        private final String session;
+        private final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(POST_TIME_BUDGET);
+        private final RateLimiter limiter = RateLimiter.forAccount(subdomain, token);
+        private final CircuitBreaker breaker = CircuitBreaker.forSubdomain(subdomain);
+        private final Metrics metrics = Metrics.forAccount(subdomain, Metrics.Operation.POST);
+        private int attempt;
+
+        AsyncPost(AsyncTransport transport, String url, RequestEntity entity, String session) {
+            this.transport = transport;
+            this.url = url;
+            this.entity = entity;
+            this.session = session;
+        }
+
+        public void run() {
+            if (result.isDone()) {
+                // cancelled by the caller
+                return;
+            }
+            long wait = limiter.tryAcquire();
+            if (wait > 0) {
+                if (System.nanoTime() + wait > deadline) {
+                    result.fail(new IOException("Timed out waiting for campfire rate limit after " + POST_TIME_BUDGET + "ms"));
+                } else {
+                    SCHEDULER.schedule(this, wait, TimeUnit.NANOSECONDS);
+                }
+                return;
+            }
+            try {
+                breaker.acquire();
+            } catch (CircuitBreaker.OpenException e) {
+                result.fail(e);
+                return;
+            }
+            final long start = System.nanoTime();
+            final CampfireFuture<Transport.Response> response = transport.submit(Campfire.this, "POST", getBaseUrl() + "/" + url, entity, session);
+            response.addListener(new Runnable() {
+                public void run() {
+                    // off the transport's thread, which mustn't be held up
+                    SCHEDULER.execute(new Runnable() {
+                        public void run() {
+                            completed(response, start);
+                        }
+                    });
+                }
+            });
+        }
+
+        private void completed(CampfireFuture<Transport.Response> future, long start) {
+            long delay = backoff(attempt++);
+            Transport.Response response = future.getValue();
+            boolean failed = true;
+            try {
+                if (response == null) {
+                    metrics.recordFailure(start);
+                    if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) > deadline) {
+                        result.fail(future.getFailure());
+                        return;
+                    }
+                    LOGGER.log(Level.FINE, "Campfire request to " + url + " failed, retrying in " + delay + "ms", future.getFailure());
+                } else {
+                    int status = response.getStatus();
+                    metrics.record(start, status);
+                    long retryAfter = parseRetryAfter(response.getHeader("Retry-After"));
+                    // being told to slow down doesn't mean campfire is down
+                    failed = status >= 500 && retryAfter < 0;
+                    if (!isRetryable(status)) {
+                        result.set(status);
+                        return;
+                    }
+                    if (retryAfter >= 0) {
+                        limiter.pause(retryAfter);
+                        delay = retryAfter;
+                    }
+                    if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) > deadline) {
+                        LOGGER.warning("Giving up on campfire request to " + url + " after " + attempt + " attempts, last status " + status);
+                        result.set(status);
+                        return;
+                    }
+                    LOGGER.fine("Campfire request to " + url + " returned " + status + ", retrying in " + delay + "ms");
+                }
+            } finally {
+                if (response != null) {
+                    response.close();
+                }
+                record(breaker, failed);
+            }
+            metrics.recordRetry();
+            SCHEDULER.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Uploads a file as a multipart form, streaming it from disk. Only a few uploads per account run
+     * at once, so that large files don't take up every connection; the rest wait for their turn.
+     *
+     * @return the status code of the last attempt
+     */
+    public int upload(String url, File file) throws IOException {
+        Semaphore permits = UPLOADS.get(subdomain + "|" + token);
+        if (permits == null) {
+            Semaphore created = new Semaphore(MAX_CONCURRENT_UPLOADS, true);
+            permits = UPLOADS.putIfAbsent(subdomain + "|" + token, created);
+            if (permits == null) {
+                permits = created;
+            }
+        }
         try {
-            post.setRequestEntity(new StringRequestEntity(body, "application/xml", "UTF8"));
-            return getClient().executeMethod(post);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            if (!permits.tryAcquire(UPLOAD_WAIT, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for one of " + MAX_CONCURRENT_UPLOADS + " campfire uploads to " + subdomain + " to finish");
+            }
+        } catch (InterruptedException e) {
+            throw (IOException) new InterruptedIOException("Interrupted waiting to upload to campfire").initCause(e);
+        }
+        try {
+            return post(url, new MultipartFileEntity("upload", file));
         } finally {
-            post.releaseConnection();
+            permits.release();
+        }
+    }
+
+    private static void record(CircuitBreaker breaker, boolean failed) {
+        if (failed) {
+            breaker.recordFailure();
+        } else {
+            breaker.recordSuccess();
+        }
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == 429 || status == 502 || status == 503 || status == 504;
+    }
+
+    private static long backoff(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(attempt, 16));
+        // equal jitter: half the ceiling, plus a random share of the other half
+        return ceiling / 2 + (long) (RANDOM.nextDouble() * (ceiling / 2));
+    }
+
+    private static long parseRetryAfter(String header) {
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(header.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
     public String get(String url) {
-        GetMethod get = new GetMethod(getProtocol() + getHost() + "/" + url);
-        get.setFollowRedirects(true);
-        get.setRequestHeader("Content-Type", "application/xml");
+        return get(url, new ResponseHandler<String>() {
+            public String handle(Transport.Response response) throws IOException {
+                InputStream in = response.getBody();
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    body.write(buffer, 0, read);
+                }
+                return body.toString("UTF-8");
+            }
+        });
+    }
+
+    /**
+     * Performs a GET and hands the response to the given handler while the connection is still open,
+     * so that the body can be consumed as a stream.
+     */
+    protected <T> T get(String url, ResponseHandler<T> handler) {
+        CircuitBreaker breaker = CircuitBreaker.forSubdomain(subdomain);
         try {
-            getClient().executeMethod(get);
-            verify(get.getStatusCode());
-            return get.getResponseBodyAsString();
+            breaker.acquire();
+        } catch (CircuitBreaker.OpenException e) {
+            throw new RuntimeException(e);
+        }
+        Transport.Response response = null;
+        Metrics metrics = Metrics.forAccount(subdomain, Metrics.Operation.GET);
+        boolean failed = true;
+        int status = -1;
+        long start = System.nanoTime();
+        try {
+            response = getTransport().execute(this, "GET", getBaseUrl() + "/" + url, null);
+            status = response.getStatus();
+            metrics.record(start, status);
+            failed = status >= 500;
+            verify(status);
+            return handler.handle(response);
         } catch (IOException e) {
+            if (status < 0) {
+                // no response at all, as opposed to a response that couldn't be handled
+                metrics.recordFailure(start);
+            }
+            failed = true;
             throw new RuntimeException(e);
         } finally {
-            get.releaseConnection();
+            if (response != null) {
+                response.close();
+            }
+            record(breaker, failed);
+        }
+    }
+
+    protected interface ResponseHandler<T> {
+        T handle(Transport.Response response) throws IOException;
+    }
+
+    /**
+     * Id of the user the account's token belongs to, so that its own messages can be told apart.
+     */
+    long getUserId() {
+        Matcher matcher = USER_ID.matcher(get("users/me.xml"));
+        if (!matcher.find()) {
+            throw new RuntimeException("Campfire didn't say which user the token belongs to");
         }
+        return Long.parseLong(matcher.group(1));
     }
 
     public boolean verify(int returnCode) {
         if (returnCode != 200) {
-            throw new RuntimeException("Unexpected response code: " + Integer.toString(returnCode));
+            throw new UnexpectedResponseException(returnCode);
         }
         return true;
     }
 
-    private List<Room> getRooms(){
-        String body = get("rooms.xml");
+    /**
+     * Thrown when Campfire answers a request with anything but success, e.g. 401 for a token it
+     * doesn't accept.
+     */
+    public static class UnexpectedResponseException extends RuntimeException {
+        private final int status;
+
+        public UnexpectedResponseException(int status) {
+            super("Unexpected response code: " + Integer.toString(status));
+            this.status = status;
+        }
 
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    List<Room> getRooms(){
+        Metrics metrics = Metrics.forAccount(subdomain, Metrics.Operation.GET_ROOMS);
+        long start = System.nanoTime();
         List<Room> rooms;
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            StringReader reader = new StringReader(body);
-            InputSource inputSource = new InputSource( reader );
-            Document doc = builder.parse(inputSource);
-
-            XPath xpath = XPathFactory.newInstance().newXPath();
-            XPathExpression roomExpr = xpath.compile("//room");
-            XPathExpression nameExpr = xpath.compile(".//name");
-            XPathExpression idExpr = xpath.compile(".//id");
-
-            NodeList roomNodeList = (NodeList) roomExpr.evaluate(doc, XPathConstants.NODESET);
-            rooms = new ArrayList<Room>();
-            for (int i = 0; i < roomNodeList.getLength(); i++) {
-                Node roomNode = roomNodeList.item(i);
-                String name = ((NodeList) nameExpr.evaluate(roomNode, XPathConstants.NODESET)).item(0).getFirstChild().getNodeValue();
-                String id = ((NodeList) idExpr.evaluate(roomNode, XPathConstants.NODESET)).item(0).getFirstChild().getNodeValue();
-                rooms.add(new Room(this, name.trim(), id.trim()));
-            }
-        } catch (ParserConfigurationException e) {
-            throw new RuntimeException(e);
-        } catch (SAXException e) {
-            throw new RuntimeException(e);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } catch (XPathExpressionException e) {
-            throw new RuntimeException(e);
+            rooms = get("rooms.xml", new ResponseHandler<List<Room>>() {
+                public List<Room> handle(Transport.Response response) throws IOException {
+                    try {
+                        return RoomListParser.parse(Campfire.this, response.getBody());
+                    } catch (XMLStreamException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            metrics.recordFailure(start);
+            throw e;
         }
+        metrics.recordSuccess(start);
         return rooms;
     }
 
     public Room findRoomByName(String name) {
-        for (Room room : getRooms()) {
-            if (room.getName().equals(name)) {
-                return room;
-            }
-        }
-        return null;
+        return RoomCache.getInstance().findRoomByName(this, name);
     }
 
     private Room createRoom(String name) {
-        verify(post("rooms.xml", "<request><room><name>" + name + "</name><topic></topic></room></request>"));
+        try {
+            verify(post("rooms.xml", "<request><room><name>" + name + "</name><topic></topic></room></request>"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        RoomCache.getInstance().invalidate(this);
         return findRoomByName(name);
     }
 
@@ -0,0 +1,169 @@
+package hudson.plugins.campfire;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Result of an asynchronous Campfire request, completed by whichever thread finishes the request.
+ * Listeners run on that thread, so they must not block; anything slow should be handed off.
+ */
+public class CampfireFuture<T> implements Future<T> {
+    private static final Logger LOGGER = Logger.getLogger(CampfireFuture.class.getName());
+
+    private boolean done;
+    private boolean cancelled;
+    private T value;
+    private Throwable failure;
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+
+    public static <T> CampfireFuture<T> completed(T value) {
+        CampfireFuture<T> future = new CampfireFuture<T>();
+        future.set(value);
+        return future;
+    }
+
+    public static <T> CampfireFuture<T> failed(Throwable failure) {
+        CampfireFuture<T> future = new CampfireFuture<T>();
+        future.fail(failure);
+        return future;
+    }
+
+    /**
+     * @return false if the future had already been completed or cancelled
+     */
+    public boolean set(T result) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            value = result;
+            done = true;
+            notifyAll();
+        }
+        runListeners();
+        return true;
+    }
+
+    /**
+     * @return false if the future had already been completed or cancelled
+     */
+    public boolean fail(Throwable cause) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            failure = cause;
+            done = true;
+            notifyAll();
+        }
+        runListeners();
+        return true;
+    }
+
+    /**
+     * Runs the listener once the future completes, or right away if it already has.
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        run(listener);
+    }
+
+    /**
+     * Gives up waiting for the result. The request itself is not interrupted, as it may already be
+     * on the wire; its outcome is simply ignored.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            cancelled = true;
+            done = true;
+            notifyAll();
+        }
+        runListeners();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    /**
+     * The result of a completed future, without the checked exceptions of {@link #get()}.
+     */
+    synchronized T getValue() {
+        return value;
+    }
+
+    /**
+     * Why a completed future failed, or null if it succeeded.
+     */
+    synchronized Throwable getFailure() {
+        return failure;
+    }
+
+    private T result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+
+    private void runListeners() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            toRun = listeners;
+            listeners = null;
+        }
+        for (Runnable listener : toRun) {
+            run(listener);
+        }
+    }
+
+    private static void run(Runnable listener) {
+        try {
+            listener.run();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Campfire request listener failed", e);
+        }
+    }
+}
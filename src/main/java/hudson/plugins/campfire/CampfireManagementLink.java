@@ -0,0 +1,131 @@
+package hudson.plugins.campfire;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.ManagementLink;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * "Manage Jenkins" page showing what the plugin is doing: latency and outcome of notifications
+ * and requests per account and room, connection pool, circuit breaker, queue and outbox state.
+ * The same numbers are served as JSON from {@code /campfire/metrics} for monitoring to scrape.
+ */
+@Extension
+public class CampfireManagementLink extends ManagementLink {
+    public String getIconFileName() {
+        return "monitor.png";
+    }
+
+    public String getDisplayName() {
+        return "Campfire Notifications";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Latency, throughput and failures of notifications sent to Campfire.";
+    }
+
+    public String getUrlName() {
+        return "campfire";
+    }
+
+    public List<Metrics> getMetrics() {
+        return Metrics.getAll();
+    }
+
+    public int getAccountCount() {
+        return Campfire.getAccountCount();
+    }
+
+    public RoomListener getRoomListener() {
+        return RoomListener.getInstance();
+    }
+
+    public List<ConnectionPool> getConnectionPools() {
+        return ConnectionPool.getAll();
+    }
+
+    public List<CircuitBreaker> getCircuitBreakers() {
+        return CircuitBreaker.getAll();
+    }
+
+    /**
+     * The notification queue, or null if notifications have not been sent asynchronously.
+     */
+    public NotificationQueue getNotificationQueue() {
+        return NotificationQueue.getRunningInstance();
+    }
+
+    /**
+     * The outbox, or null if durable delivery is not in use.
+     */
+    public Outbox getOutbox() {
+        return Outbox.getRunningInstance();
+    }
+
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(toJSON().toString(2));
+    }
+
+    JSONObject toJSON() {
+        JSONArray metrics = new JSONArray();
+        for (Metrics m : getMetrics()) {
+            metrics.element(m.toJSON());
+        }
+
+        JSONArray pools = new JSONArray();
+        for (ConnectionPool pool : getConnectionPools()) {
+            pools.element(new JSONObject()
+                .element("host", pool.getHost())
+                .element("leased", pool.getLeased())
+                .element("idle", pool.getIdle())
+                .element("pending", pool.getPending()));
+        }
+
+        JSONArray breakers = new JSONArray();
+        for (CircuitBreaker breaker : getCircuitBreakers()) {
+            breakers.element(new JSONObject()
+                .element("subdomain", breaker.getSubdomain())
+                .element("state", breaker.getState().name())
+                .element("failureRate", breaker.getFailureRate())
+                .element("stateChangedAt", breaker.getStateChangedAt()));
+        }
+
+        JSONObject json = new JSONObject()
+            .element("metrics", metrics)
+            .element("accounts", getAccountCount())
+            .element("commandRooms", new JSONObject()
+                .element("watched", getRoomListener().getWatchedCount())
+                .element("connected", getRoomListener().getConnectedCount()))
+            .element("connectionPools", pools)
+            .element("circuitBreakers", breakers);
+
+        NotificationQueue queue = getNotificationQueue();
+        if (queue != null) {
+            json.element("queue", new JSONObject()
+                .element("depth", queue.getDepth())
+                .element("capacity", queue.getCapacity())
+                .element("delivered", queue.getDelivered())
+                .element("failed", queue.getFailed())
+                .element("dropped", queue.getDropped())
+                .element("expired", queue.getExpired())
+                .element("lastDrainLatency", queue.getLastDrainLatency())
+                .element("averageDrainLatency", queue.getAverageDrainLatency()));
+        }
+        Outbox outbox = getOutbox();
+        if (outbox != null) {
+            json.element("outbox", new JSONObject().element("pending", outbox.getPendingCount()));
+        }
+        return json;
+    }
+}
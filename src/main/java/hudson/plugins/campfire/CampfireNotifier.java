@@ -2,33 +2,59 @@ package hudson.plugins.campfire;
 
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
-import hudson.model.Result;
 import hudson.scm.ChangeLogSet;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Notifier;
 
+import org.apache.tools.ant.Project;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.SequenceInputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class CampfireNotifier extends Notifier {
 
     private Campfire campfire;
     private Room room;
+    private List<String> additionalRoomSpecs;
     private String hudsonUrl;
     private String notificationTemplate;
     private boolean smartNotify;
     private boolean sound;
+    private NotificationRules rules;
+    private String uploadArtifacts;
+    private transient NotificationTemplate compiledTemplate;
+    private transient List<Room> resolvedAdditionalRooms;
+    private transient List<String> unresolvedAdditionalRooms;
+    private transient List<Account> resolvedWithAccounts;
 
     // getters for project configuration..
     // Configured room name / subdomain / token should be null unless different from descriptor/global values
@@ -56,6 +82,36 @@ public class CampfireNotifier extends Notifier {
         }
     }
 
+    /**
+     * Additional rooms, one per line, with the account's name appended to rooms on a different account.
+     */
+    public String getConfiguredAdditionalRooms() {
+        if (additionalRoomSpecs == null) {
+            return null;
+        }
+        StringBuilder text = new StringBuilder();
+        for (String spec : additionalRoomSpecs) {
+            text.append(spec).append('\n');
+        }
+        return text.toString();
+    }
+
+    public Boolean getConfiguredTransitionsOnly() {
+        return rules == null ? null : rules.getTransitionsOnly();
+    }
+
+    public Integer getConfiguredRepeatedFailureLimit() {
+        return rules == null ? null : rules.getRepeatedFailureLimit();
+    }
+
+    public Integer getConfiguredNotificationInterval() {
+        return rules == null ? null : rules.getInterval();
+    }
+
+    public String getConfiguredUploadArtifacts() {
+        return uploadArtifacts;
+    }
+
     public String getConfiguredNotificationTemplate() {
         if ( DESCRIPTOR.getNotificationTemplate().equals(notificationTemplate) ) {
             return null;
@@ -69,90 +125,75 @@ public class CampfireNotifier extends Notifier {
 
     private static final Logger LOGGER = Logger.getLogger(CampfireNotifier.class.getName());
 
+    private static final int MAX_UPLOADED_ARTIFACTS = Integer.getInteger(CampfireNotifier.class.getName() + ".maxUploadedArtifacts", 10);
+    private static final int UPLOAD_THREADS = Integer.getInteger(CampfireNotifier.class.getName() + ".uploadThreads", 2);
+    private static final int UPLOAD_QUEUE = Integer.getInteger(CampfireNotifier.class.getName() + ".uploadQueue", 100);
+    private static final int CHANGELOG_HEAD_BYTES = 8192;
+    // a whole line, where lines end as BufferedReader.readLine() ends them
+    private static final Pattern COMMIT_LINE = Pattern.compile("(?:^|(?<=\r))commit ([a-zA-Z0-9]+)(?=\r|$)",
+        Pattern.MULTILINE | Pattern.UNIX_LINES);
+    private static final ConcurrentMap<Class<?>, Method> GET_ID_METHODS = new ConcurrentHashMap<Class<?>, Method>();
+
+    // uploads of asynchronously notified builds, kept apart from the notification queue so that a
+    // slow upload never holds up notifications
+    private static final ExecutorService UPLOADS = new ThreadPoolExecutor(UPLOAD_THREADS, UPLOAD_THREADS, 0L,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(UPLOAD_QUEUE), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Campfire uploads #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     public CampfireNotifier() {
         super();
         initialize();
     }
 
-    @DataBoundConstructor
     public CampfireNotifier(String subdomain, String token, String room, String hudsonUrl, String notificationTemplate,
                             boolean ssl, boolean smartNotify, boolean sound) {
+        this(subdomain, token, room, null, hudsonUrl, notificationTemplate, ssl, smartNotify, sound);
+    }
+
+    /**
+     * @param additionalRooms further rooms to notify, one per line, as "Room Name" for a room on the same
+     *                        account or "Room Name @ account" for a room on an account defined globally
+     * @throws IllegalArgumentException if an additional room or the notification template is malformed
+     */
+    @DataBoundConstructor
+    public CampfireNotifier(String subdomain, String token, String room, String additionalRooms, String hudsonUrl,
+                            String notificationTemplate, boolean ssl, boolean smartNotify, boolean sound) {
         super();
         initialize(subdomain, token, room, hudsonUrl, notificationTemplate, ssl, smartNotify, sound);
+        if (notificationTemplate != null) {
+            // rejects invalid templates when the configuration is saved
+            this.compiledTemplate = NotificationTemplate.compile(notificationTemplate);
+        }
+        this.additionalRoomSpecs = splitRooms(additionalRooms);
+        if (additionalRoomSpecs != null) {
+            // rejects unknown accounts when the configuration is saved
+            for (String spec : additionalRoomSpecs) {
+                parseRoom(spec, campfire, ssl);
+            }
+        }
     }
 
     public BuildStepMonitor getRequiredMonitorService() {
-        return BuildStepMonitor.BUILD;
-    }
-
-    private String interpolate(String base, Map<String, String> context) {
-        StringBuilder builder = new StringBuilder();
-        int pos = 0;
-
-        while (pos < base.length()) {
-            int startIndex = base.indexOf("%", pos);
-            if (startIndex >= 0) {
-                builder.append(base.substring(pos, startIndex));
-
-                int endIndex = base.indexOf("%", startIndex + 1);
-
-                if (endIndex > 0) {
-                    String key = base.substring(startIndex + 1, endIndex).trim();
-                    if (key.length() > 0) {
-                        String value = context.get(key);
-                        if (value == null) {
-                            value = "";
-                        }
-                        builder.append(value);
-                    } else {
-                        builder.append("%");
-                    }
-                    pos = endIndex + 1;
-                } else {
-                    // should error out here but quick and dirty for now
-                    builder.append("%");
-                    pos = startIndex + 1;
-                }
-            } else {
-                builder.append(base.substring(pos));
-                pos = base.length();
-            }
+        // notifications are only queued when sent asynchronously, so there is nothing to synchronize with
+        if (DESCRIPTOR.getAsyncNotify()) {
+            return BuildStepMonitor.NONE;
         }
-        return builder.toString();
+        return BuildStepMonitor.BUILD;
     }
 
-    private String computeChangeString(AbstractBuild<?, ?> build) {
+    static String computeChangeString(AbstractBuild<?, ?> build) {
         String changeString = "No changes";
         if (!build.hasChangeSetComputed()) {
             changeString = "Changes not determined";
         } else if (build.getChangeSet().iterator().hasNext()) {
-            ChangeLogSet changeSet = build.getChangeSet();
-            ChangeLogSet.Entry entry = build.getChangeSet().iterator().next();
-            // note: iterator should return recent changes first, but GitChangeSetList currently reverses the log entries
-            if (changeSet.getClass().getSimpleName().equals("GitChangeSetList")) {
-                String exceptionLogMsg = "Workaround to obtain latest commit info from git plugin failed";
-                try {
-                    // find the sha for the first commit in the changelog file, and then grab the corresponding entry from the changeset, yikes!
-                    String changeLogPath = build.getRootDir().toString() + File.separator + "changelog.xml";
-                    String sha = getCommitHash(changeLogPath);
-                    if (!"".equals(sha)) {
-                        Method getIdMethod = entry.getClass().getDeclaredMethod("getId");
-                        for(ChangeLogSet.Entry nextEntry : build.getChangeSet()) {
-                            if ( ( (String)getIdMethod.invoke(entry) ).compareTo(sha) != 0 ) entry = nextEntry;
-                        }
-                    }
-                } catch ( IOException e ){
-                    LOGGER.log(Level.WARNING, exceptionLogMsg, e);
-                } catch ( NoSuchMethodException e ) {
-                    LOGGER.log(Level.WARNING, exceptionLogMsg, e);
-                } catch ( IllegalAccessException e ) {
-                    LOGGER.log(Level.WARNING, exceptionLogMsg, e);
-                } catch ( SecurityException e ) {
-                    LOGGER.log(Level.WARNING, exceptionLogMsg, e);
-                } catch ( Exception e ) {
-                    throw new RuntimeException(e.getClass().getName() + ": " + e.getMessage(), e);
-                }
-            }
+            ChangeLogSet.Entry entry = getLatestEntry(build.getChangeSet(), build.getRootDir());
             String commitMsg = entry.getMsg().trim();
             if (!"".equals(commitMsg)) {
                 if (commitMsg.length() > 47) {
@@ -164,93 +205,390 @@ public class CampfireNotifier extends Notifier {
         return changeString;
     }
 
-    private Map<String, String> buildContextFor(AbstractBuild<?, ?> build) {
-        HashMap<String, String> context = new HashMap<String, String>();
+    /**
+     * Returns the most recent entry of a change set that isn't empty.
+     */
+    static ChangeLogSet.Entry getLatestEntry(ChangeLogSet<? extends ChangeLogSet.Entry> changeSet, File rootDir) {
+        ChangeLogSet.Entry entry = changeSet.iterator().next();
+        // note: iterator should return recent changes first, but GitChangeSetList currently reverses the log entries
+        if (changeSet.getClass().getSimpleName().equals("GitChangeSetList")) {
+            String exceptionLogMsg = "Workaround to obtain latest commit info from git plugin failed";
+            try {
+                // find the sha for the first commit in the changelog file, and then grab the corresponding entry from the changeset, yikes!
+                String sha = getCommitHash(new File(rootDir, "changelog.xml"));
+                if (!"".equals(sha)) {
+                    for (ChangeLogSet.Entry candidate : changeSet) {
+                        entry = candidate;
+                        if (sha.equals(getIdMethod(candidate.getClass()).invoke(candidate))) {
+                            break;
+                        }
+                    }
+                    // without a match this is the last entry, which the reversed log makes the most recent
+                }
+            } catch ( IOException e ){
+                LOGGER.log(Level.WARNING, exceptionLogMsg, e);
+            } catch ( NoSuchMethodException e ) {
+                LOGGER.log(Level.WARNING, exceptionLogMsg, e);
+            } catch ( IllegalAccessException e ) {
+                LOGGER.log(Level.WARNING, exceptionLogMsg, e);
+            } catch ( InvocationTargetException e ) {
+                LOGGER.log(Level.WARNING, exceptionLogMsg, e);
+            } catch ( SecurityException e ) {
+                LOGGER.log(Level.WARNING, exceptionLogMsg, e);
+            }
+        }
+        return entry;
+    }
+
+    private static Method getIdMethod(Class<?> entryClass) throws NoSuchMethodException {
+        Method getIdMethod = GET_ID_METHODS.get(entryClass);
+        if (getIdMethod == null) {
+            getIdMethod = entryClass.getMethod("getId");
+            GET_ID_METHODS.putIfAbsent(entryClass, getIdMethod);
+        }
+        return getIdMethod;
+    }
 
-        context.put("PROJECT_NAME", build.getProject().getName());
-        context.put("PROJECT_DISPLAY_NAME", build.getProject().getDisplayName());
-        context.put("PROJECT_FULL_NAME", build.getProject().getFullName());
-        context.put("PROJECT_FULL_DISPLAY_NAME", build.getProject().getFullDisplayName());
+    private void publish(AbstractBuild<?, ?> build, BuildListener listener) throws IOException {
+        checkCampfireConnection();
 
-        context.put("BUILD_DISPLAY_NAME", build.getDisplayName());
+        if (notificationTemplate == null || notificationTemplate.trim().length() == 0) {
+            return;
+        }
 
-        Result result = build.getResult();
-        String resultString = result.toString();
-        context.put("RESULT", resultString);
-        if (!smartNotify && result == Result.SUCCESS) {
-            context.put("SMART_RESULT", resultString.toLowerCase());
+        NotificationTemplate template = getCompiledTemplate(listener);
+        final String message = template.render(new NotificationTemplate.Context(build, hudsonUrl, smartNotify));
+
+        final String message_sound;
+        if (!sound) {
+          message_sound = null;
+        } else if ("FAILURE".equals(build.getResult().toString())) {
+          message_sound = "trombone";
         } else {
-            context.put("SMART_RESULT", resultString);
+          message_sound = "rimshot";
         }
 
-        context.put("CHANGES", computeChangeString(build));
+        final List<Room> targetRooms = getRooms();
+        int coalesceWindow = DESCRIPTOR.getCoalesceWindow();
+        if (coalesceWindow > 0) {
+            for (Room targetRoom : targetRooms) {
+                RoomCoalescer.getInstance().add(targetRoom, build.getProject().getFullDisplayName(),
+                    build.getResult().toString(), message, message_sound, coalesceWindow);
+            }
+            return;
+        }
 
-        if (hudsonUrl != null && hudsonUrl.length() > 1) {
-            context.put("BUILD_URL", hudsonUrl + build.getUrl());
+        final long start = System.nanoTime();
+        NotificationQueue.Notification notification = new NotificationQueue.Notification(build.getFullDisplayName() + " to " + targetRooms.size() + " room(s)") {
+            protected void send() throws IOException {
+                RoomFanOut.send(targetRooms, message, message_sound, start);
+            }
+        };
+
+        if (DESCRIPTOR.getAsyncNotify()) {
+            try {
+                NotificationQueue.getInstance().enqueue(notification);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.log(Level.WARNING, "Interrupted while queueing campfire notification", e);
+            }
+        } else {
+            notification.send();
         }
+    }
 
-        return context;
+    private void publishQuietly(AbstractBuild<?, ?> build, BuildListener listener) {
+        try {
+            publish(build, listener);
+        } catch (IOException e) {
+            // a notification failure shouldn't fail the build
+            listener.getLogger().println("Failed to send campfire notification: " + e.getMessage());
+            LOGGER.log(Level.WARNING, "Failed to send campfire notification for " + build.getFullDisplayName(), e);
+        } catch (IllegalArgumentException e) {
+            // nor should configuration that has since become invalid
+            listener.getLogger().println("Failed to send campfire notification: " + e.getMessage());
+            LOGGER.log(Level.WARNING, "Failed to send campfire notification for " + build.getFullDisplayName(), e);
+        }
     }
 
-    private void publish(AbstractBuild<?, ?> build) throws IOException {
-        checkCampfireConnection();
+    /**
+     * Uploads the archived artifacts matching the job's upload pattern to every room. When
+     * notifications are sent asynchronously, the uploads are queued behind the notification instead
+     * of holding up the executor, and are reported in the Jenkins log, as the build's log may be
+     * closed by the time they run. Failures don't fail the build.
+     */
+    private void uploadArtifactsQuietly(AbstractBuild<?, ?> build, BuildListener listener) {
+        try {
+            uploadArtifacts(build, listener);
+        } catch (IllegalArgumentException e) {
+            listener.getLogger().println("Failed to upload artifacts to campfire: " + e.getMessage());
+            LOGGER.log(Level.WARNING, "Failed to upload artifacts of " + build.getFullDisplayName() + " to campfire", e);
+        }
+    }
 
-        if (notificationTemplate == null || notificationTemplate.trim().length() == 0) {
+    private void uploadArtifacts(final AbstractBuild<?, ?> build, BuildListener listener) {
+        final File artifactsDir = build.getArtifactsDir();
+        if (uploadArtifacts == null || !artifactsDir.isDirectory()) {
+            return;
+        }
+        String[] paths = Util.createFileSet(artifactsDir, uploadArtifacts).getDirectoryScanner(new Project()).getIncludedFiles();
+        if (paths.length > MAX_UPLOADED_ARTIFACTS) {
+            listener.getLogger().println(paths.length + " artifacts match '" + uploadArtifacts + "', only uploading the first "
+                + MAX_UPLOADED_ARTIFACTS + " to campfire");
+            String[] first = new String[MAX_UPLOADED_ARTIFACTS];
+            System.arraycopy(paths, 0, first, 0, first.length);
+            paths = first;
+        }
+        if (paths.length == 0) {
+            return;
+        }
+        final String[] uploads = paths;
+        final List<Room> targetRooms = getRooms();
+        if (!DESCRIPTOR.getAsyncNotify()) {
+            upload(build, artifactsDir, uploads, targetRooms, listener.getLogger());
             return;
         }
+        try {
+            UPLOADS.execute(new Runnable() {
+                public void run() {
+                    upload(build, artifactsDir, uploads, targetRooms, null);
+                }
+            });
+            listener.getLogger().println("Queued " + uploads.length + " artifact(s) for upload to campfire");
+        } catch (RejectedExecutionException e) {
+            listener.getLogger().println("Too many campfire uploads waiting, not uploading " + uploads.length + " artifact(s)");
+            LOGGER.warning("Campfire upload queue full, dropped " + uploads.length + " artifact(s) of " + build.getFullDisplayName());
+        }
+    }
 
-        Map<String, String> context = buildContextFor(build);
+    /**
+     * @param log the build's log, or null to report successful uploads in the Jenkins log instead
+     */
+    private static void upload(AbstractBuild<?, ?> build, File artifactsDir, String[] paths, List<Room> targetRooms, PrintStream log) {
+        for (Room target : targetRooms) {
+            for (String path : paths) {
+                try {
+                    target.upload(new File(artifactsDir, path));
+                    if (log != null) {
+                        log.println("Uploaded " + path + " to campfire room " + target.getName());
+                    } else {
+                        LOGGER.info("Uploaded " + path + " of " + build.getFullDisplayName() + " to campfire room " + target.getName());
+                    }
+                } catch (IOException e) {
+                    if (log != null) {
+                        log.println("Failed to upload " + path + " to campfire room " + target.getName() + ": " + e.getMessage());
+                    }
+                    LOGGER.log(Level.WARNING, "Failed to upload " + path + " of " + build.getFullDisplayName() + " to campfire", e);
+                }
+            }
+        }
+    }
 
-        String message = interpolate(notificationTemplate, context);
+    /**
+     * Sets the archived artifacts to upload after each notification, as a comma separated list of
+     * Ant-style patterns, or null to upload nothing.
+     */
+    void setUploadArtifacts(String patterns) {
+        this.uploadArtifacts = patterns == null || patterns.trim().length() == 0 ? null : patterns.trim();
+    }
 
-        room.speak(message);
+    /**
+     * Sets the notification rules this job overrides, or null to follow the global rules.
+     */
+    void setRules(NotificationRules rules) {
+        this.rules = rules == null || rules.isEmpty() ? null : rules;
+    }
 
-        if (sound) {
-          String message_sound;
-          if ("FAILURE".equals(build.getResult().toString())) {
-            message_sound = "trombone";
-          } else {
-            message_sound = "rimshot";
-          }
-          room.play(message_sound);
+    private NotificationRules getEffectiveRules() {
+        NotificationRules defaults = DESCRIPTOR.getNotificationRules();
+        return rules == null ? defaults : rules.inherit(defaults);
+    }
+
+    /**
+     * The room notifications are sent to, followed by any additional rooms. Additional rooms on an
+     * account that has since been removed from the global configuration are left out.
+     */
+    public List<Room> getRooms() {
+        List<Room> rooms = new ArrayList<Room>();
+        rooms.add(room);
+        rooms.addAll(getAdditionalRooms());
+        return rooms;
+    }
+
+    /**
+     * The additional rooms, looked up again once the global accounts have been reconfigured, so that
+     * a changed token applies to every job at once.
+     */
+    private synchronized List<Room> getAdditionalRooms() {
+        List<Account> accounts = DESCRIPTOR.getAccounts();
+        if (resolvedAdditionalRooms == null || resolvedWithAccounts != accounts) {
+            List<Room> rooms = new ArrayList<Room>();
+            List<String> unresolved = new ArrayList<String>();
+            if (additionalRoomSpecs != null) {
+                for (String spec : additionalRoomSpecs) {
+                    try {
+                        rooms.add(parseRoom(spec, campfire, campfire.getSsl()));
+                    } catch (IllegalArgumentException e) {
+                        unresolved.add("Not notifying campfire room '" + spec + "': " + e.getMessage());
+                    }
+                }
+            }
+            resolvedAdditionalRooms = rooms;
+            unresolvedAdditionalRooms = unresolved;
+            resolvedWithAccounts = accounts;
         }
+        return resolvedAdditionalRooms;
     }
 
-    private String getCommitHash(String changeLogPath) throws IOException {
-        String sha = "";
-        BufferedReader reader = new BufferedReader(new FileReader(changeLogPath));
-        String line;
-        while((line = reader.readLine()) != null) {
-            if (line.matches("^commit [a-zA-Z0-9]+$")) {
-                sha = line.replace("commit ", "");
-                break;
+    /**
+     * Why additional rooms are being left out, one message per room.
+     */
+    private synchronized List<String> getUnresolvedAdditionalRooms() {
+        getAdditionalRooms();
+        return unresolvedAdditionalRooms;
+    }
+
+    private static List<String> splitRooms(String spec) {
+        if (spec == null) {
+            return null;
+        }
+        List<String> specs = new ArrayList<String>();
+        for (String line : spec.split("[\\r\\n]+")) {
+            if (line.trim().length() > 0) {
+                specs.add(line.trim());
+            }
+        }
+        return specs.isEmpty() ? null : specs;
+    }
+
+    /**
+     * Parses "Room Name", for a room on the given account, or "Room Name @ account" for a room on
+     * one of the accounts defined in the global configuration.
+     *
+     * @throws IllegalArgumentException if there is no account with that name
+     */
+    static Room parseRoom(String spec, Campfire defaultAccount, boolean ssl) {
+        String line = spec.trim();
+        int at = line.lastIndexOf('@');
+        if (at < 0) {
+            return new Room(defaultAccount, line, null);
+        }
+        String name = line.substring(at + 1).trim();
+        Account account = DESCRIPTOR.getAccount(name);
+        if (account == null) {
+            throw new IllegalArgumentException("There is no campfire account named '" + name
+                + "'; add it under Additional Accounts in the global configuration");
+        }
+        return new Room(account.getCampfire(ssl), line.substring(0, at).trim(), null);
+    }
+
+    /**
+     * Returns the sha of the first commit in the changelog. Only the head of the file is read, since
+     * the most recent commit is written first; the rest is only scanned if the head has no commit.
+     */
+    static String getCommitHash(File changeLog) throws IOException {
+        InputStream in = new FileInputStream(changeLog);
+        try {
+            byte[] head = new byte[CHANGELOG_HEAD_BYTES];
+            int length = 0;
+            int read;
+            while (length < head.length && (read = in.read(head, length, head.length - length)) > 0) {
+                length += read;
+            }
+            int end = length;
+            if (length == head.length) {
+                // leave a trailing partial line to the scan below
+                while (end > 0 && head[end - 1] != '\n') {
+                    end--;
+                }
+            }
+            Matcher matcher = COMMIT_LINE.matcher(new String(head, 0, end, "UTF-8"));
+            if (matcher.find()) {
+                return matcher.group(1);
+            }
+            if (length < head.length) {
+                return "";
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new SequenceInputStream(new ByteArrayInputStream(head, end, length - end), in), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                matcher = COMMIT_LINE.matcher(line);
+                if (matcher.find()) {
+                    return matcher.group(1);
+                }
+            }
+            return "";
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Compiles the template, if it hasn't been already. Templates saved before they were checked may
+     * be invalid; they are reported in the build log and rendered leniently, as they always were.
+     */
+    private NotificationTemplate getCompiledTemplate(BuildListener listener) {
+        if (compiledTemplate == null || !compiledTemplate.getSource().equals(notificationTemplate)) {
+            try {
+                compiledTemplate = NotificationTemplate.compile(notificationTemplate);
+            } catch (IllegalArgumentException e) {
+                listener.getLogger().println("Campfire notification template should be fixed, sending it as written: " + e.getMessage());
+                // not cached, so that every build reports it until the template is fixed
+                return NotificationTemplate.compileLeniently(notificationTemplate);
             }
         }
-        reader.close();
-        return sha;
+        return compiledTemplate;
+    }
+
+    /**
+     * Checks that the configured rooms exist, resolving their ids so that they are saved with the configuration.
+     * Only rooms that are cached, or can be fetched within {@link RoomCache#FORM_TIMEOUT}, are checked, so that
+     * saving a configuration doesn't wait on Campfire; rooms that can't be checked are looked up on first use.
+     */
+    void validateRoom() throws IOException {
+        for (Room target : getRooms()) {
+            Map<String, String> available;
+            try {
+                available = RoomCache.getInstance().getRooms(target.getCampfire(), RoomCache.FORM_TIMEOUT);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "Couldn't check campfire room '" + target.getName() + "'", e);
+                continue;
+            }
+            if (available == null) {
+                continue;
+            }
+            if (!available.containsKey(target.getName())) {
+                throw new IOException("Room '" + target.getName() + "' not found - verify name and room permissions");
+            }
+            target.resolve();
+        }
     }
 
     private void checkCampfireConnection() {
-        if (campfire == null) {
+        if (campfire == null || room == null) {
             initialize();
         }
     }
 
     private void initialize()  {
-        initialize(DESCRIPTOR.getSubdomain(), DESCRIPTOR.getToken(), room.getName(), DESCRIPTOR.getHudsonUrl(),
+        String roomName = room != null ? room.getName() : DESCRIPTOR.getRoom();
+        initialize(DESCRIPTOR.getSubdomain(), DESCRIPTOR.getToken(), roomName, DESCRIPTOR.getHudsonUrl(),
             DESCRIPTOR.getNotificationTemplate(), DESCRIPTOR.getSsl(), DESCRIPTOR.getSmartNotify(),
             DESCRIPTOR.getSound());
     }
 
+    /**
+     * Sets up the notifier without talking to Campfire; the room id is looked up on first use,
+     * so that loading job configurations never causes network requests.
+     */
     private void initialize(String subdomain, String token, String roomName, String hudsonUrl, String notificationTemplate,
                             boolean ssl, boolean smartNotify, boolean sound) {
-        campfire = new Campfire(subdomain, token, ssl);
-        this.room = campfire.findRoomByName(roomName);
-        if ( this.room == null ) {
-            throw new RuntimeException("Room '" + roomName + "' not found - verify name and room permissions");
-        }
+        campfire = Campfire.forAccount(subdomain, token, ssl);
+        this.room = new Room(campfire, roomName, null);
         this.hudsonUrl = hudsonUrl;
         this.notificationTemplate = notificationTemplate;
+        this.compiledTemplate = null;
         this.smartNotify = smartNotify;
         this.sound = sound;
     }
@@ -258,20 +596,14 @@ public class CampfireNotifier extends Notifier {
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher,
             BuildListener listener) throws InterruptedException, IOException {
-        // If SmartNotify is enabled, only notify if:
-        //  (1) there was no previous build, or
-        //  (2) the current build did not succeed, or
-        //  (3) the previous build failed and the current build succeeded.
-        if (smartNotify) {
-            AbstractBuild previousBuild = build.getPreviousBuild();
-            if (previousBuild == null ||
-                build.getResult() != Result.SUCCESS ||
-                previousBuild.getResult() != Result.SUCCESS)
-            {
-                publish(build);
+        // decided before anything is rendered or sent; with SmartNotify enabled, a success following
+        // a success isn't notified, and the other rules can quieten flaky or busy jobs further
+        if (NotificationStateTable.getInstance().shouldNotify(build, getEffectiveRules(), smartNotify)) {
+            for (String problem : getUnresolvedAdditionalRooms()) {
+                listener.getLogger().println(problem);
             }
-        } else {
-            publish(build);
+            publishQuietly(build, listener);
+            uploadArtifactsQuietly(build, listener);
         }
         return true;
     }
@@ -0,0 +1,179 @@
+package hudson.plugins.campfire;
+
+import hudson.model.AbstractBuild;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends a message to a Campfire room from a build script, such as a system Groovy script, or from
+ * the {@link CampfireSendBuilder} build step, without holding the calling thread while Campfire is
+ * contacted. {@link #start} returns at once with a future the script can wait on or ignore.
+ *
+ * <p>With an {@link AsyncTransport}, and the room's id known or cached, the requests are started on
+ * the calling thread and completed by the transport. Anything that could block, such as rendering
+ * a template, looking up a room that isn't cached or sending through a blocking transport, is handed
+ * to a small shared pool instead.
+ */
+public class CampfireSend {
+    private static final int THREADS = Integer.getInteger(CampfireSend.class.getName() + ".threads", 4);
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Campfire send #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Room room;
+    private String message;
+    private String sound;
+    private String template;
+
+    /**
+     * @param room "Room Name" for a room on the globally configured account, "Room Name @ account" for a
+     *             room on one of the further accounts defined globally, or blank for the global default room
+     */
+    public CampfireSend(String room) {
+        DescriptorImpl descriptor = CampfireNotifier.DESCRIPTOR;
+        String spec = room == null || room.trim().length() == 0 ? descriptor.getRoom() : room;
+        if (spec == null || spec.trim().length() == 0) {
+            throw new IllegalArgumentException("No campfire room given and no default room configured");
+        }
+        Campfire account = null;
+        if (descriptor.getSubdomain() != null && descriptor.getToken() != null) {
+            account = Campfire.forAccount(descriptor.getSubdomain(), descriptor.getToken(), descriptor.getSsl());
+        }
+        this.room = CampfireNotifier.parseRoom(spec, account, descriptor.getSsl());
+        if (this.room.getCampfire() == null) {
+            throw new IllegalArgumentException("No campfire account configured for room '" + this.room.getName() + "'");
+        }
+    }
+
+    public CampfireSend(Room room) {
+        this.room = room;
+    }
+
+    public Room getRoom() {
+        return room;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    /**
+     * Sound to play after the message, e.g. "rimshot", or null for none.
+     */
+    public String getSound() {
+        return sound;
+    }
+
+    public void setSound(String sound) {
+        this.sound = sound == null || sound.trim().length() == 0 ? null : sound.trim();
+    }
+
+    /**
+     * Notification template to render against the build instead of sending a fixed message.
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    public void setTemplate(String template) {
+        this.template = template;
+    }
+
+    /**
+     * Starts sending the message. Mistakes in the template are reported here; failures to send are
+     * reported through the returned future.
+     *
+     * @param build the build the template is rendered against, only needed with a template
+     * @return completes once the message, and the sound if any, have been accepted by Campfire
+     * @throws IllegalArgumentException if there is nothing to send or the template is invalid
+     */
+    public CampfireFuture<Void> start(final AbstractBuild<?, ?> build) {
+        final long start = System.nanoTime();
+        final NotificationTemplate compiled;
+        if (template != null && template.trim().length() > 0) {
+            if (build == null) {
+                throw new IllegalArgumentException("A campfire notification template needs a build to render");
+            }
+            compiled = NotificationTemplate.compile(template);
+        } else if (message != null && message.length() > 0) {
+            compiled = null;
+        } else {
+            throw new IllegalArgumentException("Expected a message or a template to send to campfire room '" + room.getName() + "'");
+        }
+
+        if (compiled == null && canSendRightAway()) {
+            return RoomFanOut.start(room, message, sound, start);
+        }
+        final CampfireFuture<Void> done = new CampfireFuture<Void>();
+        EXECUTOR.execute(new Runnable() {
+            public void run() {
+                if (done.isDone()) {
+                    // cancelled while queued
+                    return;
+                }
+                final CampfireFuture<Void> sent;
+                try {
+                    String text = compiled == null ? message
+                        : compiled.render(new NotificationTemplate.Context(build, CampfireNotifier.DESCRIPTOR.getHudsonUrl(),
+                            CampfireNotifier.DESCRIPTOR.getSmartNotify()));
+                    room.resolve();
+                    sent = RoomFanOut.start(room, text, sound, start);
+                } catch (IOException e) {
+                    done.fail(e);
+                    return;
+                } catch (RuntimeException e) {
+                    done.fail(e);
+                    return;
+                }
+                sent.addListener(new Runnable() {
+                    public void run() {
+                        if (sent.isCancelled()) {
+                            done.cancel(false);
+                        } else if (sent.getFailure() != null) {
+                            done.fail(sent.getFailure());
+                        } else {
+                            done.set(null);
+                        }
+                    }
+                });
+            }
+        });
+        return done;
+    }
+
+    /**
+     * Whether the requests can be started from the calling thread without it waiting on anything.
+     */
+    private boolean canSendRightAway() {
+        if (!(room.getCampfire().getTransport() instanceof AsyncTransport)) {
+            return false;
+        }
+        if (room.getId() != null) {
+            return true;
+        }
+        try {
+            // doesn't wait; an uncached account starts being fetched in the background
+            Map<String, String> cached = RoomCache.getInstance().getRooms(room.getCampfire(), 0);
+            return cached != null && cached.containsKey(room.getName());
+        } catch (RuntimeException e) {
+            // reported when the pool tries to look the room up
+            return false;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package hudson.plugins.campfire;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.ComboBoxModel;
+import hudson.util.FormValidation;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Build step that sends a message to a Campfire room part way through a build, e.g. before a
+ * deployment starts, through {@link CampfireSend}. The message is a notification template, so it can
+ * refer to the build. Unless asked to wait, the step only starts sending and the build carries on;
+ * a message that can't be sent never fails the build.
+ */
+public class CampfireSendBuilder extends Builder {
+    private static final Logger LOGGER = Logger.getLogger(CampfireSendBuilder.class.getName());
+
+    private final String room;
+    private final String message;
+    private final String sound;
+    private final boolean waitUntilSent;
+
+    /**
+     * @param room "Room Name", "Room Name @ account" or blank for the global default room
+     * @throws IllegalArgumentException if the message template is invalid
+     */
+    @DataBoundConstructor
+    public CampfireSendBuilder(String room, String message, String sound, boolean waitUntilSent) {
+        this.room = room;
+        this.message = message;
+        this.sound = sound;
+        this.waitUntilSent = waitUntilSent;
+        if (message != null && message.trim().length() > 0) {
+            // rejects invalid templates when the configuration is saved
+            NotificationTemplate.compile(message);
+        }
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String getSound() {
+        return sound;
+    }
+
+    public boolean getWaitUntilSent() {
+        return waitUntilSent;
+    }
+
+    @Override
+    public boolean perform(final AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
+        final CampfireSend send;
+        final CampfireFuture<Void> sent;
+        try {
+            send = new CampfireSend(room);
+            send.setTemplate(message);
+            send.setSound(sound);
+            sent = send.start(build);
+        } catch (IllegalArgumentException e) {
+            listener.getLogger().println("Not sending campfire message: " + e.getMessage());
+            return true;
+        }
+        if (!waitUntilSent) {
+            listener.getLogger().println("Sending message to campfire room " + send.getRoom().getName());
+            // the build may have finished by the time the message is sent, so its log can't be written to
+            sent.addListener(new Runnable() {
+                public void run() {
+                    if (sent.getFailure() != null) {
+                        LOGGER.log(Level.WARNING, "Failed to send campfire message for " + build.getFullDisplayName(), sent.getFailure());
+                    }
+                }
+            });
+            return true;
+        }
+        try {
+            sent.get();
+            listener.getLogger().println("Sent message to campfire room " + send.getRoom().getName());
+        } catch (InterruptedException e) {
+            sent.cancel(false);
+            throw e;
+        } catch (CancellationException e) {
+            listener.getLogger().println("Campfire message was cancelled before it was sent");
+        } catch (ExecutionException e) {
+            listener.getLogger().println("Failed to send campfire message: " + e.getCause().getMessage());
+            LOGGER.log(Level.WARNING, "Failed to send campfire message for " + build.getFullDisplayName(), e.getCause());
+        }
+        return true;
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+        public DescriptorImpl() {
+            super(CampfireSendBuilder.class);
+        }
+
+        public boolean isApplicable(Class<? extends AbstractProject> aClass) {
+            return true;
+        }
+
+        /**
+         * Rooms of the globally configured account, as for the notifier's room box.
+         */
+        public ComboBoxModel doFillRoomItems() {
+            return CampfireNotifier.DESCRIPTOR.doFillRoomItems(null, null);
+        }
+
+        public FormValidation doCheckMessage(@QueryParameter String value) {
+            if (value == null || value.trim().length() == 0) {
+                return FormValidation.error("Enter the message to send");
+            }
+            return CampfireNotifier.DESCRIPTOR.doCheckNotificationTemplate(value);
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Send Campfire Message";
+        }
+    }
+}
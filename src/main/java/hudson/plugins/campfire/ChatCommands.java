@@ -0,0 +1,152 @@
+package hudson.plugins.campfire;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.security.SecurityRealm;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import org.acegisecurity.userdetails.UserDetails;
+import org.acegisecurity.userdetails.UsernameNotFoundException;
+import org.springframework.dao.DataAccessException;
+
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The commands Jenkins answers in rooms it listens to:
+ * <ul>
+ * <li>{@code build <job>} schedules a build, if starting builds from chat is allowed</li>
+ * <li>{@code status <job>} reports the job's last build</li>
+ * <li>{@code last failure <job>} reports the job's last failed build</li>
+ * </ul>
+ * Campfire doesn't tell us who a poster is in Jenkins, so the commands run as the Jenkins user the
+ * global configuration names for them, or as an anonymous user if none is named. Jobs that user can't
+ * read are reported as not existing, and builds are only started with its permission to build.
+ */
+public class ChatCommands implements RoomListener.CommandHandler {
+    private static final Pattern COMMAND = Pattern.compile("\\s*(build|status|last\\s+failure)\\s+(\\S.*?)\\s*", Pattern.CASE_INSENSITIVE);
+    private static final Logger LOGGER = Logger.getLogger(ChatCommands.class.getName());
+
+    public String handle(Room room, String message) {
+        Matcher matcher = COMMAND.matcher(message);
+        Hudson hudson = Hudson.getInstance();
+        if (!matcher.matches() || hudson == null) {
+            return null;
+        }
+        String command = matcher.group(1).toLowerCase(Locale.ENGLISH);
+        String jobName = matcher.group(2);
+
+        Authentication user;
+        try {
+            user = authenticate(hudson, CampfireNotifier.DESCRIPTOR.getChatUser());
+        } catch (UsernameNotFoundException e) {
+            LOGGER.log(Level.WARNING, "Campfire chat commands are to run as a user Jenkins doesn't know", e);
+            return "Jenkins doesn't know the user chat commands are to run as";
+        }
+        SecurityContext context = SecurityContextHolder.getContext();
+        Authentication previous = context.getAuthentication();
+        context.setAuthentication(user);
+        try {
+            AbstractProject<?, ?> project = hudson.getItemByFullName(jobName, AbstractProject.class);
+            // jobs that can't be read are no different from jobs that don't exist
+            if (project == null || !project.hasPermission(Item.READ)) {
+                return "There is no job named '" + jobName + "'";
+            }
+            if (command.equals("build")) {
+                return build(room, project);
+            }
+            if (command.equals("status")) {
+                AbstractBuild<?, ?> last = project.getLastBuild();
+                if (last == null) {
+                    return project.getFullDisplayName() + " has not been built yet";
+                }
+                return last.getFullDisplayName() + ": " + (last.isBuilding() ? "BUILDING" : String.valueOf(last.getResult()))
+                    + ", started " + last.getTimestampString() + " ago" + link(last);
+            }
+            AbstractBuild<?, ?> failed = project.getLastFailedBuild();
+            if (failed == null) {
+                return project.getFullDisplayName() + " has not failed yet";
+            }
+            return failed.getFullDisplayName() + " failed, started " + failed.getTimestampString() + " ago" + link(failed);
+        } finally {
+            context.setAuthentication(previous);
+        }
+    }
+
+    /**
+     * The authentication of the user commands run as, with the groups the security realm knows for
+     * it, or the anonymous user if none is configured.
+     *
+     * @throws UsernameNotFoundException if the security realm doesn't know the user
+     */
+    private static Authentication authenticate(Hudson hudson, String userId) {
+        if (userId == null || userId.trim().length() == 0) {
+            return Hudson.ANONYMOUS;
+        }
+        GrantedAuthority[] authorities;
+        try {
+            UserDetails details = hudson.getSecurityRealm().loadUserByUsername(userId.trim());
+            authorities = details.getAuthorities();
+        } catch (UnsupportedOperationException e) {
+            // the realm can't look users up, so only what applies to every authenticated user is known
+            authorities = new GrantedAuthority[] {SecurityRealm.AUTHENTICATED_AUTHORITY};
+        } catch (DataAccessException e) {
+            LOGGER.log(Level.WARNING, "Couldn't look up the groups of " + userId + " for campfire chat commands", e);
+            authorities = new GrantedAuthority[] {SecurityRealm.AUTHENTICATED_AUTHORITY};
+        }
+        return new UsernamePasswordAuthenticationToken(userId.trim(), "", authorities);
+    }
+
+    private static String build(Room room, AbstractProject<?, ?> project) {
+        if (!CampfireNotifier.DESCRIPTOR.getChatBuilds()) {
+            return "Starting builds from Campfire is not allowed";
+        }
+        if (!project.hasPermission(AbstractProject.BUILD)) {
+            return "Not allowed to build " + project.getFullDisplayName() + " from Campfire";
+        }
+        if (!project.isBuildable()) {
+            return project.getFullDisplayName() + " can't be built, it may be disabled";
+        }
+        if (!project.scheduleBuild(new ChatCause(room.getName()))) {
+            return "Couldn't schedule a build of " + project.getFullDisplayName();
+        }
+        return "Scheduled a build of " + project.getFullDisplayName();
+    }
+
+    private static String link(AbstractBuild<?, ?> build) {
+        String hudsonUrl = CampfireNotifier.DESCRIPTOR.getHudsonUrl();
+        if (hudsonUrl == null || hudsonUrl.length() == 0) {
+            return "";
+        }
+        return " (" + hudsonUrl + build.getUrl() + ")";
+    }
+
+    /**
+     * Records that a build was started from a Campfire room.
+     */
+    public static class ChatCause extends Cause {
+        private final String room;
+
+        public ChatCause(String room) {
+            this.room = room;
+        }
+
+        public String getRoom() {
+            return room;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Started from Campfire room " + room;
+        }
+    }
+}
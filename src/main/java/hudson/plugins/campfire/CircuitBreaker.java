@@ -0,0 +1,185 @@
+package hudson.plugins.campfire;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker for the requests made to one Campfire subdomain. Once the failure rate over the
+ * most recent requests exceeds the threshold the breaker opens and requests fail immediately
+ * instead of waiting out connection timeouts. After the cool-down a single trial request is let
+ * through (half-open); its outcome decides whether the breaker closes again or stays open. A trial
+ * whose outcome isn't known within the trial timeout, e.g. because its caller went away, no longer
+ * holds up the next one.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public static final int DEFAULT_FAILURE_RATE_THRESHOLD = 50;
+    public static final int DEFAULT_COOL_DOWN = 60;
+
+    private static final int WINDOW_SIZE = 20;
+    private static final int MINIMUM_CALLS = 5;
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<String, CircuitBreaker>();
+    private static volatile int failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+    private static volatile long coolDown = TimeUnit.SECONDS.toMillis(DEFAULT_COOL_DOWN);
+    private static volatile long trialTimeout = Long.getLong(CircuitBreaker.class.getName() + ".trialTimeout", 120000L);
+
+    private final String subdomain;
+    // ring buffer of recent outcomes, true for a failure
+    private final boolean[] outcomes = new boolean[WINDOW_SIZE];
+    private int calls;
+    private int failures;
+    private int next;
+    private State state = State.CLOSED;
+    private long stateChangedAt = System.currentTimeMillis();
+    private boolean trialInFlight;
+    private long trialStartedAt;
+
+    /**
+     * Thrown instead of making a request while the breaker is open.
+     */
+    public static class OpenException extends IOException {
+        public OpenException(String message) {
+            super(message);
+        }
+    }
+
+    private CircuitBreaker(String subdomain) {
+        this.subdomain = subdomain;
+    }
+
+    public static CircuitBreaker forSubdomain(String subdomain) {
+        CircuitBreaker breaker = BREAKERS.get(subdomain);
+        if (breaker == null) {
+            CircuitBreaker created = new CircuitBreaker(subdomain);
+            breaker = BREAKERS.putIfAbsent(subdomain, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    public static List<CircuitBreaker> getAll() {
+        return new ArrayList<CircuitBreaker>(BREAKERS.values());
+    }
+
+    /**
+     * @param threshold percentage of failed requests at which the breaker opens
+     * @param coolDownSeconds time the breaker stays open before letting a trial request through
+     */
+    public static void configure(int threshold, int coolDownSeconds) {
+        failureRateThreshold = threshold;
+        coolDown = TimeUnit.SECONDS.toMillis(coolDownSeconds);
+    }
+
+    static void setTrialTimeout(long millis) {
+        trialTimeout = millis;
+    }
+
+    /**
+     * Checks whether a request may be made, failing fast if the breaker is open.
+     */
+    public synchronized void acquire() throws OpenException {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - stateChangedAt < coolDown) {
+                throw new OpenException("Campfire subdomain " + subdomain + " is unavailable, circuit breaker open since " + new java.util.Date(stateChangedAt));
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            long now = System.currentTimeMillis();
+            if (trialInFlight && now - trialStartedAt < trialTimeout) {
+                throw new OpenException("Campfire subdomain " + subdomain + " is unavailable, waiting for trial request");
+            }
+            if (trialInFlight) {
+                LOGGER.warning("Campfire circuit breaker for " + subdomain + " gave up on its trial request after "
+                    + trialTimeout + "ms, letting another one through");
+            }
+            trialInFlight = true;
+            trialStartedAt = now;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            reset();
+            transitionTo(State.CLOSED);
+            return;
+        }
+        record(false);
+    }
+
+    public synchronized void recordFailure() {
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            transitionTo(State.OPEN);
+            return;
+        }
+        record(true);
+        if (state == State.CLOSED && calls >= MINIMUM_CALLS && failures * 100 >= failureRateThreshold * calls) {
+            transitionTo(State.OPEN);
+        }
+    }
+
+    private void record(boolean failure) {
+        if (calls == WINDOW_SIZE) {
+            if (outcomes[next]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        outcomes[next] = failure;
+        if (failure) {
+            failures++;
+        }
+        next = (next + 1) % WINDOW_SIZE;
+    }
+
+    private void reset() {
+        calls = 0;
+        failures = 0;
+        next = 0;
+    }
+
+    private void transitionTo(State newState) {
+        if (newState == State.OPEN) {
+            LOGGER.warning("Campfire circuit breaker for " + subdomain + " changed from " + state + " to OPEN ("
+                + failures + " of the last " + calls + " requests failed)");
+        } else {
+            LOGGER.info("Campfire circuit breaker for " + subdomain + " changed from " + state + " to " + newState);
+        }
+        state = newState;
+        stateChangedAt = System.currentTimeMillis();
+    }
+
+    public String getSubdomain() {
+        return subdomain;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getStateChangedAt() {
+        return stateChangedAt;
+    }
+
+    /**
+     * Percentage of failed requests among the most recent ones.
+     */
+    public synchronized int getFailureRate() {
+        return calls == 0 ? 0 : failures * 100 / calls;
+    }
+}
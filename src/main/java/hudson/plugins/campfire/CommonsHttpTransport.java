@@ -0,0 +1,56 @@
+package hudson.plugins.campfire;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Blocking transport over commons-httpclient, using the account's {@link ConnectionPool}.
+ */
+public class CommonsHttpTransport implements Transport {
+    public Response execute(Campfire campfire, String method, String url, RequestEntity body) throws IOException {
+        final HttpMethodBase request;
+        if ("POST".equals(method)) {
+            PostMethod post = new PostMethod(url);
+            post.setRequestHeader("Content-Type", body.getContentType());
+            post.setRequestEntity(body);
+            request = post;
+        } else {
+            GetMethod get = new GetMethod(url);
+            get.setFollowRedirects(true);
+            get.setRequestHeader("Content-Type", "application/xml");
+            request = get;
+        }
+
+        final int status;
+        try {
+            status = campfire.getClient().executeMethod(request);
+        } catch (IOException e) {
+            request.releaseConnection();
+            throw e;
+        }
+        return new Response() {
+            public int getStatus() {
+                return status;
+            }
+
+            public String getHeader(String name) {
+                Header header = request.getResponseHeader(name);
+                return header == null ? null : header.getValue();
+            }
+
+            public InputStream getBody() throws IOException {
+                return request.getResponseBodyAsStream();
+            }
+
+            public void close() {
+                request.releaseConnection();
+            }
+        };
+    }
+}
@@ -0,0 +1,174 @@
+package hudson.plugins.campfire;
+
+import hudson.ProxyConfiguration;
+import hudson.model.Hudson;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide pool of keep-alive connections for one Campfire account (host and token).
+ * All {@link Campfire} instances for the same account share a single pool, so repeated
+ * notifications reuse established TCP/TLS connections instead of opening new ones.
+ */
+public class ConnectionPool {
+    private static final int MAX_CONNECTIONS_PER_HOST = Integer.getInteger(ConnectionPool.class.getName() + ".maxConnectionsPerHost", 4);
+    private static final int MAX_TOTAL_CONNECTIONS = Integer.getInteger(ConnectionPool.class.getName() + ".maxTotalConnections", 20);
+    private static final int CONNECT_TIMEOUT = Integer.getInteger(ConnectionPool.class.getName() + ".connectTimeout", 10000);
+    private static final int SOCKET_TIMEOUT = Integer.getInteger(ConnectionPool.class.getName() + ".socketTimeout", 30000);
+    private static final long IDLE_TIMEOUT = Long.getLong(ConnectionPool.class.getName() + ".idleTimeout", 60000L);
+    static final String USER_AGENT = "Mozilla/5.0 (Macintosh; U; Intel Mac OS X 10_6_4; en-us) AppleWebKit/533.16 (KHTML, like Gecko) Version/5.0 Safari/533.16";
+
+    private static final ConcurrentMap<String, ConnectionPool> POOLS = new ConcurrentHashMap<String, ConnectionPool>();
+    private static IdleConnectionTimeoutThread idleEvictor;
+
+    private final String host;
+    private final String token;
+    private final CountingConnectionManager connectionManager;
+    private HttpClient client;
+    private String proxyKey;
+
+    private ConnectionPool(String host, String token) {
+        this.host = host;
+        this.token = token;
+        this.connectionManager = new CountingConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(MAX_CONNECTIONS_PER_HOST);
+        params.setMaxTotalConnections(MAX_TOTAL_CONNECTIONS);
+        params.setStaleCheckingEnabled(true);
+        params.setConnectionTimeout(CONNECT_TIMEOUT);
+        params.setSoTimeout(SOCKET_TIMEOUT);
+    }
+
+    /**
+     * Returns the shared pool for the given host and token, creating it on first use.
+     */
+    public static ConnectionPool forAccount(String host, String token) {
+        String key = host + "|" + token;
+        ConnectionPool pool = POOLS.get(key);
+        if (pool == null) {
+            ConnectionPool created = new ConnectionPool(host, token);
+            pool = POOLS.putIfAbsent(key, created);
+            if (pool == null) {
+                pool = created;
+                registerForIdleEviction(created.connectionManager);
+            }
+        }
+        return pool;
+    }
+
+    public static List<ConnectionPool> getAll() {
+        return new ArrayList<ConnectionPool>(POOLS.values());
+    }
+
+    private static synchronized void registerForIdleEviction(MultiThreadedHttpConnectionManager manager) {
+        if (idleEvictor == null) {
+            idleEvictor = new IdleConnectionTimeoutThread();
+            idleEvictor.setName("Campfire idle connection evictor");
+            idleEvictor.setDaemon(true);
+            idleEvictor.setTimeoutInterval(IDLE_TIMEOUT / 2);
+            idleEvictor.setConnectionTimeout(IDLE_TIMEOUT);
+            idleEvictor.start();
+        }
+        idleEvictor.addConnectionManager(manager);
+    }
+
+    /**
+     * Returns a client backed by this pool. The client is rebuilt if the Jenkins proxy configuration
+     * has changed since it was last created; the pooled connections themselves are kept.
+     */
+    public synchronized HttpClient getClient() {
+        ProxyConfiguration proxy = currentProxy();
+        String currentProxyKey = proxy == null ? "" : proxy.name + ":" + proxy.port;
+        if (client == null || !currentProxyKey.equals(proxyKey)) {
+            client = createClient(proxy);
+            proxyKey = currentProxyKey;
+        }
+        return client;
+    }
+
+    private HttpClient createClient(ProxyConfiguration proxy) {
+        HttpClient newClient = new HttpClient(connectionManager);
+        Credentials defaultcreds = new UsernamePasswordCredentials(token, "x");
+        newClient.getState().setCredentials(new AuthScope(host, -1, AuthScope.ANY_REALM), defaultcreds);
+        newClient.getParams().setAuthenticationPreemptive(true);
+        newClient.getParams().setConnectionManagerTimeout(CONNECT_TIMEOUT);
+        newClient.getParams().setSoTimeout(SOCKET_TIMEOUT);
+        newClient.getParams().setParameter("http.useragent", USER_AGENT);
+        if (proxy != null) {
+            newClient.getHostConfiguration().setProxy(proxy.name, proxy.port);
+        }
+        return newClient;
+    }
+
+    private static ProxyConfiguration currentProxy() {
+        Hudson hudson = Hudson.getInstance();
+        return hudson == null ? null : hudson.proxy;
+    }
+
+    /**
+     * Number of connections currently checked out by in-flight requests.
+     */
+    public int getLeased() {
+        return connectionManager.leased.get();
+    }
+
+    /**
+     * Number of open connections sitting in the pool waiting to be reused.
+     */
+    public int getIdle() {
+        return Math.max(0, connectionManager.getConnectionsInPool() - getLeased());
+    }
+
+    /**
+     * Number of requests blocked waiting for a connection to become available.
+     */
+    public int getPending() {
+        return connectionManager.pending.get();
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Connection manager that keeps track of leased and pending connections for pool statistics.
+     */
+    private static class CountingConnectionManager extends MultiThreadedHttpConnectionManager {
+        private final AtomicInteger leased = new AtomicInteger();
+        private final AtomicInteger pending = new AtomicInteger();
+
+        @Override
+        public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout)
+                throws ConnectionPoolTimeoutException {
+            pending.incrementAndGet();
+            try {
+                HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+                leased.incrementAndGet();
+                return connection;
+            } finally {
+                pending.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void releaseConnection(HttpConnection connection) {
+            super.releaseConnection(connection);
+            leased.decrementAndGet();
+        }
+    }
+}
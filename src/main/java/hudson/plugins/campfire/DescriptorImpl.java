@@ -1,16 +1,27 @@
 package hudson.plugins.campfire;
 
 import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Publisher;
+import hudson.util.ComboBoxModel;
+import hudson.util.FormValidation;
 import net.sf.json.JSONObject;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class DescriptorImpl extends BuildStepDescriptor<Publisher> {
     private static final String DEFAULT_NOTIFICATION_TEMPLATE = "%PROJECT_NAME% %BUILD_DISPLAY_NAME% (%CHANGES%): %SMART_RESULT% (%BUILD_URL%)";
+    private static final Pattern SUBDOMAIN = Pattern.compile("[A-Za-z0-9-]+");
 
     private boolean enabled = false;
     private String subdomain;
@@ -21,11 +32,36 @@ public class DescriptorImpl extends BuildStepDescriptor<Publisher> {
     private boolean ssl;
     private boolean smartNotify;
     private boolean sound;
+    private boolean asyncNotify;
+    private int asyncQueueCapacity = NotificationQueue.DEFAULT_CAPACITY;
+    private int asyncMessageTimeout = NotificationQueue.DEFAULT_MESSAGE_TIMEOUT;
+    private NotificationQueue.OverflowPolicy asyncOverflowPolicy = NotificationQueue.OverflowPolicy.DROP_OLDEST;
+    private int coalesceWindow;
+    private boolean durableOutbox;
+    private int breakerFailureRate = CircuitBreaker.DEFAULT_FAILURE_RATE_THRESHOLD;
+    private int breakerCoolDown = CircuitBreaker.DEFAULT_COOL_DOWN;
+    private boolean transitionsOnly;
+    private int repeatedFailureLimit;
+    private int notificationInterval;
+    private String baseUrl;
+    private boolean nonBlockingTransport;
+    private int maxInFlightPerHost = NioTransport.DEFAULT_MAX_IN_FLIGHT_PER_HOST;
+    private boolean roomSessions;
+    private List<Account> accounts;
+    private String commandRooms;
+    private boolean chatBuilds;
+    private String chatUser;
     private static final Logger LOGGER = Logger.getLogger(DescriptorImpl.class.getName());
 
     public DescriptorImpl() {
         super(CampfireNotifier.class);
-        load();
+        // outside Jenkins, e.g. in the load harness, there is no configuration to load, and the
+        // harness sets up the transport itself
+        if (Hudson.getInstance() != null) {
+            load();
+            Campfire.configure(baseUrl, createTransport());
+        }
+        CircuitBreaker.configure(breakerFailureRate, breakerCoolDown);
     }
 
     public String getDefaultNotificationTemplate() {
@@ -68,10 +104,249 @@ public class DescriptorImpl extends BuildStepDescriptor<Publisher> {
         return sound;
     }
 
+    public boolean getAsyncNotify() {
+        return asyncNotify;
+    }
+
+    public int getAsyncQueueCapacity() {
+        return asyncQueueCapacity;
+    }
+
+    public int getAsyncMessageTimeout() {
+        return asyncMessageTimeout;
+    }
+
+    public NotificationQueue.OverflowPolicy getAsyncOverflowPolicy() {
+        return asyncOverflowPolicy;
+    }
+
+    public NotificationQueue.OverflowPolicy[] getOverflowPolicies() {
+        return NotificationQueue.OverflowPolicy.values();
+    }
+
+    public int getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    public boolean getDurableOutbox() {
+        return durableOutbox;
+    }
+
+    public boolean getRoomSessions() {
+        return roomSessions;
+    }
+
+    public int getBreakerFailureRate() {
+        return breakerFailureRate;
+    }
+
+    public int getBreakerCoolDown() {
+        return breakerCoolDown;
+    }
+
+    public boolean getTransitionsOnly() {
+        return transitionsOnly;
+    }
+
+    public int getRepeatedFailureLimit() {
+        return repeatedFailureLimit;
+    }
+
+    public int getNotificationInterval() {
+        return notificationInterval;
+    }
+
+    /**
+     * URL to send requests to instead of Campfire, blank for Campfire itself.
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public boolean getNonBlockingTransport() {
+        return nonBlockingTransport;
+    }
+
+    public int getMaxInFlightPerHost() {
+        return maxInFlightPerHost;
+    }
+
+    /**
+     * Further accounts that jobs can notify rooms on, besides the global account.
+     */
+    public List<Account> getAccounts() {
+        return accounts == null ? new ArrayList<Account>() : accounts;
+    }
+
+    /**
+     * @return the further account with the given name, or null if there is none
+     */
+    public Account getAccount(String name) {
+        for (Account account : getAccounts()) {
+            if (account.getName().equals(name)) {
+                return account;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rooms on the global account to listen to for chat commands, one per line.
+     */
+    public String getCommandRooms() {
+        return commandRooms;
+    }
+
+    public boolean getChatBuilds() {
+        return chatBuilds;
+    }
+
+    /**
+     * The Jenkins user whose permissions chat commands run with, blank for an anonymous user.
+     */
+    public String getChatUser() {
+        return chatUser;
+    }
+
+    /**
+     * The rooms to listen to for chat commands, as currently configured.
+     */
+    List<Room> getCommandRoomList() {
+        List<Room> rooms = new ArrayList<Room>();
+        if (commandRooms == null || subdomain == null || token == null) {
+            return rooms;
+        }
+        Campfire campfire = Campfire.forAccount(subdomain, token, ssl);
+        for (String line : commandRooms.split("[\\r\\n]+")) {
+            if (line.trim().length() > 0) {
+                rooms.add(new Room(campfire, line.trim(), null));
+            }
+        }
+        return rooms;
+    }
+
+    private Transport createTransport() {
+        if (!nonBlockingTransport) {
+            return new CommonsHttpTransport();
+        }
+        NioTransport nio = NioTransport.getInstance();
+        nio.setMaxInFlightPerHost(maxInFlightPerHost);
+        return nio;
+    }
+
+    public NotificationRules getNotificationRules() {
+        return new NotificationRules(transitionsOnly, repeatedFailureLimit, notificationInterval);
+    }
+
+    public List<CircuitBreaker> getCircuitBreakers() {
+        return CircuitBreaker.getAll();
+    }
+
     public boolean isApplicable(Class<? extends AbstractProject> aClass) {
         return true;
     }
 
+    /**
+     * Room names for the room box of the configuration forms. The rooms come from the room cache,
+     * so filling the box for many forms costs at most one request to Campfire per account, and
+     * the form isn't held up when Campfire is slow to answer.
+     */
+    public ComboBoxModel doFillRoomItems(@QueryParameter String campfireSubdomain, @QueryParameter String campfireToken) {
+        Hudson.getInstance().checkPermission(Item.CONFIGURE);
+        ComboBoxModel names = new ComboBoxModel();
+        Campfire campfire = formAccount(campfireSubdomain, campfireToken);
+        if (campfire == null) {
+            return names;
+        }
+        try {
+            Map<String, String> rooms = RoomCache.getInstance().getRooms(campfire, RoomCache.FORM_TIMEOUT);
+            if (rooms != null) {
+                names.addAll(rooms.keySet());
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Couldn't list campfire rooms for subdomain " + campfire.getSubdomain(), e);
+        }
+        return names;
+    }
+
+    public FormValidation doCheckRoom(@QueryParameter String value, @QueryParameter String campfireSubdomain,
+            @QueryParameter String campfireToken) {
+        Hudson.getInstance().checkPermission(Item.CONFIGURE);
+        Campfire campfire = formAccount(campfireSubdomain, campfireToken);
+        if (value == null || value.trim().length() == 0 || campfire == null) {
+            return FormValidation.ok();
+        }
+        Map<String, String> rooms;
+        try {
+            rooms = RoomCache.getInstance().getRooms(campfire, RoomCache.FORM_TIMEOUT);
+        } catch (RuntimeException e) {
+            return FormValidation.warning("Couldn't list the rooms of this account: " + e.getMessage());
+        }
+        if (rooms == null) {
+            return FormValidation.warning("Campfire hasn't answered yet, so the room couldn't be checked");
+        }
+        if (!rooms.containsKey(value.trim())) {
+            return FormValidation.error("There is no room named '" + value.trim() + "' that this token can see");
+        }
+        return FormValidation.ok();
+    }
+
+    public FormValidation doCheckToken(@QueryParameter String value, @QueryParameter String campfireSubdomain) {
+        Hudson.getInstance().checkPermission(Item.CONFIGURE);
+        Campfire campfire = formAccount(campfireSubdomain, value);
+        if (value == null || value.trim().length() == 0 || campfire == null) {
+            return FormValidation.ok();
+        }
+        try {
+            if (RoomCache.getInstance().getRooms(campfire, RoomCache.FORM_TIMEOUT) == null) {
+                return FormValidation.warning("Campfire hasn't answered yet, so the token couldn't be checked");
+            }
+        } catch (Campfire.UnexpectedResponseException e) {
+            if (e.getStatus() == 401) {
+                return FormValidation.error("Campfire didn't accept this token");
+            }
+            return FormValidation.warning("Couldn't check the token: " + e.getMessage());
+        } catch (RuntimeException e) {
+            return FormValidation.warning("Couldn't reach Campfire to check the token: " + e.getMessage());
+        }
+        return FormValidation.ok();
+    }
+
+    public FormValidation doCheckSubdomain(@QueryParameter String value) {
+        if (value == null || value.trim().length() == 0 || SUBDOMAIN.matcher(value.trim()).matches()) {
+            return FormValidation.ok();
+        }
+        return FormValidation.error("Expected just the subdomain, e.g. 'example' for example.campfirenow.com");
+    }
+
+    public FormValidation doCheckNotificationTemplate(@QueryParameter String value) {
+        if (value == null || value.trim().length() == 0) {
+            return FormValidation.ok();
+        }
+        try {
+            NotificationTemplate.compile(value);
+        } catch (IllegalArgumentException e) {
+            return FormValidation.error(e.getMessage() + ". Write %% for a literal %.");
+        }
+        return FormValidation.ok();
+    }
+
+    /**
+     * The account a configuration form refers to, where blank fields fall back to the global
+     * settings.
+     *
+     * @return the account, or null if the form and the global settings don't name one
+     */
+    private Campfire formAccount(String formSubdomain, String formToken) {
+        String accountSubdomain = formSubdomain == null || formSubdomain.trim().length() == 0 ? subdomain : formSubdomain.trim();
+        String accountToken = formToken == null || formToken.trim().length() == 0 ? token : formToken.trim();
+        if (accountSubdomain == null || accountSubdomain.length() == 0 || accountToken == null || accountToken.length() == 0
+                || !SUBDOMAIN.matcher(accountSubdomain).matches()) {
+            return null;
+        }
+        return Campfire.forAccount(accountSubdomain, accountToken, ssl);
+    }
+
     /**
      * @see hudson.model.Descriptor#newInstance(org.kohsuke.stapler.StaplerRequest)
      */
@@ -80,6 +355,7 @@ public class DescriptorImpl extends BuildStepDescriptor<Publisher> {
         String projectSubdomain = req.getParameter("campfireSubdomain");
         String projectToken = req.getParameter("campfireToken");
         String projectRoom = req.getParameter("campfireRoom");
+        String projectAdditionalRooms = req.getParameter("campfireAdditionalRooms");
         String projectNotificationTemplate = req.getParameter("campfireNotificationTemplate");
         if ( projectRoom == null || projectRoom.trim().length() == 0 ) {
             projectRoom = room;
@@ -94,8 +370,14 @@ public class DescriptorImpl extends BuildStepDescriptor<Publisher> {
             projectNotificationTemplate = notificationTemplate;
         }
         try {
-            return new CampfireNotifier(projectSubdomain, projectToken, projectRoom, hudsonUrl,
-                projectNotificationTemplate, ssl, smartNotify, sound);
+            CampfireNotifier notifier = new CampfireNotifier(projectSubdomain, projectToken, projectRoom, projectAdditionalRooms,
+                hudsonUrl, projectNotificationTemplate, ssl, smartNotify, sound);
+            notifier.setRules(new NotificationRules(parseOptionalBoolean(req.getParameter("campfireTransitionsOnly")),
+                parseOptionalInt(req.getParameter("campfireRepeatedFailureLimit")),
+                parseOptionalInt(req.getParameter("campfireNotificationInterval"))));
+            notifier.setUploadArtifacts(req.getParameter("campfireUploadArtifacts"));
+            notifier.validateRoom();
+            return notifier;
         } catch (Exception e) {
             String message = "Failed to initialize campfire notifier - check your campfire notifier configuration settings: " + e.getMessage();
             LOGGER.log(Level.WARNING, message, e);
@@ -105,31 +387,149 @@ public class DescriptorImpl extends BuildStepDescriptor<Publisher> {
 
     @Override
     public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
-        subdomain = req.getParameter("campfireSubdomain");
-        token = req.getParameter("campfireToken");
-        room = req.getParameter("campfireRoom");
-        hudsonUrl = req.getParameter("campfireHudsonUrl");
-        if ( hudsonUrl != null && !hudsonUrl.endsWith("/") ) {
-            hudsonUrl = hudsonUrl + "/";
-        }
-        notificationTemplate = req.getParameter("campfireNotificationTemplate");
-        if (notificationTemplate == null || notificationTemplate.trim().length() == 0) {
-            notificationTemplate = DEFAULT_NOTIFICATION_TEMPLATE;
-        }
-        ssl = req.getParameter("campfireSsl") != null;
-        smartNotify = req.getParameter("campfireSmartNotify") != null;
-        sound = req.getParameter("campfireSound") != null;
+        // everything is parsed and checked before any setting changes, so that a rejected form
+        // leaves the transport, the accounts and the listeners as they were
+        String newSubdomain = req.getParameter("campfireSubdomain");
+        String newToken = req.getParameter("campfireToken");
+        String newRoom = req.getParameter("campfireRoom");
+        String newHudsonUrl = req.getParameter("campfireHudsonUrl");
+        if ( newHudsonUrl != null && !newHudsonUrl.endsWith("/") ) {
+            newHudsonUrl = newHudsonUrl + "/";
+        }
+        String newNotificationTemplate = req.getParameter("campfireNotificationTemplate");
+        if (newNotificationTemplate == null || newNotificationTemplate.trim().length() == 0) {
+            newNotificationTemplate = DEFAULT_NOTIFICATION_TEMPLATE;
+        }
+        boolean newSsl = req.getParameter("campfireSsl") != null;
+        boolean newSmartNotify = req.getParameter("campfireSmartNotify") != null;
+        boolean newSound = req.getParameter("campfireSound") != null;
+        List<Account> newAccounts = parseAccounts(req.getParameterValues("campfireAccountName"),
+            req.getParameterValues("campfireAccountSubdomain"), req.getParameterValues("campfireAccountToken"));
+        NotificationQueue.OverflowPolicy newOverflowPolicy = asyncOverflowPolicy;
+        String overflowPolicy = req.getParameter("campfireAsyncOverflowPolicy");
+        if (overflowPolicy != null && overflowPolicy.trim().length() > 0) {
+            try {
+                newOverflowPolicy = NotificationQueue.OverflowPolicy.valueOf(overflowPolicy.trim());
+            } catch (IllegalArgumentException e) {
+                throw new FormException("Unknown campfire queue overflow policy '" + overflowPolicy.trim() + "'", "campfireAsyncOverflowPolicy");
+            }
+        }
         try {
-            new CampfireNotifier(subdomain, token, room, hudsonUrl, notificationTemplate, ssl, smartNotify, sound);
+            // checked through the transport and base URL currently in use
+            new CampfireNotifier(newSubdomain, newToken, newRoom, newHudsonUrl, newNotificationTemplate, newSsl, newSmartNotify,
+                newSound).validateRoom();
         } catch (Exception e) {
             String message = "Failed to initialize campfire notifier - check your global campfire notifier configuration settings: " + e.getMessage();
             LOGGER.log(Level.WARNING, message, e);
             throw new FormException(message, e, "");
         }
+
+        subdomain = newSubdomain;
+        token = newToken;
+        room = newRoom;
+        hudsonUrl = newHudsonUrl;
+        notificationTemplate = newNotificationTemplate;
+        ssl = newSsl;
+        smartNotify = newSmartNotify;
+        sound = newSound;
+        accounts = newAccounts;
+        baseUrl = req.getParameter("campfireBaseUrl");
+        nonBlockingTransport = req.getParameter("campfireNonBlockingTransport") != null;
+        maxInFlightPerHost = parsePositiveInt(req.getParameter("campfireMaxInFlightPerHost"), NioTransport.DEFAULT_MAX_IN_FLIGHT_PER_HOST);
+        roomSessions = req.getParameter("campfireRoomSessions") != null;
+        asyncNotify = req.getParameter("campfireAsyncNotify") != null;
+        asyncQueueCapacity = parsePositiveInt(req.getParameter("campfireAsyncQueueCapacity"), NotificationQueue.DEFAULT_CAPACITY);
+        asyncMessageTimeout = parsePositiveInt(req.getParameter("campfireAsyncMessageTimeout"), NotificationQueue.DEFAULT_MESSAGE_TIMEOUT);
+        asyncOverflowPolicy = newOverflowPolicy;
+        commandRooms = req.getParameter("campfireCommandRooms");
+        chatBuilds = req.getParameter("campfireChatBuilds") != null;
+        chatUser = req.getParameter("campfireChatUser");
+        durableOutbox = req.getParameter("campfireDurableOutbox") != null;
+        breakerFailureRate = Math.min(100, parsePositiveInt(req.getParameter("campfireBreakerFailureRate"), CircuitBreaker.DEFAULT_FAILURE_RATE_THRESHOLD));
+        breakerCoolDown = parsePositiveInt(req.getParameter("campfireBreakerCoolDown"), CircuitBreaker.DEFAULT_COOL_DOWN);
+        coalesceWindow = parsePositiveInt(req.getParameter("campfireCoalesceWindow"), 0);
+        transitionsOnly = req.getParameter("campfireTransitionsOnly") != null;
+        repeatedFailureLimit = parsePositiveInt(req.getParameter("campfireRepeatedFailureLimit"), 0);
+        notificationInterval = parsePositiveInt(req.getParameter("campfireNotificationInterval"), 0);
+
+        Campfire.configure(baseUrl, createTransport());
+        Campfire.clearAccounts();
+        CircuitBreaker.configure(breakerFailureRate, breakerCoolDown);
+        if (asyncNotify) {
+            NotificationQueue.getInstance().configure(asyncQueueCapacity,
+                TimeUnit.SECONDS.toMillis(asyncMessageTimeout), asyncOverflowPolicy);
+        }
+        // rooms are looked up on the accounts as now configured
+        RoomListener.getInstance().watch(getCommandRoomList());
         save();
         return super.configure(req, json);
     }
 
+    private static List<Account> parseAccounts(String[] names, String[] subdomains, String[] tokens) throws FormException {
+        List<Account> parsed = new ArrayList<Account>();
+        if (names == null) {
+            return parsed;
+        }
+        if (subdomains == null || tokens == null || subdomains.length != names.length || tokens.length != names.length) {
+            throw new FormException("Every additional campfire account needs a name, a subdomain and an API token", "campfireAccountName");
+        }
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim();
+            String accountSubdomain = subdomains[i].trim();
+            String accountToken = tokens[i].trim();
+            if (name.length() == 0 || accountSubdomain.length() == 0 || accountToken.length() == 0) {
+                throw new FormException("Every additional campfire account needs a name, a subdomain and an API token", "campfireAccountName");
+            }
+            if (name.indexOf('@') >= 0) {
+                throw new FormException("Campfire account names can't contain '@', but got '" + name + "'", "campfireAccountName");
+            }
+            if (!SUBDOMAIN.matcher(accountSubdomain).matches()) {
+                throw new FormException("Expected just the subdomain of campfire account '" + name + "', e.g. 'example' for example.campfirenow.com",
+                    "campfireAccountSubdomain");
+            }
+            for (Account account : parsed) {
+                if (account.getName().equals(name)) {
+                    throw new FormException("There is more than one campfire account named '" + name + "'", "campfireAccountName");
+                }
+            }
+            parsed.add(new Account(name, accountSubdomain, accountToken));
+        }
+        return parsed;
+    }
+
+    private static int parsePositiveInt(String value, int defaultValue) {
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            return parsed > 0 ? parsed : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Parses a per-project override, where blank means "as configured globally".
+     */
+    private static Integer parseOptionalInt(String value) {
+        if (value == null || value.trim().length() == 0) {
+            return null;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Boolean parseOptionalBoolean(String value) {
+        if (value == null || value.trim().length() == 0) {
+            return null;
+        }
+        return Boolean.valueOf(value.trim());
+    }
+
     /**
      * @see hudson.model.Descriptor#getDisplayName()
      */
@@ -0,0 +1,161 @@
+package hudson.plugins.campfire;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Request body for a room message, {@code <message><type>..</type><body>..</body></message>}.
+ * The body is XML-escaped and UTF-8 encoded directly into the request stream through a reusable
+ * per-thread buffer, without building intermediate strings, and its length is computed up front
+ * so that the request can be sent with a Content-Length.
+ */
+public class MessageEntity implements RequestEntity {
+    private static final byte[] PREFIX = ascii("<message><type>");
+    private static final byte[] MIDDLE = ascii("</type><body>");
+    private static final byte[] SUFFIX = ascii("</body></message>");
+    private static final byte[] AMP = ascii("&amp;");
+    private static final byte[] LT = ascii("&lt;");
+    private static final byte[] GT = ascii("&gt;");
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private final String type;
+    private final String body;
+    private final long contentLength;
+
+    public MessageEntity(String type, String body) {
+        this.type = type;
+        this.body = body == null ? "" : body;
+        this.contentLength = PREFIX.length + encodedLength(type) + MIDDLE.length + encodedLength(this.body) + SUFFIX.length;
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public String getContentType() {
+        return "application/xml; charset=UTF-8";
+    }
+
+    public void writeRequest(OutputStream out) throws IOException {
+        byte[] buffer = BUFFER.get();
+        int pos = put(buffer, 0, PREFIX, out);
+        pos = encode(type, buffer, pos, out);
+        pos = put(buffer, pos, MIDDLE, out);
+        pos = encode(body, buffer, pos, out);
+        pos = put(buffer, pos, SUFFIX, out);
+        out.write(buffer, 0, pos);
+    }
+
+    /**
+     * Number of bytes {@link #encode} writes for the given text.
+     */
+    static int encodedLength(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&') {
+                length += AMP.length;
+            } else if (c == '<') {
+                length += LT.length;
+            } else if (c == '>') {
+                length += GT.length;
+            } else if (c < 0x20) {
+                if (c == '\t' || c == '\n' || c == '\r') {
+                    length++;
+                }
+                // other control characters aren't allowed in XML and are dropped
+            } else if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int encode(String text, byte[] buffer, int pos, OutputStream out) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            if (pos > buffer.length - 8) {
+                out.write(buffer, 0, pos);
+                pos = 0;
+            }
+            char c = text.charAt(i);
+            if (c == '&') {
+                pos = copy(AMP, buffer, pos);
+            } else if (c == '<') {
+                pos = copy(LT, buffer, pos);
+            } else if (c == '>') {
+                pos = copy(GT, buffer, pos);
+            } else if (c < 0x20) {
+                if (c == '\t' || c == '\n' || c == '\r') {
+                    buffer[pos++] = (byte) c;
+                }
+            } else if (c < 0x80) {
+                buffer[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[pos++] = (byte) (0xc0 | (c >> 6));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer[pos++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (isSurrogate(c)) {
+                // unpaired surrogate, same replacement String.getBytes would use
+                buffer[pos++] = '?';
+            } else {
+                buffer[pos++] = (byte) (0xe0 | (c >> 12));
+                buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return pos;
+    }
+
+    private static boolean isSurrogate(char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+
+    private static int put(byte[] buffer, int pos, byte[] bytes, OutputStream out) throws IOException {
+        if (pos + bytes.length > buffer.length) {
+            out.write(buffer, 0, pos);
+            pos = 0;
+        }
+        return copy(bytes, buffer, pos);
+    }
+
+    private static int copy(byte[] bytes, byte[] buffer, int pos) {
+        System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+        return pos + bytes.length;
+    }
+
+    private static byte[] ascii(String text) {
+        try {
+            return text.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
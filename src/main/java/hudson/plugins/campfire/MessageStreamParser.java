@@ -0,0 +1,315 @@
+package hudson.plugins.campfire;
+
+import java.io.UnsupportedEncodingException;
+import java.util.logging.Logger;
+
+/**
+ * Splits a room's live message stream, a sequence of JSON objects with whitespace between them for
+ * keep-alives, into messages as the bytes arrive, however they are split across reads. Only the
+ * message type, body and sender are extracted, straight from the bytes, without building a JSON
+ * tree, and the body is only decoded for text messages, so a chat message costs little more than
+ * its body string.
+ */
+class MessageStreamParser {
+    private static final int MAX_MESSAGE_SIZE = Integer.getInteger(MessageStreamParser.class.getName() + ".maxMessageSize", 1024 * 1024);
+    private static final Logger LOGGER = Logger.getLogger(MessageStreamParser.class.getName());
+
+    private static final byte[] TYPE = ascii("type");
+    private static final byte[] BODY = ascii("body");
+    private static final byte[] USER_ID = ascii("user_id");
+    private static final String TEXT_MESSAGE = "TextMessage";
+    private static final byte[] TEXT_MESSAGE_VALUE = ascii("\"" + TEXT_MESSAGE + "\"");
+
+    interface Handler {
+        /**
+         * @param userId the sender, or -1 for messages without one, such as timestamps
+         * @param body the text of a TextMessage, or null for other types of message
+         */
+        void message(long userId, String type, String body);
+    }
+
+    private final Handler handler;
+    // the object being read, reused from one message to the next
+    private byte[] object = new byte[4096];
+    private char[] chars = new char[1024];
+    private int length;
+    private int depth;
+    private boolean inString;
+    private boolean escaped;
+    private boolean skipping;
+
+    MessageStreamParser(Handler handler) {
+        this.handler = handler;
+    }
+
+    void feed(byte[] bytes, int offset, int count) {
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            byte b = bytes[i];
+            if (depth == 0) {
+                // keep-alives and anything else between messages
+                if (b == '{') {
+                    depth = 1;
+                    length = 0;
+                    skipping = false;
+                    append(b);
+                }
+                continue;
+            }
+            append(b);
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if ((b == '}' || b == ']') && --depth == 0) {
+                if (!skipping) {
+                    dispatch();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets any partly read message, e.g. because the stream is being reconnected.
+     */
+    void reset() {
+        depth = 0;
+        length = 0;
+        inString = false;
+        escaped = false;
+        skipping = false;
+    }
+
+    private void append(byte b) {
+        if (skipping) {
+            return;
+        }
+        if (length == object.length) {
+            if (length >= MAX_MESSAGE_SIZE) {
+                // still track its end, so that the stream stays in step
+                LOGGER.warning("Skipping campfire message of more than " + MAX_MESSAGE_SIZE + " bytes");
+                skipping = true;
+                return;
+            }
+            byte[] grown = new byte[Math.min(MAX_MESSAGE_SIZE, length * 2)];
+            System.arraycopy(object, 0, grown, 0, length);
+            object = grown;
+        }
+        object[length++] = b;
+    }
+
+    private void dispatch() {
+        if (object[0] != '{') {
+            return;
+        }
+        long userId = -1;
+        String type = null;
+        int bodyStart = -1;
+        int bodyEnd = -1;
+        int pos = 1;
+        while (true) {
+            pos = skipWhitespace(pos);
+            if (pos >= length || object[pos] == '}') {
+                break;
+            }
+            if (object[pos] == ',') {
+                pos++;
+                continue;
+            }
+            if (object[pos] != '"') {
+                LOGGER.fine("Ignoring malformed campfire message");
+                return;
+            }
+            int keyEnd = endOfString(pos);
+            pos = skipWhitespace(keyEnd + 1);
+            if (pos >= length || object[pos] != ':') {
+                LOGGER.fine("Ignoring malformed campfire message");
+                return;
+            }
+            int value = skipWhitespace(pos + 1);
+            pos = endOfValue(value);
+            if (matches(keyEnd, TYPE)) {
+                type = pos - value == TEXT_MESSAGE_VALUE.length && startsWith(value, TEXT_MESSAGE_VALUE) ? TEXT_MESSAGE : string(value, pos);
+            } else if (matches(keyEnd, BODY)) {
+                bodyStart = value;
+                bodyEnd = pos;
+            } else if (matches(keyEnd, USER_ID)) {
+                userId = number(value, pos);
+            }
+        }
+        if (type != null) {
+            handler.message(userId, type, type == TEXT_MESSAGE && bodyStart >= 0 ? string(bodyStart, bodyEnd) : null);
+        }
+    }
+
+    private int skipWhitespace(int pos) {
+        while (pos < length && (object[pos] == ' ' || object[pos] == '\t' || object[pos] == '\r' || object[pos] == '\n')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * @return the index of the quote closing the string that opens at {@code start}
+     */
+    private int endOfString(int start) {
+        for (int i = start + 1; i < length; i++) {
+            if (object[i] == '\\') {
+                i++;
+            } else if (object[i] == '"') {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return the index just past the value that starts at {@code start}
+     */
+    private int endOfValue(int start) {
+        if (start >= length) {
+            return length;
+        }
+        if (object[start] == '"') {
+            return endOfString(start) + 1;
+        }
+        int nesting = 0;
+        for (int i = start; i < length; i++) {
+            byte b = object[i];
+            if (b == '"') {
+                i = endOfString(i);
+            } else if (b == '{' || b == '[') {
+                nesting++;
+            } else if (b == '}' || b == ']') {
+                if (nesting == 0) {
+                    return i;
+                }
+                if (--nesting == 0) {
+                    return i + 1;
+                }
+            } else if (b == ',' && nesting == 0) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private boolean matches(int keyEnd, byte[] key) {
+        int start = keyEnd - key.length;
+        return start >= 1 && object[start - 1] == '"' && startsWith(start, key);
+    }
+
+    private boolean startsWith(int start, byte[] bytes) {
+        if (start + bytes.length > length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (object[start + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a JSON string straight from its UTF-8 bytes, escapes included, into a reused buffer.
+     */
+    private String string(int start, int end) {
+        if (start >= end || object[start] != '"') {
+            // null, or not a string
+            return null;
+        }
+        int to = end - 1;
+        if (chars.length < to - start) {
+            chars = new char[Math.max(chars.length * 2, to - start)];
+        }
+        int count = 0;
+        for (int i = start + 1; i < to; i++) {
+            int b = object[i] & 0xff;
+            if (b == '\\') {
+                i++;
+                int escape = i < to ? object[i] : '\\';
+                switch (escape) {
+                    case 'n': chars[count++] = '\n'; break;
+                    case 'r': chars[count++] = '\r'; break;
+                    case 't': chars[count++] = '\t'; break;
+                    case 'b': chars[count++] = '\b'; break;
+                    case 'f': chars[count++] = '\f'; break;
+                    case 'u':
+                        int code = i + 4 < to ? hex(i + 1) : -1;
+                        chars[count++] = code < 0 ? '\ufffd' : (char) code;
+                        i += 4;
+                        break;
+                    default: chars[count++] = (char) escape;
+                }
+            } else if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else {
+                // multi-byte sequences; anything malformed becomes U+FFFD
+                int extra = b >= 0xf0 ? 3 : b >= 0xe0 ? 2 : b >= 0xc0 ? 1 : -1;
+                int code = extra == 3 ? b & 0x07 : extra == 2 ? b & 0x0f : b & 0x1f;
+                for (int k = 1; k <= extra; k++) {
+                    if (i + k >= to || (object[i + k] & 0xc0) != 0x80) {
+                        extra = -1;
+                        break;
+                    }
+                    code = (code << 6) | (object[i + k] & 0x3f);
+                }
+                if (extra < 0) {
+                    chars[count++] = '\ufffd';
+                } else if (code >= 0x10000) {
+                    chars[count++] = (char) (0xd800 + ((code - 0x10000) >> 10));
+                    chars[count++] = (char) (0xdc00 + ((code - 0x10000) & 0x3ff));
+                    i += extra;
+                } else {
+                    chars[count++] = (char) code;
+                    i += extra;
+                }
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private int hex(int start) {
+        int code = 0;
+        for (int i = start; i < start + 4; i++) {
+            int digit = Character.digit(object[i], 16);
+            if (digit < 0) {
+                return -1;
+            }
+            code = code * 16 + digit;
+        }
+        return code;
+    }
+
+    private long number(int start, int end) {
+        long value = 0;
+        boolean digits = false;
+        for (int i = start; i < end; i++) {
+            byte b = object[i];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                digits = true;
+            } else if (b != ' ') {
+                break;
+            }
+        }
+        return digits ? value : -1;
+    }
+
+    private static byte[] ascii(String text) {
+        try {
+            return text.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
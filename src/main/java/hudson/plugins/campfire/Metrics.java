@@ -0,0 +1,194 @@
+package hudson.plugins.campfire;
+
+import net.sf.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and outcome statistics for one kind of operation against a Campfire account, or against
+ * a single room. Everything is recorded with atomic counters, so instrumenting the notification
+ * path adds no locking.
+ */
+public class Metrics {
+    public enum Operation {
+        /** A build notification to one room, from the build completing until the message has been sent. */
+        PUBLISH,
+        /** A message sent to a room, including retries. */
+        SPEAK,
+        /** A single POST attempt. */
+        POST,
+        /** A single GET request. */
+        GET,
+        /** Fetching and parsing the room list. */
+        GET_ROOMS,
+        /** A file uploaded to a room, including retries. */
+        UPLOAD
+    }
+
+    private static final ConcurrentMap<String, Metrics> METRICS = new ConcurrentHashMap<String, Metrics>();
+
+    private final String subdomain;
+    private final String room;
+    private final Operation operation;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final ConcurrentMap<Integer, AtomicLong> statuses = new ConcurrentHashMap<Integer, AtomicLong>();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    private Metrics(String subdomain, String room, Operation operation) {
+        this.subdomain = subdomain;
+        this.room = room;
+        this.operation = operation;
+    }
+
+    public static Metrics forAccount(String subdomain, Operation operation) {
+        return forRoom(subdomain, null, operation);
+    }
+
+    public static Metrics forRoom(String subdomain, String room, Operation operation) {
+        String key = subdomain + "|" + (room == null ? "" : room) + "|" + operation;
+        Metrics metrics = METRICS.get(key);
+        if (metrics == null) {
+            Metrics created = new Metrics(subdomain, room, operation);
+            metrics = METRICS.putIfAbsent(key, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * All metrics recorded so far, ordered by subdomain, room and operation.
+     */
+    public static List<Metrics> getAll() {
+        List<Metrics> all = new ArrayList<Metrics>(METRICS.values());
+        Collections.sort(all, new Comparator<Metrics>() {
+            public int compare(Metrics a, Metrics b) {
+                int result = String.valueOf(a.subdomain).compareTo(String.valueOf(b.subdomain));
+                if (result == 0) {
+                    result = (a.room == null ? "" : a.room).compareTo(b.room == null ? "" : b.room);
+                }
+                if (result == 0) {
+                    result = a.operation.compareTo(b.operation);
+                }
+                return result;
+            }
+        });
+        return all;
+    }
+
+    /**
+     * Records an HTTP exchange that completed with the given status code.
+     *
+     * @param start {@link System#nanoTime()} when the operation started
+     */
+    public void record(long start, int status) {
+        AtomicLong counter = statuses.get(status);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = statuses.putIfAbsent(status, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+        if (status >= 200 && status < 300) {
+            recordSuccess(start);
+        } else {
+            recordFailure(start);
+        }
+    }
+
+    public void recordSuccess(long start) {
+        succeeded.incrementAndGet();
+        latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    /**
+     * Records a failed operation, either an error response or an exception.
+     */
+    public void recordFailure(long start) {
+        failed.incrementAndGet();
+        latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    public void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    public String getSubdomain() {
+        return subdomain;
+    }
+
+    /**
+     * Room name, or null for operations on the account as a whole.
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Number of responses per HTTP status code, ordered by status.
+     */
+    public Map<Integer, Long> getStatuses() {
+        Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, AtomicLong> entry : statuses.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject statusCounts = new JSONObject();
+        for (Map.Entry<Integer, Long> entry : getStatuses().entrySet()) {
+            statusCounts.element(String.valueOf(entry.getKey()), entry.getValue().longValue());
+        }
+        JSONObject latencyMicros = new JSONObject()
+            .element("count", latency.getCount())
+            .element("mean", latency.getMean())
+            .element("p50", latency.getPercentile(50))
+            .element("p90", latency.getPercentile(90))
+            .element("p99", latency.getPercentile(99))
+            .element("max", latency.getMax());
+        return new JSONObject()
+            .element("subdomain", subdomain)
+            .element("room", room == null ? "" : room)
+            .element("operation", operation.name())
+            .element("succeeded", getSucceeded())
+            .element("failed", getFailed())
+            .element("retries", getRetries())
+            .element("statuses", statusCounts)
+            .element("latencyMicros", latencyMicros);
+    }
+}
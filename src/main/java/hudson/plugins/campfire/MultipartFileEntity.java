@@ -0,0 +1,85 @@
+package hudson.plugins.campfire;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLConnection;
+import java.util.Random;
+
+/**
+ * Request body for a file upload, a multipart/form-data form with the file as its only field. The
+ * file is copied into the request stream through a fixed-size buffer, so uploading it takes the
+ * same memory whatever its size, and its length is known up front for the Content-Length.
+ */
+public class MultipartFileEntity implements RequestEntity {
+    private static final int BUFFER_SIZE = 8192;
+    private static final Random RANDOM = new Random();
+
+    private final File file;
+    private final long fileLength;
+    private final String boundary;
+    private final byte[] head;
+    private final byte[] tail;
+
+    public MultipartFileEntity(String field, File file) {
+        this.file = file;
+        this.fileLength = file.length();
+        this.boundary = "----CampfireBoundary" + Long.toHexString(RANDOM.nextLong()) + Long.toHexString(RANDOM.nextLong());
+        String contentType = URLConnection.guessContentTypeFromName(file.getName());
+        this.head = utf8("--" + boundary + "\r\n"
+            + "Content-Disposition: form-data; name=\"" + field + "\"; filename=\"" + quote(file.getName()) + "\"\r\n"
+            + "Content-Type: " + (contentType == null ? "application/octet-stream" : contentType) + "\r\n\r\n");
+        this.tail = utf8("\r\n--" + boundary + "--\r\n");
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public long getContentLength() {
+        return head.length + fileLength + tail.length;
+    }
+
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    public void writeRequest(OutputStream out) throws IOException {
+        out.write(head);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(file);
+        try {
+            long remaining = fileLength;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    // the Content-Length has already been sent, so the request can't be completed
+                    throw new EOFException(file + " became shorter while it was being uploaded");
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+        out.write(tail);
+    }
+
+    private static String quote(String name) {
+        return name.replace("\"", "%22").replace("\r", "").replace("\n", "");
+    }
+
+    private static byte[] utf8(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,872 @@
+package hudson.plugins.campfire;
+
+import hudson.model.Hudson;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking HTTP/1.1 transport. A single selector thread drives every connection, so any number
+ * of rooms can have requests outstanding without a thread each. Connections are kept alive and
+ * reused per host, and at most {@link #getMaxInFlightPerHost()} requests are sent to a host at
+ * once; the rest wait in a queue for a connection to free up.
+ *
+ * <p>Requests submitted with a session key, such as a busy room's messages, instead share one
+ * connection kept for that key, and are pipelined on it: each is written as soon as it is
+ * submitted, up to {@code pipelineDepth} ahead of the responses, which come back in order.
+ *
+ * <p>Host names are looked up on a background thread, and the addresses kept for a minute, so
+ * that submitting a request never waits on DNS.
+ *
+ * <p>HTTPS is handled on the selector thread too, through {@link TlsSession}. Requests through the
+ * Jenkins proxy are handed to {@link CommonsHttpTransport} on a small pool of threads, as there is
+ * no proxy support here, and so are requests with large bodies, which would otherwise have to be
+ * held in memory while they are sent.
+ */
+public class NioTransport implements AsyncTransport {
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_HOST = 16;
+
+    private static final int CONNECT_TIMEOUT = Integer.getInteger(NioTransport.class.getName() + ".connectTimeout", 10000);
+    private static final int RESPONSE_TIMEOUT = Integer.getInteger(NioTransport.class.getName() + ".responseTimeout", 30000);
+    private static final long IDLE_TIMEOUT = Long.getLong(NioTransport.class.getName() + ".idleTimeout", 60000L);
+    private static final int MAX_RESPONSE_SIZE = Integer.getInteger(NioTransport.class.getName() + ".maxResponseSize", 16 * 1024 * 1024);
+    private static final long MAX_BUFFERED_BODY = Long.getLong(NioTransport.class.getName() + ".maxBufferedBody", 1024 * 1024L);
+    private static final int FALLBACK_THREADS = Integer.getInteger(NioTransport.class.getName() + ".fallbackThreads", 8);
+    private static final long ADDRESS_TTL = Long.getLong(NioTransport.class.getName() + ".addressTtl", 60000L);
+    private static final int PIPELINE_DEPTH = Math.max(1, Integer.getInteger(NioTransport.class.getName() + ".pipelineDepth", 8));
+    private static final ByteBuffer NOTHING = ByteBuffer.allocate(0);
+    private static final Logger LOGGER = Logger.getLogger(NioTransport.class.getName());
+
+    private static NioTransport instance;
+
+    private final Transport blocking = new CommonsHttpTransport();
+    private final Queue<Exchange> submitted = new ConcurrentLinkedQueue<Exchange>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int maxInFlightPerHost;
+    private volatile boolean running = true;
+    private Selector selector;
+    private Thread thread;
+    private ExecutorService fallback;
+    private ExecutorService resolver;
+    private final ConcurrentMap<String, ResolvedAddress> addresses = new ConcurrentHashMap<String, ResolvedAddress>();
+
+    // only touched by the selector thread
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+
+    public NioTransport(int maxInFlightPerHost) {
+        setMaxInFlightPerHost(maxInFlightPerHost);
+    }
+
+    /**
+     * Returns the transport shared by every account, so that there is only ever one selector thread.
+     */
+    public static synchronized NioTransport getInstance() {
+        if (instance == null) {
+            instance = new NioTransport(DEFAULT_MAX_IN_FLIGHT_PER_HOST);
+        }
+        return instance;
+    }
+
+    public int getMaxInFlightPerHost() {
+        return maxInFlightPerHost;
+    }
+
+    public void setMaxInFlightPerHost(int max) {
+        maxInFlightPerHost = Math.max(1, max);
+        Selector current = selector;
+        if (current != null) {
+            // queued requests may now be allowed through
+            current.wakeup();
+        }
+    }
+
+    /**
+     * Number of requests sent and not yet answered, across all hosts.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Synchronous adapter for blocking callers: submits the request and waits for its response.
+     */
+    public Response execute(Campfire campfire, String method, String url, RequestEntity body) throws IOException {
+        CampfireFuture<Response> future = submit(campfire, method, url, body, null);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw (IOException) new InterruptedIOException("Interrupted waiting for campfire response").initCause(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (IOException) new IOException("Campfire request failed: " + cause).initCause(cause);
+        }
+    }
+
+    public CampfireFuture<Response> submit(Campfire campfire, String method, String url, RequestEntity body) {
+        return submit(campfire, method, url, body, null);
+    }
+
+    public CampfireFuture<Response> submit(Campfire campfire, String method, String url, RequestEntity body, String session) {
+        URL target;
+        try {
+            target = new URL(url);
+        } catch (MalformedURLException e) {
+            return CampfireFuture.failed(e);
+        }
+        // large bodies such as uploads are streamed by the blocking transport rather than buffered here
+        boolean secure = "https".equals(target.getProtocol());
+        if ((!secure && !"http".equals(target.getProtocol())) || isProxied()
+                || (body != null && (body.getContentLength() < 0 || body.getContentLength() > MAX_BUFFERED_BODY))) {
+            return fallback(campfire, method, url, body);
+        }
+
+        final Exchange exchange;
+        final int port = target.getPort() < 0 ? target.getDefaultPort() : target.getPort();
+        try {
+            exchange = new Exchange(target.getProtocol() + "://" + target.getHost() + ":" + port, target.getHost(),
+                port, secure, encode(campfire, method, target, body), session);
+            start();
+        } catch (IOException e) {
+            return CampfireFuture.failed(e);
+        }
+        exchange.address = getAddress(exchange.hostName, port);
+        if (exchange.address != null) {
+            enqueue(exchange);
+        } else {
+            getResolver().execute(new Runnable() {
+                public void run() {
+                    try {
+                        exchange.address = resolve(exchange.hostName, port);
+                        enqueue(exchange);
+                    } catch (IOException e) {
+                        exchange.future.fail(e);
+                    }
+                }
+            });
+        }
+        return exchange.future;
+    }
+
+    private void enqueue(Exchange exchange) {
+        submitted.add(exchange);
+        selector.wakeup();
+    }
+
+    /**
+     * @return the address the host was last looked up at, or null if it hasn't been looked up recently
+     */
+    private InetSocketAddress getAddress(String host, int port) {
+        ResolvedAddress resolved = addresses.get(host + ":" + port);
+        if (resolved == null || System.currentTimeMillis() - resolved.resolvedAt > ADDRESS_TTL) {
+            return null;
+        }
+        return resolved.address;
+    }
+
+    /**
+     * Looks the host up, unless a lookup queued before this one already has. Blocks, so it only runs
+     * on the resolver thread.
+     */
+    private InetSocketAddress resolve(String host, int port) throws UnknownHostException {
+        InetSocketAddress address = getAddress(host, port);
+        if (address == null) {
+            address = new InetSocketAddress(host, port);
+            if (address.isUnresolved()) {
+                throw new UnknownHostException("Unknown campfire host " + host);
+            }
+            addresses.put(host + ":" + port, new ResolvedAddress(address));
+        }
+        return address;
+    }
+
+    /**
+     * Stops the selector thread, failing any requests still outstanding.
+     */
+    public synchronized void shutdown() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (fallback != null) {
+            fallback.shutdown();
+        }
+        if (resolver != null) {
+            resolver.shutdown();
+        }
+    }
+
+    private static boolean isProxied() {
+        Hudson hudson = Hudson.getInstance();
+        return hudson != null && hudson.proxy != null;
+    }
+
+    private static byte[] encode(Campfire campfire, String method, URL target, RequestEntity body) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        if (body != null) {
+            body.writeRequest(content);
+        }
+        StringBuilder head = new StringBuilder(256);
+        head.append(method).append(' ').append(target.getFile().length() == 0 ? "/" : target.getFile()).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(target.getHost());
+        if (target.getPort() >= 0) {
+            head.append(':').append(target.getPort());
+        }
+        head.append("\r\n");
+        head.append("Authorization: Basic ")
+            .append(new String(Base64.encodeBase64((campfire.getToken() + ":x").getBytes("UTF-8")), "US-ASCII")).append("\r\n");
+        head.append("User-Agent: ").append(ConnectionPool.USER_AGENT).append("\r\n");
+        head.append("Content-Type: ").append(body == null ? "application/xml" : body.getContentType()).append("\r\n");
+        if (body != null) {
+            head.append("Content-Length: ").append(content.size()).append("\r\n");
+        }
+        head.append("\r\n");
+
+        ByteArrayOutputStream request = new ByteArrayOutputStream(head.length() + content.size());
+        request.write(head.toString().getBytes("UTF-8"));
+        content.writeTo(request);
+        return request.toByteArray();
+    }
+
+    private synchronized void start() throws IOException {
+        if (!running) {
+            throw new IOException("Campfire NIO transport has been shut down");
+        }
+        if (thread == null) {
+            selector = Selector.open();
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    loop();
+                }
+            }, "Campfire NIO selector");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private synchronized ExecutorService getFallback() {
+        if (fallback == null) {
+            fallback = Executors.newFixedThreadPool(FALLBACK_THREADS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Campfire NIO fallback #" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return fallback;
+    }
+
+    private synchronized ExecutorService getResolver() {
+        if (resolver == null) {
+            resolver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Campfire NIO resolver");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return resolver;
+    }
+
+    private CampfireFuture<Response> fallback(final Campfire campfire, final String method, final String url, final RequestEntity body) {
+        final CampfireFuture<Response> future = new CampfireFuture<Response>();
+        getFallback().execute(new Runnable() {
+            public void run() {
+                try {
+                    final Response response = blocking.execute(campfire, method, url, body);
+                    byte[] content;
+                    try {
+                        content = readFully(response.getBody());
+                    } finally {
+                        response.close();
+                    }
+                    future.set(new BufferedResponse(response.getStatus(), content) {
+                        public String getHeader(String name) {
+                            return response.getHeader(name);
+                        }
+                    });
+                } catch (IOException e) {
+                    future.fail(e);
+                } catch (RuntimeException e) {
+                    future.fail(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (in != null) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                selector.select(1000);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ((Connection) key.attachment()).ready(key);
+                }
+                Exchange exchange;
+                while ((exchange = submitted.poll()) != null) {
+                    host(exchange.hostKey).enqueue(exchange);
+                }
+                long now = System.currentTimeMillis();
+                for (Host host : hosts.values()) {
+                    host.expire(now);
+                    host.dispatch();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Campfire NIO selector failed", e);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Campfire NIO selector failed", e);
+            }
+        }
+
+        IOException closed = new IOException("Campfire NIO transport has been shut down");
+        for (Host host : hosts.values()) {
+            host.closeAll(closed);
+        }
+        Exchange exchange;
+        while ((exchange = submitted.poll()) != null) {
+            exchange.future.fail(closed);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close campfire selector", e);
+        }
+    }
+
+    private Host host(String key) {
+        Host host = hosts.get(key);
+        if (host == null) {
+            host = new Host(key);
+            hosts.put(key, host);
+        }
+        return host;
+    }
+
+    /**
+     * One request, from submission until its response has been read.
+     */
+    private static class Exchange {
+        final String hostKey;
+        final String hostName;
+        final int port;
+        // looked up after the exchange is submitted, before it is handed to the selector thread
+        InetSocketAddress address;
+        final boolean secure;
+        final byte[] request;
+        // requests with the same session are pipelined on one connection, or null
+        final String session;
+        final CampfireFuture<Response> future = new CampfireFuture<Response>();
+        final long queuedAt = System.currentTimeMillis();
+        boolean retried;
+
+        Exchange(String hostKey, String hostName, int port, boolean secure, byte[] request, String session) {
+            this.hostKey = hostKey;
+            this.hostName = hostName;
+            this.port = port;
+            this.secure = secure;
+            this.request = request;
+            this.session = session;
+        }
+    }
+
+    private static class ResolvedAddress {
+        final InetSocketAddress address;
+        final long resolvedAt = System.currentTimeMillis();
+
+        ResolvedAddress(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    /**
+     * Requests of one session waiting to be sent, and the connection kept for them.
+     */
+    private static class Pipeline {
+        final LinkedList<Exchange> pending = new LinkedList<Exchange>();
+        Connection connection;
+    }
+
+    /**
+     * Requests waiting for and connections open to one scheme://host:port.
+     */
+    private class Host {
+        final String key;
+        final LinkedList<Exchange> pending = new LinkedList<Exchange>();
+        final LinkedList<Connection> idle = new LinkedList<Connection>();
+        final List<Connection> connections = new ArrayList<Connection>();
+        final Map<String, Pipeline> pipelines = new HashMap<String, Pipeline>();
+        int busy;
+
+        Host(String key) {
+            this.key = key;
+        }
+
+        void enqueue(Exchange exchange) {
+            queue(exchange).add(exchange);
+        }
+
+        /**
+         * Puts requests that were sent on a connection that went away back at the head of their
+         * queues, in their original order.
+         */
+        void requeue(List<Exchange> exchanges) {
+            for (int i = exchanges.size() - 1; i >= 0; i--) {
+                queue(exchanges.get(i)).addFirst(exchanges.get(i));
+            }
+        }
+
+        private LinkedList<Exchange> queue(Exchange exchange) {
+            if (exchange.session == null) {
+                return pending;
+            }
+            Pipeline pipeline = pipelines.get(exchange.session);
+            if (pipeline == null) {
+                pipeline = new Pipeline();
+                pipelines.put(exchange.session, pipeline);
+            }
+            return pipeline.pending;
+        }
+
+        void dispatch() {
+            while (busy < maxInFlightPerHost && !pending.isEmpty()) {
+                Exchange exchange = pending.removeFirst();
+                if (exchange.future.isDone()) {
+                    // cancelled while it was queued
+                    continue;
+                }
+                Connection connection = idle.isEmpty() ? null : idle.removeLast();
+                busy++;
+                inFlight.incrementAndGet();
+                if (connection != null) {
+                    connection.send(exchange);
+                } else {
+                    open(exchange, null);
+                }
+            }
+            for (Pipeline pipeline : pipelines.values()) {
+                while (busy < maxInFlightPerHost && !pipeline.pending.isEmpty()
+                        && (pipeline.connection == null || pipeline.connection.hasRoom())) {
+                    Exchange exchange = pipeline.pending.removeFirst();
+                    if (exchange.future.isDone()) {
+                        continue;
+                    }
+                    busy++;
+                    inFlight.incrementAndGet();
+                    if (pipeline.connection != null) {
+                        pipeline.connection.send(exchange);
+                    } else {
+                        open(exchange, pipeline);
+                    }
+                }
+            }
+        }
+
+        private void open(Exchange exchange, Pipeline pipeline) {
+            Connection connection = new Connection(this, pipeline);
+            connections.add(connection);
+            if (pipeline != null) {
+                pipeline.connection = connection;
+            }
+            try {
+                connection.connect(exchange);
+            } catch (IOException e) {
+                connection.failed(e, false);
+            }
+        }
+
+        void expire(long now) {
+            for (Connection connection : new ArrayList<Connection>(connections)) {
+                connection.expire(now);
+            }
+            expire(pending, now);
+            for (Iterator<Pipeline> i = pipelines.values().iterator(); i.hasNext(); ) {
+                Pipeline pipeline = i.next();
+                expire(pipeline.pending, now);
+                if (pipeline.pending.isEmpty() && pipeline.connection == null) {
+                    i.remove();
+                }
+            }
+        }
+
+        private void expire(LinkedList<Exchange> queue, long now) {
+            while (!queue.isEmpty() && now - queue.getFirst().queuedAt > RESPONSE_TIMEOUT) {
+                queue.removeFirst().future.fail(new SocketTimeoutException("Timed out after " + RESPONSE_TIMEOUT
+                    + "ms waiting for one of " + busy + " requests in flight to " + key + " to finish"));
+            }
+        }
+
+        void closeAll(IOException cause) {
+            for (Connection connection : new ArrayList<Connection>(connections)) {
+                connection.failed(cause, false);
+            }
+            for (Exchange exchange : pending) {
+                exchange.future.fail(cause);
+            }
+            pending.clear();
+            for (Pipeline pipeline : pipelines.values()) {
+                for (Exchange exchange : pipeline.pending) {
+                    exchange.future.fail(cause);
+                }
+            }
+            pipelines.clear();
+        }
+    }
+
+    /**
+     * One keep-alive connection. A connection kept for a session carries up to
+     * {@code pipelineDepth} exchanges at once, any other one exchange at a time.
+     */
+    private class Connection implements TlsSession.Receiver {
+        final Host host;
+        // the session this connection is kept for, or null if it is shared through the idle list
+        final Pipeline pipeline;
+        SocketChannel channel;
+        SelectionKey key;
+        // set for https connections, and kept with them while they are reused
+        TlsSession tls;
+        boolean connected;
+        boolean unsolicited;
+        // sent or still being written, oldest first; the response being read is the first one's
+        final LinkedList<Exchange> exchanges = new LinkedList<Exchange>();
+        ByteBuffer outgoing = NOTHING;
+        ResponseDecoder reader;
+        boolean reused;
+        long deadline;
+        long idleSince;
+
+        Connection(Host host, Pipeline pipeline) {
+            this.host = host;
+            this.pipeline = pipeline;
+        }
+
+        void connect(Exchange first) throws IOException {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            if (first.secure) {
+                tls = new TlsSession(first.hostName, first.port);
+            }
+            send(first);
+            reused = false;
+            if (channel.connect(first.address)) {
+                key = channel.register(selector, 0, this);
+                connected();
+            } else {
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+            }
+        }
+
+        private void connected() throws IOException {
+            connected = true;
+            deadline = System.currentTimeMillis() + RESPONSE_TIMEOUT;
+            if (tls != null) {
+                tls.begin();
+            }
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Whether another exchange can be pipelined behind the ones in flight.
+         */
+        boolean hasRoom() {
+            return exchanges.size() < PIPELINE_DEPTH;
+        }
+
+        void send(Exchange next) {
+            if (exchanges.isEmpty()) {
+                reused = true;
+                reader = new ResponseDecoder(MAX_RESPONSE_SIZE);
+                deadline = System.currentTimeMillis() + RESPONSE_TIMEOUT;
+            }
+            exchanges.add(next);
+            if (outgoing.hasRemaining()) {
+                ByteBuffer joined = ByteBuffer.allocate(outgoing.remaining() + next.request.length);
+                joined.put(outgoing).put(next.request);
+                joined.flip();
+                outgoing = joined;
+            } else {
+                outgoing = ByteBuffer.wrap(next.request);
+            }
+            if (connected) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void ready(SelectionKey selected) {
+            try {
+                if (!selected.isValid()) {
+                    return;
+                }
+                if (selected.isConnectable()) {
+                    channel.finishConnect();
+                    connected();
+                } else if (tls != null) {
+                    pump(selected.isReadable() && !tls.read(channel));
+                } else {
+                    if (selected.isWritable()) {
+                        channel.write(outgoing);
+                    }
+                    if (selected.isReadable()) {
+                        read();
+                    }
+                    if (key.isValid() && !exchanges.isEmpty()) {
+                        key.interestOps(outgoing.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                    }
+                }
+            } catch (IOException e) {
+                failed(e, true);
+            }
+        }
+
+        private void read() throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (exchanges.isEmpty()) {
+                // an idle connection only becomes readable when the server closes it
+                close();
+                return;
+            }
+            if (read < 0) {
+                endOfStream();
+            } else {
+                reader.feed(readBuffer.array(), 0, read);
+                complete();
+            }
+        }
+
+        /**
+         * Moves the requests and the responses through TLS, as far as they will go without blocking.
+         *
+         * @param endOfStream whether the server has closed the connection
+         */
+        private void pump(boolean endOfStream) throws IOException {
+            int ops = tls.pump(channel, outgoing, this);
+            if (exchanges.isEmpty()) {
+                // an idle connection only has TLS records such as session tickets to read, until
+                // the server closes it
+                if (endOfStream || ops == TlsSession.CLOSED || unsolicited) {
+                    close();
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+            if (endOfStream || ops == TlsSession.CLOSED) {
+                endOfStream();
+                return;
+            }
+            complete();
+            if (key.isValid() && !exchanges.isEmpty()) {
+                key.interestOps(ops);
+            }
+        }
+
+        public void received(byte[] bytes, int offset, int count) throws IOException {
+            if (exchanges.isEmpty()) {
+                unsolicited = true;
+            } else {
+                reader.feed(bytes, offset, count);
+            }
+        }
+
+        private void endOfStream() throws IOException {
+            reader.endOfStream();
+            complete();
+            if (!exchanges.isEmpty()) {
+                throw new EOFException("Connection to " + host.key + " closed before the response was complete");
+            }
+            close();
+        }
+
+        /**
+         * Hands out every response that has been read in full. Whatever was read beyond the end of
+         * one belongs to the next exchange in the pipeline.
+         */
+        private void complete() throws IOException {
+            while (reader.isComplete()) {
+                ResponseDecoder finished = reader;
+                Exchange done = exchanges.removeFirst();
+                host.busy--;
+                inFlight.decrementAndGet();
+                reader = new ResponseDecoder(MAX_RESPONSE_SIZE);
+                reused = false;
+                if (!finished.isKeepAlive()) {
+                    close();
+                    // the server stops reading once it has answered, so the rest were never seen
+                    abandon(new ArrayList<Exchange>(exchanges));
+                } else if (exchanges.isEmpty()) {
+                    if (finished.hasExtra()) {
+                        close();
+                    } else {
+                        idleSince = System.currentTimeMillis();
+                        key.interestOps(SelectionKey.OP_READ);
+                        if (pipeline == null) {
+                            host.idle.add(this);
+                        }
+                    }
+                } else {
+                    deadline = System.currentTimeMillis() + RESPONSE_TIMEOUT;
+                    finished.moveExtra(reader);
+                }
+                done.future.set(toResponse(finished));
+            }
+        }
+
+        /**
+         * Takes the exchanges off this connection, leaving them to be sent again on another one.
+         */
+        private void abandon(List<Exchange> requeued) {
+            exchanges.clear();
+            host.busy -= requeued.size();
+            inFlight.addAndGet(-requeued.size());
+            host.requeue(requeued);
+        }
+
+        void expire(long now) {
+            if (!exchanges.isEmpty() && now > deadline) {
+                failed(new SocketTimeoutException("Timed out waiting for " + host.key), false);
+            } else if (exchanges.isEmpty() && now - idleSince > IDLE_TIMEOUT) {
+                close();
+            }
+        }
+
+        /**
+         * @param retryable whether the requests may be sent again on a fresh connection, if this was
+         *     a reused connection the server had already closed and nothing was received on it
+         */
+        void failed(IOException cause, boolean retryable) {
+            close();
+            if (exchanges.isEmpty()) {
+                return;
+            }
+            List<Exchange> failed = new ArrayList<Exchange>(exchanges);
+            if (retryable && reused && !reader.isStarted() && !failed.get(0).retried) {
+                LOGGER.log(Level.FINE, "Stale connection to " + host.key + ", retrying on a new one", cause);
+                for (Exchange exchange : failed) {
+                    exchange.retried = true;
+                }
+                abandon(failed);
+                return;
+            }
+            exchanges.clear();
+            host.busy -= failed.size();
+            inFlight.addAndGet(-failed.size());
+            for (Exchange exchange : failed) {
+                exchange.future.fail(cause);
+            }
+        }
+
+        void close() {
+            host.idle.remove(this);
+            host.connections.remove(this);
+            if (pipeline != null && pipeline.connection == this) {
+                pipeline.connection = null;
+            }
+            if (tls != null) {
+                tls.close();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to close connection to " + host.key, e);
+                }
+            }
+        }
+    }
+
+    private static Response toResponse(final ResponseDecoder decoder) {
+        return new BufferedResponse(decoder.getStatus(), decoder.getBody()) {
+            public String getHeader(String name) {
+                return decoder.getHeader(name);
+            }
+        };
+    }
+
+    /**
+     * A response whose body has already been read, so closing it has nothing to release.
+     */
+    private abstract static class BufferedResponse implements Response {
+        private final int status;
+        private final byte[] body;
+
+        BufferedResponse(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public InputStream getBody() {
+            return new ByteArrayInputStream(body);
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package hudson.plugins.campfire;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded in-memory queue of notifications, drained by a small pool of dedicated worker threads.
+ * Used when asynchronous notification is enabled so that a slow Campfire endpoint never holds up
+ * a build executor.
+ */
+public class NotificationQueue {
+    public enum OverflowPolicy {
+        DROP_OLDEST, DROP_NEWEST, BLOCK
+    }
+
+    public static final int DEFAULT_CAPACITY = 1000;
+    public static final int DEFAULT_MESSAGE_TIMEOUT = 60;
+
+    private static final int WORKERS = Integer.getInteger(NotificationQueue.class.getName() + ".workers", 2);
+    private static final Logger LOGGER = Logger.getLogger(NotificationQueue.class.getName());
+
+    private static NotificationQueue instance;
+
+    private volatile BlockingQueue<Notification> queue;
+    private volatile int capacity;
+    private volatile long messageTimeout;
+    private volatile OverflowPolicy overflowPolicy;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong totalDrainLatency = new AtomicLong();
+    private volatile long lastDrainLatency;
+
+    /**
+     * A message waiting to be sent. Subclasses perform the actual send from a worker thread.
+     */
+    public static abstract class Notification {
+        private final String description;
+        private final long enqueuedAt = System.currentTimeMillis();
+
+        protected Notification(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        protected abstract void send() throws IOException;
+    }
+
+    private NotificationQueue(int capacity, long messageTimeout, OverflowPolicy overflowPolicy) {
+        this.queue = new LinkedBlockingQueue<Notification>(capacity);
+        this.capacity = capacity;
+        this.messageTimeout = messageTimeout;
+        this.overflowPolicy = overflowPolicy;
+        for (int i = 0; i < WORKERS; i++) {
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    drain();
+                }
+            }, "Campfire notification dispatcher #" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    public static synchronized NotificationQueue getInstance() {
+        if (instance == null) {
+            DescriptorImpl descriptor = CampfireNotifier.DESCRIPTOR;
+            instance = new NotificationQueue(descriptor.getAsyncQueueCapacity(),
+                TimeUnit.SECONDS.toMillis(descriptor.getAsyncMessageTimeout()), descriptor.getAsyncOverflowPolicy());
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the queue if asynchronous notification has been used since startup, without starting it.
+     */
+    public static synchronized NotificationQueue getRunningInstance() {
+        return instance;
+    }
+
+    /**
+     * Applies new settings. Messages already queued are carried over, up to the new capacity.
+     */
+    public synchronized void configure(int capacity, long messageTimeout, OverflowPolicy overflowPolicy) {
+        this.messageTimeout = messageTimeout;
+        this.overflowPolicy = overflowPolicy;
+        if (capacity != this.capacity) {
+            BlockingQueue<Notification> old = queue;
+            queue = new LinkedBlockingQueue<Notification>(capacity);
+            this.capacity = capacity;
+            transfer(old);
+        }
+    }
+
+    /**
+     * Queues a notification, applying the overflow policy when the queue is full.
+     *
+     * @return false if the notification (or an older one, for {@link OverflowPolicy#DROP_OLDEST}) was dropped
+     */
+    public boolean enqueue(Notification notification) throws InterruptedException {
+        BlockingQueue<Notification> q = queue;
+        boolean accepted = true;
+        switch (overflowPolicy) {
+            case DROP_NEWEST:
+                if (!q.offer(notification)) {
+                    discard(notification);
+                    accepted = false;
+                }
+                break;
+            case BLOCK:
+                if (!q.offer(notification, messageTimeout, TimeUnit.MILLISECONDS)) {
+                    discard(notification);
+                    accepted = false;
+                }
+                break;
+            default:
+                while (!q.offer(notification)) {
+                    Notification oldest = q.poll();
+                    if (oldest != null) {
+                        discard(oldest);
+                        accepted = false;
+                    }
+                }
+        }
+        if (q != queue) {
+            // the queue was resized while we were offering; make sure nothing is stranded
+            transfer(q);
+        }
+        return accepted;
+    }
+
+    private void discard(Notification notification) {
+        dropped.incrementAndGet();
+        LOGGER.warning("Campfire notification queue full, dropped: " + notification.getDescription());
+    }
+
+    private void transfer(BlockingQueue<Notification> from) {
+        Notification notification;
+        while ((notification = from.poll()) != null) {
+            if (!queue.offer(notification)) {
+                dropped.incrementAndGet();
+                LOGGER.warning("Campfire notification queue resized, dropped: " + notification.getDescription());
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Notification notification;
+            try {
+                notification = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (notification == null) {
+                continue;
+            }
+            long age = System.currentTimeMillis() - notification.enqueuedAt;
+            if (messageTimeout > 0 && age > messageTimeout) {
+                expired.incrementAndGet();
+                LOGGER.warning("Campfire notification expired after " + age + "ms in queue: " + notification.getDescription());
+                continue;
+            }
+            try {
+                notification.send();
+                delivered.incrementAndGet();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                LOGGER.log(Level.WARNING, "Failed to send campfire notification: " + notification.getDescription(), e);
+            }
+            long latency = System.currentTimeMillis() - notification.enqueuedAt;
+            lastDrainLatency = latency;
+            totalDrainLatency.addAndGet(latency);
+            LOGGER.fine("Campfire notification drained in " + latency + "ms, queue depth " + getDepth());
+        }
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getExpired() {
+        return expired.get();
+    }
+
+    /**
+     * Time in milliseconds between queueing and completing the most recently sent notification.
+     */
+    public long getLastDrainLatency() {
+        return lastDrainLatency;
+    }
+
+    /**
+     * Mean time in milliseconds between queueing and completing a notification.
+     */
+    public long getAverageDrainLatency() {
+        long count = delivered.get() + failed.get();
+        return count == 0 ? 0 : totalDrainLatency.get() / count;
+    }
+}
@@ -0,0 +1,86 @@
+package hudson.plugins.campfire;
+
+import hudson.model.Result;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rules deciding whether a build is worth a notification, checked before anything is rendered or
+ * sent. The global rules have every setting; a job's rules only hold the settings it overrides,
+ * with null meaning "as configured globally".
+ */
+public class NotificationRules {
+    private final Boolean transitionsOnly;
+    private final Integer repeatedFailureLimit;
+    private final Integer interval;
+
+    /**
+     * @param transitionsOnly only notify when the result differs from the previous build's
+     * @param repeatedFailureLimit number of consecutive builds with the same unsuccessful result to notify
+     *                             about before going quiet until the result changes, 0 for no limit
+     * @param interval minimum number of seconds between notifications for a job, 0 for no minimum
+     */
+    public NotificationRules(Boolean transitionsOnly, Integer repeatedFailureLimit, Integer interval) {
+        this.transitionsOnly = transitionsOnly;
+        this.repeatedFailureLimit = repeatedFailureLimit;
+        this.interval = interval;
+    }
+
+    public Boolean getTransitionsOnly() {
+        return transitionsOnly;
+    }
+
+    public Integer getRepeatedFailureLimit() {
+        return repeatedFailureLimit;
+    }
+
+    public Integer getInterval() {
+        return interval;
+    }
+
+    public boolean isEmpty() {
+        return transitionsOnly == null && repeatedFailureLimit == null && interval == null;
+    }
+
+    /**
+     * Returns these rules with any setting they don't have taken from the given defaults.
+     */
+    public NotificationRules inherit(NotificationRules defaults) {
+        return new NotificationRules(
+            transitionsOnly != null ? transitionsOnly : defaults.transitionsOnly,
+            repeatedFailureLimit != null ? repeatedFailureLimit : defaults.repeatedFailureLimit,
+            interval != null ? interval : defaults.interval);
+    }
+
+    /**
+     * Records the build's result in the job's state and decides whether to notify about it. Must be
+     * called with the state locked, on rules that have every setting.
+     *
+     * @param smartNotify don't notify about a success following a success
+     */
+    boolean evaluate(NotificationStateTable.JobState state, Result result, boolean smartNotify, long now) {
+        String resultName = result.toString();
+        boolean transition = !resultName.equals(state.lastResult);
+        state.streak = transition ? 1 : state.streak + 1;
+        state.lastResult = resultName;
+        state.lastBuildAt = now;
+
+        boolean notify = true;
+        if (smartNotify && !transition && result == Result.SUCCESS) {
+            notify = false;
+        }
+        if (transitionsOnly && !transition) {
+            notify = false;
+        }
+        if (repeatedFailureLimit > 0 && result != Result.SUCCESS && state.streak > repeatedFailureLimit) {
+            notify = false;
+        }
+        if (notify && interval > 0 && now - state.lastNotifiedAt < TimeUnit.SECONDS.toMillis(interval)) {
+            notify = false;
+        }
+        if (notify) {
+            state.lastNotifiedAt = now;
+        }
+        return notify;
+    }
+}
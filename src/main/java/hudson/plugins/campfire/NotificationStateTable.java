@@ -0,0 +1,201 @@
+package hudson.plugins.campfire;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Hudson;
+import hudson.model.Result;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * What the notification rules need to know about each job's recent builds: the last result, how
+ * many builds in a row have had it, and when a notification was last sent. Checking a build is a
+ * map lookup, instead of a walk through the build history.
+ *
+ * <p>The table is saved in a compact binary file under JENKINS_HOME, shortly after it changes,
+ * so that it survives restarts. Jobs without builds for {@value #EXPIRY_DAYS} days are dropped.
+ */
+public class NotificationStateTable {
+    private static final int FORMAT_VERSION = 1;
+    private static final long SAVE_DELAY = Long.getLong(NotificationStateTable.class.getName() + ".saveDelay", 5000L);
+    private static final int EXPIRY_DAYS = 90;
+    private static final Logger LOGGER = Logger.getLogger(NotificationStateTable.class.getName());
+
+    private static NotificationStateTable instance;
+
+    private final File file;
+    private final ConcurrentMap<String, JobState> states = new ConcurrentHashMap<String, JobState>();
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Campfire notification state writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * A job's entry in the table. Fields are guarded by the entry's own lock.
+     */
+    static class JobState {
+        String lastResult;
+        int streak;
+        long lastNotifiedAt;
+        long lastBuildAt;
+    }
+
+    NotificationStateTable(File file) {
+        this.file = file;
+        if (file != null && file.exists()) {
+            try {
+                load();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read campfire notification state from " + file + ", starting afresh", e);
+                states.clear();
+            }
+        }
+    }
+
+    public static synchronized NotificationStateTable getInstance() {
+        if (instance == null) {
+            Hudson hudson = Hudson.getInstance();
+            instance = new NotificationStateTable(hudson == null ? null : new File(new File(hudson.getRootDir(), "campfire"), "notification-state.bin"));
+        }
+        return instance;
+    }
+
+    /**
+     * Records the build's result and decides, using the given rules, whether to notify about it.
+     *
+     * @param rules rules with every setting, see {@link NotificationRules#inherit}
+     */
+    public boolean shouldNotify(AbstractBuild<?, ?> build, NotificationRules rules, boolean smartNotify) {
+        String job = build.getProject().getFullName();
+        JobState state = states.get(job);
+        if (state == null) {
+            JobState created = new JobState();
+            // a job we haven't seen before, possibly one that was building before the plugin was upgraded
+            AbstractBuild<?, ?> previousBuild = build.getPreviousBuild();
+            if (previousBuild != null && previousBuild.getResult() != null) {
+                created.lastResult = previousBuild.getResult().toString();
+                created.streak = 1;
+            }
+            state = states.putIfAbsent(job, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        boolean notify;
+        synchronized (state) {
+            notify = rules.evaluate(state, build.getResult(), smartNotify, System.currentTimeMillis());
+        }
+        scheduleSave();
+        return notify;
+    }
+
+    private void scheduleSave() {
+        if (file != null && saveScheduled.compareAndSet(false, true)) {
+            saver.schedule(new Runnable() {
+                public void run() {
+                    saveScheduled.set(false);
+                    try {
+                        save();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to save campfire notification state to " + file, e);
+                    }
+                }
+            }, SAVE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported notification state format " + version);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String job = in.readUTF();
+                JobState state = new JobState();
+                String lastResult = in.readUTF();
+                state.lastResult = lastResult.length() == 0 ? null : lastResult;
+                state.streak = in.readInt();
+                state.lastNotifiedAt = in.readLong();
+                state.lastBuildAt = in.readLong();
+                states.put(job, state);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the table to a temporary file and moves it into place, so that a crash mid-write
+     * leaves the previous copy intact.
+     */
+    synchronized void save() throws IOException {
+        long expiry = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(EXPIRY_DAYS);
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            Map<String, JobState> snapshot = new HashMap<String, JobState>();
+            for (Map.Entry<String, JobState> entry : states.entrySet()) {
+                JobState state = entry.getValue();
+                synchronized (state) {
+                    if (state.lastBuildAt != 0 && state.lastBuildAt < expiry) {
+                        states.remove(entry.getKey(), state);
+                        continue;
+                    }
+                    JobState copy = new JobState();
+                    copy.lastResult = state.lastResult;
+                    copy.streak = state.streak;
+                    copy.lastNotifiedAt = state.lastNotifiedAt;
+                    copy.lastBuildAt = state.lastBuildAt;
+                    snapshot.put(entry.getKey(), copy);
+                }
+            }
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, JobState> entry : snapshot.entrySet()) {
+                JobState state = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeUTF(state.lastResult == null ? "" : state.lastResult);
+                out.writeInt(state.streak);
+                out.writeLong(state.lastNotifiedAt);
+                out.writeLong(state.lastBuildAt);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // renaming over an existing file fails on Windows
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to move " + tmp + " to " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package hudson.plugins.campfire;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Result;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A notification template compiled into literal and variable segments. Templates are compiled once,
+ * when the notifier is configured, and only the variables the template references are evaluated
+ * when a notification is rendered.
+ */
+public class NotificationTemplate {
+    private static final int MAX_RETAINED_BUFFER = 16 * 1024;
+
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    /**
+     * Variables that can be referenced from a template as %NAME%, or as %NAME:argument% for those
+     * that take an argument.
+     */
+    public enum Variable {
+        PROJECT_NAME {
+            String evaluate(Context context, Object argument) {
+                return context.build.getProject().getName();
+            }
+        },
+        PROJECT_DISPLAY_NAME {
+            String evaluate(Context context, Object argument) {
+                return context.build.getProject().getDisplayName();
+            }
+        },
+        PROJECT_FULL_NAME {
+            String evaluate(Context context, Object argument) {
+                return context.build.getProject().getFullName();
+            }
+        },
+        PROJECT_FULL_DISPLAY_NAME {
+            String evaluate(Context context, Object argument) {
+                return context.build.getProject().getFullDisplayName();
+            }
+        },
+        BUILD_DISPLAY_NAME {
+            String evaluate(Context context, Object argument) {
+                return context.build.getDisplayName();
+            }
+        },
+        RESULT {
+            String evaluate(Context context, Object argument) {
+                return context.build.getResult().toString();
+            }
+        },
+        SMART_RESULT {
+            String evaluate(Context context, Object argument) {
+                Result result = context.build.getResult();
+                if (!context.smartNotify && result == Result.SUCCESS) {
+                    return result.toString().toLowerCase();
+                }
+                return result.toString();
+            }
+        },
+        CHANGES {
+            String evaluate(Context context, Object argument) {
+                return CampfireNotifier.computeChangeString(context.build);
+            }
+        },
+        BUILD_URL {
+            String evaluate(Context context, Object argument) {
+                if (context.hudsonUrl != null && context.hudsonUrl.length() > 1) {
+                    return context.hudsonUrl + context.build.getUrl();
+                }
+                return "";
+            }
+        },
+        LOG_TAIL {
+            String evaluate(Context context, Object argument) {
+                int lines = argument == null ? BuildLog.DEFAULT_LINES : ((Integer) argument).intValue();
+                return BuildLog.tail(context.build.getLogFile(), lines);
+            }
+
+            @Override
+            Object compileArgument(String argument) {
+                if (argument == null) {
+                    return null;
+                }
+                int lines;
+                try {
+                    lines = Integer.parseInt(argument.trim());
+                } catch (NumberFormatException e) {
+                    lines = -1;
+                }
+                if (lines < 1 || lines > BuildLog.MAX_LINES) {
+                    throw new IllegalArgumentException("%LOG_TAIL:" + argument + "% should give a number of lines from 1 to " + BuildLog.MAX_LINES);
+                }
+                return Integer.valueOf(lines);
+            }
+        },
+        LOG_GREP {
+            String evaluate(Context context, Object argument) {
+                return BuildLog.grep(context.build.getLogFile(), (Pattern) argument, BuildLog.DEFAULT_LINES);
+            }
+
+            @Override
+            Object compileArgument(String argument) {
+                if (argument == null || argument.length() == 0) {
+                    throw new IllegalArgumentException("%LOG_GREP% needs a pattern, e.g. %LOG_GREP:ERROR%");
+                }
+                try {
+                    return Pattern.compile(argument);
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("Invalid pattern in %LOG_GREP:" + argument + "%: " + e.getDescription());
+                }
+            }
+        };
+
+        /**
+         * @param argument the argument given in the template, as returned by {@link #compileArgument},
+         *                 or null if there was none
+         */
+        abstract String evaluate(Context context, Object argument);
+
+        /**
+         * Checks the argument given in the template, null if there was none, and turns it into the
+         * form {@link #evaluate} takes, so that this is done once per template rather than per build.
+         *
+         * @throws IllegalArgumentException if the argument isn't acceptable
+         */
+        Object compileArgument(String argument) {
+            if (argument != null) {
+                throw new IllegalArgumentException("%" + name() + "% doesn't take an argument");
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The build being notified about. Each variable is computed at most once per context.
+     */
+    public static class Context {
+        private final AbstractBuild<?, ?> build;
+        private final String hudsonUrl;
+        private final boolean smartNotify;
+        private final Map<Variable, String> values = new EnumMap<Variable, String>(Variable.class);
+        private Map<String, String> valuesWithArguments;
+
+        public Context(AbstractBuild<?, ?> build, String hudsonUrl, boolean smartNotify) {
+            this.build = build;
+            this.hudsonUrl = hudsonUrl;
+            this.smartNotify = smartNotify;
+        }
+
+        public String get(Variable variable) {
+            String value = values.get(variable);
+            if (value == null) {
+                value = variable.evaluate(this, null);
+                if (value == null) {
+                    value = "";
+                }
+                values.put(variable, value);
+            }
+            return value;
+        }
+
+        String get(Reference reference) {
+            if (valuesWithArguments == null) {
+                valuesWithArguments = new HashMap<String, String>();
+            }
+            String key = reference.variable.name() + ":" + reference.argument;
+            String value = valuesWithArguments.get(key);
+            if (value == null) {
+                value = reference.variable.evaluate(this, reference.compiled);
+                if (value == null) {
+                    value = "";
+                }
+                valuesWithArguments.put(key, value);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * A variable referenced with an argument, %NAME:argument%.
+     */
+    private static class Reference {
+        private final Variable variable;
+        private final String argument;
+        private final Object compiled;
+
+        Reference(Variable variable, String argument, Object compiled) {
+            this.variable = variable;
+            this.argument = argument;
+            this.compiled = compiled;
+        }
+    }
+
+    private final String source;
+    // each segment is either a literal String, a Variable or a Reference
+    private final Object[] segments;
+
+    private NotificationTemplate(String source, Object[] segments) {
+        this.source = source;
+        this.segments = segments;
+    }
+
+    /**
+     * Compiles a template, replacing %NAME% or %NAME:argument% with the value of the named variable
+     * and %% with a bare %.
+     *
+     * @throws IllegalArgumentException if the template references an unknown variable or has an unmatched %
+     */
+    public static NotificationTemplate compile(String template) {
+        return compile(template, false);
+    }
+
+    /**
+     * Compiles a template as {@link #compile(String)} does, but leaves anything that isn't a valid
+     * variable reference, such as the % in "50% done", in the message as it was written. Templates
+     * saved before they were checked are still rendered this way rather than not being sent.
+     */
+    public static NotificationTemplate compileLeniently(String template) {
+        return compile(template, true);
+    }
+
+    private static NotificationTemplate compile(String template, boolean lenient) {
+        List<Object> segments = new ArrayList<Object>();
+        StringBuilder literal = new StringBuilder();
+        int pos = 0;
+        while (pos < template.length()) {
+            int startIndex = template.indexOf('%', pos);
+            if (startIndex < 0) {
+                literal.append(template, pos, template.length());
+                break;
+            }
+            literal.append(template, pos, startIndex);
+            int endIndex = template.indexOf('%', startIndex + 1);
+            if (endIndex < 0) {
+                if (!lenient) {
+                    throw new IllegalArgumentException("Unmatched % at position " + startIndex + " in notification template: " + template);
+                }
+                literal.append(template, startIndex, template.length());
+                break;
+            }
+            String key = template.substring(startIndex + 1, endIndex).trim();
+            if (key.length() == 0) {
+                literal.append('%');
+            } else {
+                String argument = null;
+                int colon = key.indexOf(':');
+                if (colon >= 0) {
+                    argument = key.substring(colon + 1);
+                    key = key.substring(0, colon).trim();
+                }
+                Variable variable = null;
+                Object compiled = null;
+                String problem = null;
+                try {
+                    variable = Variable.valueOf(key);
+                    compiled = variable.compileArgument(argument);
+                } catch (IllegalArgumentException e) {
+                    problem = variable == null ? "Unknown variable %" + key + "%" : e.getMessage();
+                }
+                if (problem != null) {
+                    if (!lenient) {
+                        throw new IllegalArgumentException(problem + " in notification template: " + template);
+                    }
+                    // keep the text, and look for the next reference from the closing %
+                    literal.append(template, startIndex, endIndex);
+                    pos = endIndex;
+                    continue;
+                }
+                if (literal.length() > 0) {
+                    segments.add(literal.toString());
+                    literal.setLength(0);
+                }
+                segments.add(argument == null ? variable : new Reference(variable, argument, compiled));
+            }
+            pos = endIndex + 1;
+        }
+        if (literal.length() > 0) {
+            segments.add(literal.toString());
+        }
+        return new NotificationTemplate(template, segments.toArray());
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public boolean uses(Variable variable) {
+        for (Object segment : segments) {
+            if (segment == variable || (segment instanceof Reference && ((Reference) segment).variable == variable)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String render(Context context) {
+        StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        for (Object segment : segments) {
+            if (segment instanceof Variable) {
+                buffer.append(context.get((Variable) segment));
+            } else if (segment instanceof Reference) {
+                buffer.append(context.get((Reference) segment));
+            } else {
+                buffer.append((String) segment);
+            }
+        }
+        String rendered = buffer.toString();
+        if (buffer.capacity() > MAX_RETAINED_BUFFER) {
+            BUFFER.remove();
+        }
+        return rendered;
+    }
+}
@@ -0,0 +1,487 @@
+package hudson.plugins.campfire;
+
+import hudson.model.Hudson;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of outgoing room messages under JENKINS_HOME/campfire. Every message is
+ * journaled before it is posted and acknowledged once Campfire accepts it; anything left
+ * unacknowledged (Campfire outage, Jenkins restart) is redelivered in order later.
+ *
+ * <p>The journal is split into segment files numbered in sequence order. Appends go straight to
+ * the active segment's channel, and a background thread fsyncs it at a fixed interval so that build
+ * threads never wait on the disk. Segments are deleted oldest first, once they and every older
+ * segment have no unacknowledged messages left, and on startup the remaining messages are
+ * rewritten into a fresh segment.
+ */
+public class Outbox {
+    private static final long SEGMENT_SIZE = Long.getLong(Outbox.class.getName() + ".segmentSize", 4L * 1024 * 1024);
+    private static final long SYNC_INTERVAL = Long.getLong(Outbox.class.getName() + ".syncInterval", 50L);
+    private static final long REDELIVERY_INTERVAL = Long.getLong(Outbox.class.getName() + ".redeliveryInterval", 60000L);
+
+    private static final byte APPEND = 1;
+    private static final byte ACK = 2;
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final Logger LOGGER = Logger.getLogger(Outbox.class.getName());
+
+    private static Outbox instance;
+
+    private final File directory;
+    private final Object lock = new Object();
+    private final ConcurrentSkipListMap<Long, Entry> pending = new ConcurrentSkipListMap<Long, Entry>();
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Campfire outbox");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private Segment active;
+    private FileChannel activeChannel;
+    private long nextSeq = 1;
+    private volatile boolean dirty;
+
+    private static class Segment {
+        private final File file;
+        private int pending;
+
+        private Segment(File file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * A journaled message and the room it is addressed to. The account is only named, so that API
+     * tokens are kept in the configuration and not copied into the journal; it is the name of one
+     * of the accounts defined globally, or empty for any other account.
+     */
+    private static class Entry {
+        private final long seq;
+        private final String subdomain;
+        private final String account;
+        private final boolean ssl;
+        private final String roomId;
+        private final String roomName;
+        private final String type;
+        private final String body;
+        // still being sent by the thread that journaled it
+        private volatile boolean inFlight;
+        private Segment segment;
+
+        private Entry(long seq, String subdomain, String account, boolean ssl, String roomId, String roomName, String type, String body) {
+            this.seq = seq;
+            this.subdomain = subdomain;
+            this.account = account;
+            this.ssl = ssl;
+            this.roomId = roomId;
+            this.roomName = roomName;
+            this.type = type;
+            this.body = body;
+        }
+    }
+
+    Outbox(File directory) throws IOException {
+        this.directory = directory;
+        recover();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                sync();
+            }
+        }, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                redeliver();
+            }
+        }, 0, REDELIVERY_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the outbox if durable delivery is enabled, opening it (and replaying pending messages)
+     * on first use.
+     */
+    public static synchronized Outbox getInstanceIfEnabled() {
+        if (!CampfireNotifier.DESCRIPTOR.getDurableOutbox()) {
+            return null;
+        }
+        if (instance == null) {
+            Hudson hudson = Hudson.getInstance();
+            if (hudson == null) {
+                return null;
+            }
+            try {
+                instance = new Outbox(new File(hudson.getRootDir(), "campfire"));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to open campfire outbox, messages will not be journaled", e);
+                return null;
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the outbox if it has been opened, without opening it.
+     */
+    public static synchronized Outbox getRunningInstance() {
+        return instance;
+    }
+
+    /**
+     * Journals a message for the given room.
+     *
+     * @return the sequence number to acknowledge once the message has been delivered
+     */
+    public long append(Room room, String type, String body) throws IOException {
+        Campfire campfire = room.getCampfire();
+        synchronized (lock) {
+            Entry entry = new Entry(nextSeq++, campfire.getSubdomain(), accountName(campfire), campfire.getSsl(),
+                room.getId(), room.getName(), type, body);
+            entry.inFlight = true;
+            write(entry);
+            return entry.seq;
+        }
+    }
+
+    /**
+     * Marks a message as delivered so that it will not be redelivered.
+     */
+    public void acknowledge(long seq) {
+        synchronized (lock) {
+            Entry entry = pending.remove(seq);
+            if (entry == null) {
+                return;
+            }
+            try {
+                writeRecord(ackRecord(seq));
+            } catch (IOException e) {
+                // worst case the message is delivered twice after a restart
+                LOGGER.log(Level.WARNING, "Failed to journal campfire outbox acknowledgement", e);
+            }
+            entry.segment.pending--;
+            compact();
+        }
+    }
+
+    /**
+     * Gives up on sending a message for now, leaving it to be redelivered.
+     */
+    public void release(long seq) {
+        Entry entry = pending.get(seq);
+        if (entry != null) {
+            entry.inFlight = false;
+        }
+    }
+
+    /**
+     * Deletes fully acknowledged segments from the head of the journal. Newer segments can hold
+     * acknowledgements for messages in older ones, so segments are only ever removed oldest first.
+     */
+    private void compact() {
+        while (!segments.isEmpty() && segments.getFirst() != active && segments.getFirst().pending == 0) {
+            Segment segment = segments.removeFirst();
+            if (!segment.file.delete()) {
+                LOGGER.warning("Failed to delete campfire outbox segment " + segment.file);
+            }
+        }
+    }
+
+    /**
+     * Stops the background threads and closes the journal.
+     */
+    void close() throws IOException {
+        scheduler.shutdownNow();
+        synchronized (lock) {
+            if (activeChannel != null) {
+                activeChannel.force(false);
+                activeChannel.close();
+                activeChannel = null;
+            }
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Posts messages that were journaled but never acknowledged, oldest first. Stops at the first
+     * failure so that order is preserved once Campfire is reachable again.
+     */
+    void redeliver() {
+        for (Entry entry : new ArrayList<Entry>(pending.values())) {
+            if (entry.inFlight) {
+                continue;
+            }
+            Campfire campfire = findAccount(entry);
+            if (campfire == null) {
+                LOGGER.warning("Dropping campfire message " + entry.seq + " to " + entry.roomName
+                    + ": no account for " + entry.subdomain + " is configured any more");
+                acknowledge(entry.seq);
+                continue;
+            }
+            Room room = new Room(campfire, entry.roomName, entry.roomId);
+            try {
+                room.send(entry.type, entry.body);
+                acknowledge(entry.seq);
+            } catch (Room.RejectedException e) {
+                LOGGER.warning("Dropping undeliverable campfire message " + entry.seq + " to " + entry.roomName + ": " + e.getMessage());
+                acknowledge(entry.seq);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Campfire still unreachable, " + pending.size() + " messages pending", e);
+                return;
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to redeliver campfire message " + entry.seq, e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Names the account for the journal: one of the accounts defined globally, or empty.
+     */
+    private static String accountName(Campfire campfire) {
+        for (Account account : CampfireNotifier.DESCRIPTOR.getAccounts()) {
+            if (account.getSubdomain().equals(campfire.getSubdomain()) && account.getToken().equals(campfire.getToken())) {
+                return account.getName();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Looks the account of a journaled message up again in the current configuration: the named
+     * account, otherwise the global account or an account a job is configured with for the subdomain.
+     * The shared instance is used, so that redelivery respects its rate limit and circuit breaker.
+     *
+     * @return null if no account for the subdomain is configured any more
+     */
+    private static Campfire findAccount(Entry entry) {
+        DescriptorImpl descriptor = CampfireNotifier.DESCRIPTOR;
+        if (entry.account.length() > 0) {
+            Account account = descriptor.getAccount(entry.account);
+            if (account != null && account.getSubdomain().equals(entry.subdomain)) {
+                return Campfire.forAccount(account.getSubdomain(), account.getToken(), entry.ssl);
+            }
+            return null;
+        }
+        if (entry.subdomain.equals(descriptor.getSubdomain()) && descriptor.getToken() != null) {
+            return Campfire.forAccount(entry.subdomain, descriptor.getToken(), entry.ssl);
+        }
+        return Campfire.findShared(entry.subdomain, entry.ssl);
+    }
+
+    private void sync() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        FileChannel channel;
+        synchronized (lock) {
+            channel = activeChannel;
+        }
+        try {
+            if (channel != null && channel.isOpen()) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to sync campfire outbox", e);
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        if (activeChannel == null || activeChannel.size() >= SEGMENT_SIZE) {
+            roll();
+        }
+        writeRecord(appendRecord(entry));
+        entry.segment = active;
+        entry.segment.pending++;
+        pending.put(entry.seq, entry);
+    }
+
+    private void writeRecord(byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            activeChannel.write(buffer);
+        }
+        dirty = true;
+    }
+
+    private void roll() throws IOException {
+        if (activeChannel != null) {
+            activeChannel.force(false);
+            activeChannel.close();
+        }
+        // named after the next sequence number, which is always higher than any existing segment's
+        File file = new File(directory, String.format("%s%019d%s", SEGMENT_PREFIX, nextSeq, SEGMENT_SUFFIX));
+        activeChannel = new FileOutputStream(file, true).getChannel();
+        active = new Segment(file);
+        segments.addLast(active);
+        compact();
+    }
+
+    /**
+     * Reads all segments, rewrites the unacknowledged messages into a new segment and removes the old ones.
+     */
+    private void recover() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+
+        Map<Long, Entry> recovered = new TreeMap<Long, Entry>();
+        for (File file : files) {
+            read(file, recovered);
+        }
+        long maxSeq = 0;
+        for (File file : files) {
+            maxSeq = Math.max(maxSeq, segmentNumber(file));
+        }
+        for (Long seq : recovered.keySet()) {
+            maxSeq = Math.max(maxSeq, seq);
+        }
+
+        synchronized (lock) {
+            nextSeq = maxSeq + 1;
+            for (Entry entry : recovered.values()) {
+                write(entry);
+            }
+            if (activeChannel != null) {
+                activeChannel.force(false);
+            }
+        }
+        for (File file : files) {
+            if (active == null || !file.equals(active.file)) {
+                file.delete();
+            }
+        }
+        if (!recovered.isEmpty()) {
+            LOGGER.info("Recovered " + recovered.size() + " undelivered campfire messages");
+        }
+    }
+
+    private void read(File file, Map<Long, Entry> entries) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                long checksum = in.readInt() & 0xffffffffL;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (crc.getValue() != checksum) {
+                    LOGGER.warning("Ignoring corrupt tail of campfire outbox segment " + file);
+                    return;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte kind = record.readByte();
+                long seq = record.readLong();
+                if (kind == APPEND) {
+                    String subdomain = record.readUTF();
+                    String account = record.readUTF();
+                    boolean ssl = record.readBoolean();
+                    String roomId = record.readUTF();
+                    entries.put(seq, new Entry(seq, subdomain, account, ssl, roomId.length() == 0 ? null : roomId,
+                        record.readUTF(), record.readUTF(), readString(record)));
+                } else if (kind == ACK) {
+                    entries.remove(seq);
+                }
+            }
+        } catch (EOFException e) {
+            LOGGER.warning("Ignoring truncated tail of campfire outbox segment " + file);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] appendRecord(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 + entry.body.length());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(APPEND);
+        out.writeLong(entry.seq);
+        out.writeUTF(entry.subdomain);
+        out.writeUTF(entry.account);
+        out.writeBoolean(entry.ssl);
+        // the id is resolved lazily, so it may not be known yet
+        out.writeUTF(entry.roomId == null ? "" : entry.roomId);
+        out.writeUTF(entry.roomName);
+        out.writeUTF(entry.type);
+        writeString(out, entry.body);
+        return frame(bytes.toByteArray());
+    }
+
+    private static byte[] ackRecord(long seq) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ACK);
+        out.writeLong(seq);
+        return frame(bytes.toByteArray());
+    }
+
+    private static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer framed = ByteBuffer.allocate(payload.length + 8);
+        framed.putInt(payload.length);
+        framed.putInt((int) crc.getValue());
+        framed.put(payload);
+        return framed.array();
+    }
+
+    // writeUTF is limited to 64k, which a paste message can exceed
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static long segmentNumber(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -4,4 +4,17 @@ import hudson.Plugin;
 
 public class PluginImpl extends Plugin {
 
+    @Override
+    public void postInitialize() throws Exception {
+        // open the outbox so that messages left over from before the restart are redelivered
+        Outbox.getInstanceIfEnabled();
+        // the command rooms are only joined once Jenkins is up, rather than while the configuration loads
+        RoomListener.getInstance().watch(CampfireNotifier.DESCRIPTOR.getCommandRoomList());
+    }
+
+    @Override
+    public void stop() throws Exception {
+        // leaves the command rooms and stops the listener's threads
+        RoomListener.getInstance().shutdown();
+    }
 }
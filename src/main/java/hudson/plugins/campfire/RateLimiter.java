@@ -0,0 +1,112 @@
+package hudson.plugins.campfire;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of requests made against one Campfire account. When Campfire
+ * asks us to back off (Retry-After), every caller for the account is paused, not just the one
+ * that was throttled.
+ */
+public class RateLimiter {
+    private static final double PERMITS_PER_SECOND = Double.parseDouble(System.getProperty(RateLimiter.class.getName() + ".permitsPerSecond", "5"));
+    private static final double BURST = Double.parseDouble(System.getProperty(RateLimiter.class.getName() + ".burst", "20"));
+
+    private static final ConcurrentMap<String, RateLimiter> LIMITERS = new ConcurrentHashMap<String, RateLimiter>();
+
+    private final double permitsPerSecond;
+    private final double burst;
+    private double available;
+    private long lastRefill = System.nanoTime();
+    private long pausedUntil = lastRefill;
+
+    public RateLimiter(double permitsPerSecond, double burst) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.available = burst;
+    }
+
+    public static RateLimiter forAccount(String subdomain, String token) {
+        String key = subdomain + "|" + token;
+        RateLimiter limiter = LIMITERS.get(key);
+        if (limiter == null) {
+            RateLimiter created = new RateLimiter(PERMITS_PER_SECOND, BURST);
+            limiter = LIMITERS.putIfAbsent(key, created);
+            if (limiter == null) {
+                limiter = created;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * Uses the given limiter for the account from now on, instead of one with the configured rate.
+     */
+    static void setForAccount(String subdomain, String token, RateLimiter limiter) {
+        LIMITERS.put(subdomain + "|" + token, limiter);
+    }
+
+    /**
+     * Takes one permit, waiting for it if necessary.
+     *
+     * @param deadline {@link System#nanoTime()} after which to give up
+     * @return false if no permit became available before the deadline
+     */
+    public synchronized boolean acquire(long deadline) throws InterruptedException {
+        while (true) {
+            long now = System.nanoTime();
+            refill(now);
+            long waitNanos;
+            if (now < pausedUntil) {
+                waitNanos = pausedUntil - now;
+            } else if (available >= 1) {
+                available -= 1;
+                return true;
+            } else {
+                waitNanos = (long) ((1 - available) / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+            }
+            if (now + waitNanos > deadline) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNanos, 1));
+        }
+    }
+
+    /**
+     * Takes one permit if one is available right now, without waiting.
+     *
+     * @return 0 if a permit was taken, otherwise roughly how many nanoseconds until one is available
+     */
+    public synchronized long tryAcquire() {
+        long now = System.nanoTime();
+        refill(now);
+        if (now < pausedUntil) {
+            return pausedUntil - now;
+        }
+        if (available >= 1) {
+            available -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) ((1 - available) / permitsPerSecond * TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    /**
+     * Stops handing out permits for the given time, e.g. because the server sent Retry-After.
+     */
+    public synchronized void pause(long millis) {
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        if (until > pausedUntil) {
+            pausedUntil = until;
+        }
+        available = 0;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            available = Math.min(burst, available + elapsed * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package hudson.plugins.campfire;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Incremental HTTP/1.1 response decoder, for bodies delimited by Content-Length, chunked encoding
+ * or the end of the connection, however the response is split across reads. The body is handed to
+ * {@link #body} as it is decoded, which by default collects it; room streams, whose body never
+ * ends, hand it straight to their parser instead. Whatever is fed beyond the end of the response is
+ * kept for the next response on the connection, see {@link #moveExtra}.
+ */
+class ResponseDecoder {
+    private static final int SIZE = 0, DATA = 1, DATA_END = 2, TRAILER = 3;
+
+    private final int maxSize;
+    private boolean started;
+    private boolean complete;
+
+    private byte[] head = new byte[1024];
+    private int headLength;
+    private boolean headRead;
+    private int status;
+    private final Map<String, String> headers = new HashMap<String, String>();
+    private boolean keepAlive;
+    private long contentLength = -1;
+    private boolean chunked;
+
+    private long bodyLength;
+    private ByteArrayOutputStream collected;
+
+    // chunked decoding state
+    private int chunkState = SIZE;
+    private long chunkRemaining;
+    private boolean sizeDigits;
+    private boolean chunkExtension;
+    private boolean emptyLine;
+
+    // the start of the next response
+    private byte[] extra;
+    private int extraLength;
+
+    /**
+     * @param maxSize the most the head, a collected body, or what follows the response may take up, in bytes
+     */
+    ResponseDecoder(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Called once the head of the response has been read, before any of its body.
+     */
+    protected void head() throws IOException {
+    }
+
+    /**
+     * Called with each piece of the body as it is decoded.
+     */
+    protected void body(byte[] bytes, int offset, int count) throws IOException {
+        if (collected == null) {
+            collected = new ByteArrayOutputStream();
+        }
+        if (collected.size() + count > maxSize) {
+            throw new IOException("Campfire response larger than " + maxSize + " bytes");
+        }
+        collected.write(bytes, offset, count);
+    }
+
+    boolean isStarted() {
+        return started;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive && (chunked || contentLength >= 0);
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * The body collected by the default {@link #body}.
+     */
+    byte[] getBody() {
+        return collected == null ? new byte[0] : collected.toByteArray();
+    }
+
+    void feed(byte[] bytes, int offset, int count) throws IOException {
+        if (count > 0) {
+            started = true;
+        }
+        int end = offset + count;
+        int i = offset;
+        while (i < end && !complete) {
+            i = headRead ? readBody(bytes, i, end) : readHead(bytes, i, end);
+        }
+        if (i < end) {
+            keepExtra(bytes, i, end - i);
+        }
+    }
+
+    /**
+     * The server has closed the connection, which ends a body that isn't delimited otherwise.
+     */
+    void endOfStream() {
+        if (headRead && !chunked && contentLength < 0) {
+            complete = true;
+        }
+    }
+
+    /**
+     * Whether more has been fed than the complete response, i.e. the start of the next one.
+     */
+    boolean hasExtra() {
+        return extraLength > 0;
+    }
+
+    /**
+     * Feeds whatever follows the complete response to the decoder for the next one.
+     */
+    void moveExtra(ResponseDecoder next) throws IOException {
+        if (extraLength > 0) {
+            int count = extraLength;
+            extraLength = 0;
+            next.feed(extra, 0, count);
+        }
+    }
+
+    private int readHead(byte[] bytes, int i, int end) throws IOException {
+        while (i < end) {
+            if (headLength == head.length) {
+                if (headLength >= maxSize) {
+                    throw new IOException("Campfire response headers larger than " + maxSize + " bytes");
+                }
+                byte[] grown = new byte[Math.min(head.length * 2, maxSize)];
+                System.arraycopy(head, 0, grown, 0, headLength);
+                head = grown;
+            }
+            head[headLength++] = bytes[i++];
+            if (headLength >= 4 && head[headLength - 1] == '\n' && head[headLength - 2] == '\r'
+                    && head[headLength - 3] == '\n' && head[headLength - 4] == '\r') {
+                parseHead(headLength - 4);
+                return i;
+            }
+        }
+        return i;
+    }
+
+    private void parseHead(int end) throws IOException {
+        String[] lines = new String(head, 0, end, "ISO-8859-1").split("\r\n");
+        headLength = 0;
+        String[] statusLine = lines[0].split(" ", 3);
+        if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed HTTP status line: " + lines[0]);
+        }
+        try {
+            status = Integer.parseInt(statusLine[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed HTTP status line: " + lines[0]);
+        }
+        if (status / 100 == 1) {
+            // 100 Continue and friends: drop them and wait for the real response
+            return;
+        }
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ENGLISH), lines[i].substring(colon + 1).trim());
+            }
+        }
+        String connection = headers.get("connection");
+        keepAlive = "HTTP/1.1".equals(statusLine[0])
+            ? !"close".equalsIgnoreCase(connection)
+            : "keep-alive".equalsIgnoreCase(connection);
+        chunked = "chunked".equalsIgnoreCase(headers.get("transfer-encoding"));
+        String declared = headers.get("content-length");
+        if (declared != null && !chunked) {
+            try {
+                contentLength = Long.parseLong(declared);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed Content-Length: " + declared);
+            }
+        }
+        headRead = true;
+        head();
+        complete = status == 204 || status == 304 || contentLength == 0;
+    }
+
+    private int readBody(byte[] bytes, int i, int end) throws IOException {
+        if (chunked) {
+            return readChunks(bytes, i, end);
+        }
+        int count = end - i;
+        if (contentLength >= 0) {
+            count = (int) Math.min(count, contentLength - bodyLength);
+        }
+        body(bytes, i, count);
+        bodyLength += count;
+        complete = bodyLength == contentLength;
+        return i + count;
+    }
+
+    private int readChunks(byte[] bytes, int i, int end) throws IOException {
+        while (i < end && !complete) {
+            if (chunkState == DATA) {
+                int count = (int) Math.min(chunkRemaining, end - i);
+                body(bytes, i, count);
+                i += count;
+                chunkRemaining -= count;
+                if (chunkRemaining == 0) {
+                    chunkState = DATA_END;
+                }
+                continue;
+            }
+            byte b = bytes[i++];
+            if (chunkState == DATA_END) {
+                // the CRLF after a chunk's data
+                if (b == '\n') {
+                    chunkState = SIZE;
+                }
+            } else if (chunkState == TRAILER) {
+                // trailers are skipped; the empty line ends the response
+                if (b == '\n') {
+                    complete = emptyLine;
+                    emptyLine = true;
+                } else if (b != '\r') {
+                    emptyLine = false;
+                }
+            } else if (b == '\n') {
+                if (!sizeDigits) {
+                    throw new IOException("Malformed chunk size in campfire response");
+                }
+                chunkState = chunkRemaining == 0 ? TRAILER : DATA;
+                sizeDigits = false;
+                chunkExtension = false;
+                emptyLine = true;
+            } else if (!chunkExtension) {
+                int digit = Character.digit(b, 16);
+                if (digit >= 0) {
+                    if (chunkRemaining > Integer.MAX_VALUE) {
+                        throw new IOException("Malformed chunk size in campfire response");
+                    }
+                    chunkRemaining = chunkRemaining * 16 + digit;
+                    sizeDigits = true;
+                } else if (b == ';') {
+                    chunkExtension = true;
+                } else if (b != '\r' && b != ' ' && b != '\t') {
+                    throw new IOException("Malformed chunk size in campfire response");
+                }
+            }
+        }
+        return i;
+    }
+
+    private void keepExtra(byte[] bytes, int offset, int count) throws IOException {
+        if (extraLength + count > maxSize) {
+            throw new IOException("Campfire response larger than " + maxSize + " bytes");
+        }
+        if (extra == null || extraLength + count > extra.length) {
+            byte[] grown = new byte[Math.max(extra == null ? 0 : extra.length * 2, extraLength + count)];
+            if (extraLength > 0) {
+                System.arraycopy(extra, 0, grown, 0, extraLength);
+            }
+            extra = grown;
+        }
+        System.arraycopy(bytes, offset, extra, extraLength, count);
+        extraLength += count;
+    }
+}
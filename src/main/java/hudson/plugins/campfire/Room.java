@@ -1,14 +1,23 @@
 package hudson.plugins.campfire;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class Room {
     private Campfire campfire;
     private String name;
-    private String id;
+    private volatile String id;
+    private static final Logger LOGGER = Logger.getLogger(Room.class.getName());
+    // resends after a stale room id, off the transport's threads
+    private static ExecutorService lookups;
 
     public Room(Campfire cf, String name, String id) {
         super();
@@ -25,12 +34,298 @@ public class Room {
         return this.id;
     }
 
+    /**
+     * Looks up the room's id by name, through the shared room cache, if it isn't known yet.
+     */
+    Room resolve() throws IOException {
+        if (id == null) {
+            Room resolved;
+            try {
+                resolved = campfire.findRoomByName(name);
+            } catch (RuntimeException e) {
+                throw (IOException) new IOException("Failed to look up campfire room '" + name + "': " + e.getMessage()).initCause(e);
+            }
+            if (resolved == null) {
+                throw new RejectedException("Room '" + name + "' not found - verify name and room permissions");
+            }
+            id = resolved.getId();
+        }
+        return this;
+    }
+
+    private static synchronized ExecutorService getLookups() {
+        if (lookups == null) {
+            lookups = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Campfire room lookup");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return lookups;
+    }
+
+    Campfire getCampfire() {
+        return this.campfire;
+    }
+
     public void speak(String message) throws IOException {
-        campfire.post("room/" + id + "/speak.xml", "<message><type>TextMessage</type><body>" + message + "</body></message>");
+        deliver("TextMessage", message);
     }
 
     public void play(String sound) throws IOException {
-        campfire.post("room/" + id + "/speak.xml", "<message><type>SoundMessage</type><body>" + sound + "</body></message>");
+        deliver("SoundMessage", sound);
+    }
+
+    public void paste(String message) throws IOException {
+        deliver("PasteMessage", message);
+    }
+
+    /**
+     * Speaks the message without waiting for Campfire to accept it.
+     *
+     * @see #deliverAsync(String, String)
+     */
+    public CampfireFuture<Void> speakAsync(String message) {
+        return deliverAsync("TextMessage", message);
+    }
+
+    /**
+     * Pastes the message without waiting for Campfire to accept it.
+     *
+     * @see #deliverAsync(String, String)
+     */
+    public CampfireFuture<Void> pasteAsync(String message) {
+        return deliverAsync("PasteMessage", message);
+    }
+
+    /**
+     * Plays the sound without waiting for Campfire to accept it.
+     *
+     * @see #deliverAsync(String, String)
+     */
+    public CampfireFuture<Void> playAsync(String sound) {
+        return deliverAsync("SoundMessage", sound);
+    }
+
+    /**
+     * Sends a message, journaling it first when the durable outbox is enabled so that it can be
+     * redelivered if Campfire can't be reached.
+     */
+    private void deliver(String type, String body) throws IOException {
+        Outbox outbox = Outbox.getInstanceIfEnabled();
+        long seq = -1;
+        if (outbox != null) {
+            try {
+                seq = outbox.append(this, type, body);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to journal campfire message, sending it without a journal entry", e);
+            }
+        }
+        boolean done = false;
+        try {
+            send(type, body);
+            done = true;
+        } catch (RejectedException e) {
+            // campfire won't accept this message however many times we try
+            done = true;
+            throw e;
+        } finally {
+            finish(outbox, seq, done);
+        }
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #deliver}. Looking up the room's id, the first time the room is
+     * used or after Campfire no longer knows its id, happens on the calling thread or on a
+     * background thread respectively. With room sessions enabled, the room's messages are pipelined
+     * on one connection kept for the room.
+     *
+     * @return a future that fails with the same exceptions {@link #deliver} would throw
+     */
+    private CampfireFuture<Void> deliverAsync(final String type, final String body) {
+        final Outbox outbox = Outbox.getInstanceIfEnabled();
+        long journaled = -1;
+        if (outbox != null) {
+            try {
+                journaled = outbox.append(this, type, body);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to journal campfire message, sending it without a journal entry", e);
+            }
+        }
+        final long seq = journaled;
+        final CampfireFuture<Void> result = new CampfireFuture<Void>();
+        final Metrics metrics = Metrics.forRoom(campfire.getSubdomain(), name, Metrics.Operation.SPEAK);
+        final long start = System.nanoTime();
+        final CampfireFuture<Integer> status;
+        try {
+            String roomId = resolve().getId();
+            status = campfire.postAsync("room/" + roomId + "/speak.xml", new MessageEntity(type, body),
+                CampfireNotifier.DESCRIPTOR.getRoomSessions() ? "room/" + roomId : null);
+        } catch (IOException e) {
+            metrics.recordFailure(start);
+            complete(result, outbox, seq, e);
+            return result;
+        }
+        status.addListener(new Runnable() {
+            public void run() {
+                Throwable failure = status.getFailure();
+                if (status.isCancelled()) {
+                    failure = new IOException("Campfire request to room '" + name + "' was cancelled");
+                    metrics.recordFailure(start);
+                } else if (failure == null) {
+                    metrics.record(start, status.getValue());
+                    try {
+                        checkResponse(status.getValue());
+                    } catch (NotFoundException e) {
+                        // looking the room up again may mean fetching rooms.xml, which mustn't
+                        // happen on the transport's thread
+                        getLookups().execute(new Runnable() {
+                            public void run() {
+                                Throwable retryFailure = null;
+                                try {
+                                    resendAfterNotFound(type, body);
+                                } catch (IOException e) {
+                                    retryFailure = e;
+                                } catch (RuntimeException e) {
+                                    retryFailure = e;
+                                }
+                                complete(result, outbox, seq, retryFailure);
+                            }
+                        });
+                        return;
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                } else {
+                    metrics.recordFailure(start);
+                }
+                complete(result, outbox, seq, failure);
+            }
+        });
+        return result;
+    }
+
+    private static void complete(CampfireFuture<Void> result, Outbox outbox, long seq, Throwable failure) {
+        finish(outbox, seq, failure == null || failure instanceof RejectedException);
+        if (failure == null) {
+            result.set(null);
+        } else {
+            result.fail(failure);
+        }
+    }
+
+    /**
+     * Acknowledges a journaled message that was delivered or can never be, or leaves it to be
+     * redelivered.
+     */
+    private static void finish(Outbox outbox, long seq, boolean done) {
+        if (seq < 0) {
+            return;
+        }
+        if (done) {
+            outbox.acknowledge(seq);
+        } else {
+            outbox.release(seq);
+        }
+    }
+
+    /**
+     * Posts a message to the room. If Campfire no longer knows the room's id, e.g. because the room
+     * was recreated, the room is looked up by name again and the message resent.
+     */
+    void send(String type, String body) throws IOException {
+        try {
+            post(type, body);
+        } catch (NotFoundException e) {
+            resendAfterNotFound(type, body);
+        }
+    }
+
+    private void resendAfterNotFound(String type, String body) throws IOException {
+        try {
+            post(type, body);
+        } catch (NotFoundException e) {
+            // the room is listed but still can't be posted to
+            throw new RejectedException(e.getMessage());
+        }
+    }
+
+    private void post(String type, String body) throws IOException {
+        String roomId = resolve().getId();
+        Metrics metrics = Metrics.forRoom(campfire.getSubdomain(), name, Metrics.Operation.SPEAK);
+        long start = System.nanoTime();
+        int status;
+        try {
+            status = campfire.post("room/" + roomId + "/speak.xml", new MessageEntity(type, body));
+        } catch (IOException e) {
+            metrics.recordFailure(start);
+            throw e;
+        }
+        metrics.record(start, status);
+        checkResponse(status);
+    }
+
+    /**
+     * Uploads a file to the room, e.g. a build artifact. The file is streamed to Campfire rather than
+     * read into memory.
+     */
+    public void upload(File file) throws IOException {
+        String roomId = resolve().getId();
+        Metrics metrics = Metrics.forRoom(campfire.getSubdomain(), name, Metrics.Operation.UPLOAD);
+        long start = System.nanoTime();
+        int status;
+        try {
+            status = campfire.upload("room/" + roomId + "/uploads.xml", file);
+        } catch (IOException e) {
+            metrics.recordFailure(start);
+            throw e;
+        }
+        metrics.record(start, status);
+        checkResponse(status);
+    }
+
+    public void join() throws IOException {
+        checkResponse(campfire.post("room/" + resolve().getId() + "/join.xml", ""));
+    }
+
+    public void leave() throws IOException {
+        checkResponse(campfire.post("room/" + resolve().getId() + "/leave.xml", ""));
+    }
+
+    private void checkResponse(int returnCode) throws IOException {
+        if (returnCode == 404) {
+            // the room has gone away or been recreated, so the cached room list can't be trusted
+            LOGGER.warning("Campfire room '" + name + "' (" + id + ") not found, invalidating cached rooms");
+            RoomCache.getInstance().invalidate(campfire);
+            id = null;
+            throw new NotFoundException("Campfire room '" + name + "' not found, response code: " + returnCode);
+        }
+        if (returnCode >= 400 && returnCode < 500 && returnCode != 429) {
+            throw new RejectedException("Campfire room '" + name + "' rejected message, response code: " + returnCode);
+        }
+        if (returnCode < 200 || returnCode >= 300) {
+            throw new IOException("Campfire room '" + name + "' failed to accept message, response code: " + returnCode);
+        }
+    }
+
+    /**
+     * Thrown when Campfire doesn't know the room's id, which may only be out of date.
+     */
+    static class NotFoundException extends IOException {
+        NotFoundException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when Campfire permanently refuses a message, so that retrying it is pointless.
+     */
+    static class RejectedException extends IOException {
+        RejectedException(String message) {
+            super(message);
+        }
     }
 
 }
@@ -0,0 +1,284 @@
+package hudson.plugins.campfire;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Shared cache of the ids of the rooms available to each Campfire account, keyed by subdomain and token.
+ * Concurrent lookups for the same account share a single fetch of rooms.xml. Once the rooms have
+ * been fetched, lookups are answered from the cache, and rooms older than the time to live are
+ * refreshed in the background while the cached ones are still handed out. Entries are dropped when
+ * a request reveals that a cached room no longer exists.
+ *
+ * <p>Configuration forms only wait a short time for rooms that aren't cached yet, see
+ * {@link #getRooms(Campfire, long)}, so that saving configurations never hangs on Campfire.
+ */
+public class RoomCache {
+    /**
+     * How long configuration forms wait for rooms that aren't cached yet, in milliseconds.
+     */
+    public static final long FORM_TIMEOUT = Long.getLong(RoomCache.class.getName() + ".formTimeout", 2000L);
+
+    private static final long TTL = Long.getLong(RoomCache.class.getName() + ".ttl", 300000L);
+    // how long a failed fetch is reported again before it is tried again
+    private static final long FAILURE_TTL = Long.getLong(RoomCache.class.getName() + ".failureTtl", 30000L);
+    private static final int MAX_SIZE = Integer.getInteger(RoomCache.class.getName() + ".maxSize", 100);
+    private static final int REFRESH_THREADS = Integer.getInteger(RoomCache.class.getName() + ".refreshThreads", 2);
+    private static final Logger LOGGER = Logger.getLogger(RoomCache.class.getName());
+
+    private static final RoomCache INSTANCE = new RoomCache();
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicInteger fetches = new AtomicInteger();
+    private ExecutorService refresher;
+
+    /**
+     * The room ids of one account. Entries keep neither the {@link Campfire} they were fetched with
+     * nor {@link Room}s, which refer to it, so that the cache never keeps an account's client alive.
+     */
+    private class Entry {
+        private volatile Map<String, String> rooms;
+        private volatile long loadedAt;
+        private volatile RuntimeException failure;
+        private volatile long failedAt;
+        // the fetch in progress, if any
+        private FutureTask<Map<String, String>> loading;
+
+        /**
+         * Starts fetching the rooms unless a fetch is already under way.
+         *
+         * @param campfire the account to fetch the rooms with
+         * @param here whether to fetch on the calling thread rather than in the background
+         * @return the fetch under way
+         */
+        private FutureTask<Map<String, String>> load(final Campfire campfire, boolean here) {
+            FutureTask<Map<String, String>> task;
+            synchronized (this) {
+                if (loading != null) {
+                    return loading;
+                }
+                task = new FutureTask<Map<String, String>>(new Callable<Map<String, String>>() {
+                    public Map<String, String> call() {
+                        try {
+                            return fetch(campfire);
+                        } finally {
+                            synchronized (Entry.this) {
+                                loading = null;
+                            }
+                        }
+                    }
+                });
+                loading = task;
+            }
+            if (here) {
+                task.run();
+            } else {
+                getRefresher().execute(task);
+            }
+            return task;
+        }
+
+        private Map<String, String> fetch(Campfire campfire) {
+            LOGGER.fine("Fetching rooms for campfire subdomain " + campfire.getSubdomain());
+            fetches.incrementAndGet();
+            try {
+                Map<String, String> fetched = new LinkedHashMap<String, String>();
+                for (Room room : campfire.getRooms()) {
+                    fetched.put(room.getName(), room.getId());
+                }
+                rooms = Collections.unmodifiableMap(fetched);
+                loadedAt = System.currentTimeMillis();
+                failure = null;
+                return rooms;
+            } catch (RuntimeException e) {
+                failure = e;
+                failedAt = System.currentTimeMillis();
+                throw e;
+            }
+        }
+
+        private Map<String, String> getCached(Campfire campfire) {
+            Map<String, String> cached = rooms;
+            if (cached != null && System.currentTimeMillis() - loadedAt > TTL && getRecentFailure() == null) {
+                load(campfire, false);
+            }
+            return cached;
+        }
+
+        private RuntimeException getRecentFailure() {
+            RuntimeException recent = failure;
+            return recent != null && System.currentTimeMillis() - failedAt < FAILURE_TTL ? recent : null;
+        }
+    }
+
+    public static RoomCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the ids of the given account's rooms by name, waiting for them to be fetched if they are not
+     * cached. Like {@link #getRooms(Campfire, long)}, a fetch that failed recently is reported again
+     * rather than retried.
+     *
+     * @throws RuntimeException if the rooms couldn't be fetched
+     */
+    public Map<String, String> getRooms(Campfire campfire) {
+        Entry entry = entryFor(campfire);
+        Map<String, String> cached = entry.getCached(campfire);
+        if (cached != null) {
+            return cached;
+        }
+        RuntimeException failure = entry.getRecentFailure();
+        if (failure != null) {
+            throw failure;
+        }
+        try {
+            return entry.load(campfire, true).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Returns the ids of the given account's rooms by name without waiting longer than the timeout for
+     * Campfire, for configuration forms. A fetch that failed recently is reported again rather than
+     * retried, so that saving many configurations while Campfire is unreachable doesn't send a
+     * request for each of them.
+     *
+     * @return the rooms, or null if they haven't been fetched within the timeout; the fetch carries on
+     *     in the background
+     * @throws RuntimeException if the rooms couldn't be fetched
+     */
+    public Map<String, String> getRooms(Campfire campfire, long timeout) {
+        Entry entry = entryFor(campfire);
+        Map<String, String> cached = entry.getCached(campfire);
+        if (cached != null) {
+            return cached;
+        }
+        RuntimeException failure = entry.getRecentFailure();
+        if (failure != null) {
+            throw failure;
+        }
+        try {
+            return entry.load(campfire, false).get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Looks up a room by name. A room missing from rooms that were fetched a while ago may have been
+     * created since, so they are fetched again before giving up on it.
+     */
+    public Room findRoomByName(Campfire campfire, String name) {
+        String id = getRooms(campfire).get(name);
+        Entry entry = entryFor(campfire);
+        if (id == null && System.currentTimeMillis() - entry.loadedAt > FAILURE_TTL) {
+            try {
+                id = entry.load(campfire, true).get().get(name);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            }
+        }
+        return id == null ? null : new Room(campfire, name, id);
+    }
+
+    /**
+     * Forgets the cached rooms of the given account, so that the next lookup fetches them again.
+     */
+    public void invalidate(Campfire campfire) {
+        entries.remove(keyFor(campfire));
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * Number of times rooms.xml has been requested.
+     */
+    public int getFetchCount() {
+        return fetches.get();
+    }
+
+    private Entry entryFor(Campfire campfire) {
+        String key = keyFor(campfire);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            Entry created = new Entry();
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+                evictIfFull();
+            }
+        }
+        return entry;
+    }
+
+    private synchronized ExecutorService getRefresher() {
+        if (refresher == null) {
+            refresher = Executors.newFixedThreadPool(REFRESH_THREADS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Campfire room cache #" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return refresher;
+    }
+
+    private void evictIfFull() {
+        while (entries.size() > MAX_SIZE) {
+            String oldestKey = null;
+            long oldest = Long.MAX_VALUE;
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (entry.getValue().rooms != null && entry.getValue().loadedAt < oldest) {
+                    oldest = entry.getValue().loadedAt;
+                    oldestKey = entry.getKey();
+                }
+            }
+            if (oldestKey == null) {
+                return;
+            }
+            entries.remove(oldestKey);
+        }
+    }
+
+    private static RuntimeException unwrap(ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+            return (RuntimeException) e.getCause();
+        }
+        return new RuntimeException(e.getCause());
+    }
+
+    private static String keyFor(Campfire campfire) {
+        return campfire.getSubdomain() + "|" + campfire.getToken();
+    }
+}
@@ -0,0 +1,184 @@
+package hudson.plugins.campfire;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Merges notifications that arrive for the same room within a short window into a single paste
+ * message, so that bursts of builds finishing together (matrix builds, pipeline fan-outs) cost one
+ * Campfire request and at most one sound instead of one of each per build.
+ */
+public class RoomCoalescer {
+    private static final Logger LOGGER = Logger.getLogger(RoomCoalescer.class.getName());
+    private static final RoomCoalescer INSTANCE = new RoomCoalescer();
+
+    private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Campfire notification coalescer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static class Notification {
+        private final String project;
+        private final String result;
+        private final String message;
+
+        private Notification(String project, String result, String message) {
+            this.project = project;
+            this.result = result;
+            this.message = message;
+        }
+    }
+
+    private class Batch implements Runnable {
+        private final String key;
+        private final Room room;
+        // when the first build in the window completed, for the recorded latency
+        private final long start = System.nanoTime();
+        private final List<Notification> notifications = new ArrayList<Notification>();
+        private String sound;
+        private boolean closed;
+
+        private Batch(String key, Room room) {
+            this.key = key;
+            this.room = room;
+        }
+
+        private synchronized boolean add(Notification notification, String notificationSound) {
+            if (closed) {
+                return false;
+            }
+            notifications.add(notification);
+            // a failure sound takes precedence over anything else in the window
+            if (notificationSound != null && (sound == null || "trombone".equals(notificationSound))) {
+                sound = notificationSound;
+            }
+            return true;
+        }
+
+        /**
+         * Closes the window and sends what it collected the way other notifications are sent,
+         * through the notification queue when notifications are asynchronous.
+         */
+        public void run() {
+            batches.remove(key, this);
+            synchronized (this) {
+                closed = true;
+            }
+            final boolean paste = notifications.size() > 1;
+            final String message = paste ? summarize(notifications) : notifications.get(0).message;
+            NotificationQueue.Notification notification = new NotificationQueue.Notification(
+                    notifications.size() + " coalesced build(s) to " + room.getName()) {
+                protected void send() throws IOException {
+                    RoomFanOut.send(Collections.singletonList(room), message, paste, sound, start);
+                }
+            };
+            try {
+                if (CampfireNotifier.DESCRIPTOR.getAsyncNotify()) {
+                    NotificationQueue.getInstance().enqueue(notification);
+                } else {
+                    notification.send();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.log(Level.WARNING, "Interrupted while queueing coalesced campfire notification", e);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to send coalesced campfire notification to " + room.getName(), e);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to send coalesced campfire notification to " + room.getName(), e);
+            }
+        }
+    }
+
+    public static RoomCoalescer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds a notification to the current window for the room, opening a new window if there is none.
+     *
+     * @param sound sound to play once the window closes, or null for none
+     */
+    public void add(Room room, String project, String result, String message, String sound, int windowSeconds) {
+        // the token too, so that rooms reached with different tokens aren't posted with the wrong one
+        Campfire campfire = room.getCampfire();
+        String key = campfire.getSubdomain() + "|" + campfire.getToken() + "|" + campfire.getSsl() + "/" + room.getName();
+        Notification notification = new Notification(project, result, message);
+        while (true) {
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                Batch created = new Batch(key, room);
+                batch = batches.putIfAbsent(key, created);
+                if (batch == null) {
+                    batch = created;
+                    scheduler.schedule(created, windowSeconds, TimeUnit.SECONDS);
+                }
+            }
+            if (batch.add(notification, sound)) {
+                return;
+            }
+            // the window closed while we were adding to it, so start a new one
+            batches.remove(key, batch);
+        }
+    }
+
+    private static String summarize(List<Notification> notifications) {
+        Map<String, Integer> totals = new LinkedHashMap<String, Integer>();
+        Map<String, Map<String, Integer>> perProject = new LinkedHashMap<String, Map<String, Integer>>();
+        for (Notification notification : notifications) {
+            increment(totals, notification.result);
+            Map<String, Integer> counts = perProject.get(notification.project);
+            if (counts == null) {
+                counts = new LinkedHashMap<String, Integer>();
+                perProject.put(notification.project, counts);
+            }
+            increment(counts, notification.result);
+        }
+
+        StringBuilder summary = new StringBuilder();
+        summary.append(notifications.size()).append(" builds finished: ");
+        appendCounts(summary, totals);
+        summary.append('\n');
+        for (Map.Entry<String, Map<String, Integer>> project : perProject.entrySet()) {
+            summary.append(project.getKey()).append(": ");
+            appendCounts(summary, project.getValue());
+            summary.append('\n');
+        }
+        summary.append('\n');
+        for (Notification notification : notifications) {
+            summary.append(notification.message).append('\n');
+        }
+        return summary.toString();
+    }
+
+    private static void increment(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    private static void appendCounts(StringBuilder summary, Map<String, Integer> counts) {
+        boolean first = true;
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            if (!first) {
+                summary.append(", ");
+            }
+            summary.append(count.getValue()).append(' ').append(count.getKey());
+            first = false;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package hudson.plugins.campfire;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Sends one notification to several rooms in parallel, on a pool shared by all notifiers or through
+ * an asynchronous transport, and waits until every room has been sent to or the overall deadline
+ * has passed. Sends still running at the deadline are cancelled. The outcome for each room is recorded in its {@link Metrics}.
+ */
+public class RoomFanOut {
+    private static final int THREADS = Integer.getInteger(RoomFanOut.class.getName() + ".threads", 8);
+    private static final long DEADLINE = Long.getLong(RoomFanOut.class.getName() + ".deadline", 120000L);
+    private static final Logger LOGGER = Logger.getLogger(RoomFanOut.class.getName());
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Campfire room fan-out #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private RoomFanOut() {
+    }
+
+    /**
+     * Speaks the message in each room, then plays the sound if there is one. With an
+     * {@link AsyncTransport} every room is sent to at once from the calling thread, without the pool.
+     *
+     * @param start {@link System#nanoTime()} when the build completed, for the recorded latency
+     * @throws IOException naming every room that could not be notified
+     */
+    public static void send(List<Room> rooms, String message, String sound, long start) throws IOException {
+        send(rooms, message, false, sound, start);
+    }
+
+    /**
+     * @param paste whether to send the message as a paste, e.g. for a summary spanning several lines
+     * @see #send(List, String, String, long)
+     */
+    public static void send(List<Room> rooms, String message, boolean paste, String sound, long start) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DEADLINE);
+        List<Delivery> deliveries = new ArrayList<Delivery>(rooms.size());
+        for (Room room : rooms) {
+            deliveries.add(new Delivery(room, message, paste, sound, start));
+        }
+
+        List<Future<Void>> results;
+        if (!rooms.isEmpty() && rooms.get(0).getCampfire().getTransport() instanceof AsyncTransport) {
+            results = new ArrayList<Future<Void>>(deliveries.size());
+            for (Delivery delivery : deliveries) {
+                results.add(delivery.start());
+            }
+        } else {
+            // even a single room goes through the pool, so that it is held to the deadline
+            try {
+                results = EXECUTOR.invokeAll(deliveries, DEADLINE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw (IOException) new InterruptedIOException("Interrupted notifying campfire rooms").initCause(e);
+            }
+        }
+
+        StringBuilder failures = new StringBuilder();
+        for (int i = 0; i < deliveries.size(); i++) {
+            Delivery delivery = deliveries.get(i);
+            String failure = null;
+            try {
+                results.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (CancellationException e) {
+                failure = "not sent within " + DEADLINE + "ms";
+                delivery.record(false);
+            } catch (TimeoutException e) {
+                results.get(i).cancel(false);
+                failure = "not sent within " + DEADLINE + "ms";
+                delivery.record(false);
+            } catch (ExecutionException e) {
+                failure = String.valueOf(e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                throw (IOException) new InterruptedIOException("Interrupted notifying campfire rooms").initCause(e);
+            }
+            if (failure != null) {
+                failures.append(failures.length() == 0 ? "" : "; ").append(delivery.room.getName()).append(": ").append(failure);
+            }
+        }
+        if (failures.length() > 0) {
+            throw new IOException("Failed to notify campfire rooms - " + failures);
+        }
+    }
+
+    /**
+     * Speaks the message in one room, then plays the sound if there is one, without waiting for
+     * either. Unless the room's account uses an {@link AsyncTransport}, the requests are sent on the
+     * calling thread.
+     *
+     * @param start {@link System#nanoTime()} when the notification was asked for, for the recorded latency
+     */
+    static CampfireFuture<Void> start(Room room, String message, String sound, long start) {
+        return new Delivery(room, message, false, sound, start).start();
+    }
+
+    /**
+     * The notification for one room. Its outcome is recorded once, by whichever of the sending
+     * thread or the deadline gets there first.
+     */
+    private static class Delivery implements Callable<Void> {
+        private final Room room;
+        private final String message;
+        private final boolean paste;
+        private final String sound;
+        private final long start;
+        private final AtomicBoolean recorded = new AtomicBoolean();
+
+        Delivery(Room room, String message, boolean paste, String sound, long start) {
+            this.room = room;
+            this.message = message;
+            this.paste = paste;
+            this.sound = sound;
+            this.start = start;
+        }
+
+        public Void call() throws IOException {
+            try {
+                if (paste) {
+                    room.paste(message);
+                } else {
+                    room.speak(message);
+                }
+                if (sound != null) {
+                    room.play(sound);
+                }
+            } catch (IOException e) {
+                record(false);
+                throw e;
+            }
+            record(true);
+            LOGGER.fine("Notified campfire room " + room.getName());
+            return null;
+        }
+
+        /**
+         * Sends without blocking, playing the sound once the message has been accepted. Cancelling
+         * the returned future, e.g. at the deadline, cancels the message, and the sound isn't played.
+         */
+        CampfireFuture<Void> start() {
+            final CampfireFuture<Void> done = new CampfireFuture<Void>();
+            final CampfireFuture<Void> spoken = paste ? room.pasteAsync(message) : room.speakAsync(message);
+            done.addListener(new Runnable() {
+                public void run() {
+                    if (done.isCancelled()) {
+                        spoken.cancel(false);
+                    }
+                }
+            });
+            spoken.addListener(new Runnable() {
+                public void run() {
+                    if (spoken.isCancelled()) {
+                        record(false);
+                        done.cancel(false);
+                        return;
+                    }
+                    if (spoken.getFailure() != null || sound == null) {
+                        finish(done, spoken);
+                        return;
+                    }
+                    final CampfireFuture<Void> played = room.playAsync(sound);
+                    played.addListener(new Runnable() {
+                        public void run() {
+                            finish(done, played);
+                        }
+                    });
+                }
+            });
+            return done;
+        }
+
+        private void finish(CampfireFuture<Void> done, CampfireFuture<Void> last) {
+            Throwable failure = last.getFailure();
+            record(failure == null);
+            if (failure == null) {
+                LOGGER.fine("Notified campfire room " + room.getName());
+                done.set(null);
+            } else {
+                done.fail(failure);
+            }
+        }
+
+        void record(boolean succeeded) {
+            if (recorded.compareAndSet(false, true)) {
+                Metrics metrics = Metrics.forRoom(room.getCampfire().getSubdomain(), room.getName(), Metrics.Operation.PUBLISH);
+                if (succeeded) {
+                    metrics.recordSuccess(start);
+                } else {
+                    metrics.recordFailure(start);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package hudson.plugins.campfire;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pull parser for the rooms.xml document returned by the Campfire API. Only the id and name of
+ * each room are extracted, straight from the response stream, without building a DOM.
+ */
+public class RoomListParser {
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        return factory;
+    }
+
+    private RoomListParser() {
+    }
+
+    public static List<Room> parse(Campfire campfire, InputStream body) throws XMLStreamException {
+        List<Room> rooms = new ArrayList<Room>();
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(body);
+        try {
+            int depth = 0;
+            int roomDepth = -1;
+            String name = null;
+            String id = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String element = reader.getLocalName();
+                    if (roomDepth < 0) {
+                        if ("room".equals(element)) {
+                            roomDepth = depth;
+                            name = null;
+                            id = null;
+                        }
+                    } else if (depth == roomDepth + 1 && "name".equals(element) && name == null) {
+                        name = reader.getElementText();
+                        depth--;
+                    } else if (depth == roomDepth + 1 && "id".equals(element) && id == null) {
+                        id = reader.getElementText();
+                        depth--;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth == roomDepth) {
+                        if (name != null && id != null) {
+                            rooms.add(new Room(campfire, name.trim(), id.trim()));
+                        }
+                        roomDepth = -1;
+                    }
+                    depth--;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return rooms;
+    }
+}
@@ -0,0 +1,519 @@
+package hudson.plugins.campfire;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Listens to rooms for chat commands. Each watched room has one streaming connection to Campfire,
+ * and a single thread drives all of them with non-blocking I/O, TLS included, parsing messages as
+ * they arrive. Dropped streams are reopened with exponential backoff. Commands are run, and
+ * answered, on a thread of their own, so that a slow command or reply never holds up the streams,
+ * and the blocking requests needed to open a stream, such as joining the room, on another, so that
+ * streams can be reopened while replies wait for the rate limit.
+ *
+ * <p>Streams connect to Campfire directly, not through the Jenkins proxy.
+ */
+public class RoomListener {
+    private static final int CONNECT_TIMEOUT = Integer.getInteger(RoomListener.class.getName() + ".connectTimeout", 10000);
+    // Campfire sends a keep-alive every few seconds, so a stream that stays silent has gone away
+    private static final long READ_TIMEOUT = Long.getLong(RoomListener.class.getName() + ".readTimeout", 60000L);
+    private static final long INITIAL_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = Long.getLong(RoomListener.class.getName() + ".maxBackoff", 300000L);
+    // a stream that stayed up this long starts its backoff over when it drops
+    private static final long STABLE_AFTER = 60000;
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+    private static final Random RANDOM = new Random();
+    private static final Logger LOGGER = Logger.getLogger(RoomListener.class.getName());
+
+    private static final int WAITING = 0, PREPARING = 1, CONNECTING = 2, STREAMING = 3, STOPPED = 4;
+
+    private static RoomListener instance;
+
+    /**
+     * Answers messages posted in watched rooms.
+     */
+    public interface CommandHandler {
+        /**
+         * @return the reply to speak in the room, or null if the message isn't a command
+         */
+        String handle(Room room, String message);
+    }
+
+    private final CommandHandler handler;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger watched = new AtomicInteger();
+    private final AtomicInteger connected = new AtomicInteger();
+    private volatile boolean running = true;
+    private Selector selector;
+    private Thread thread;
+    private ExecutorService commands;
+    private ExecutorService setup;
+
+    // only touched by the selector thread
+    private final Map<String, Stream> streams = new HashMap<String, Stream>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+
+    public RoomListener(CommandHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Returns the listener for the rooms in the global configuration, which runs their commands
+     * against Jenkins.
+     */
+    public static synchronized RoomListener getInstance() {
+        if (instance == null) {
+            instance = new RoomListener(new ChatCommands());
+        }
+        return instance;
+    }
+
+    /**
+     * Listens to exactly the given rooms from now on: streams are opened for rooms that weren't
+     * watched yet and closed for rooms no longer in the list.
+     */
+    public void watch(List<Room> rooms) {
+        final Map<String, Room> wanted = new LinkedHashMap<String, Room>();
+        for (Room room : rooms) {
+            wanted.put(key(room), room);
+        }
+        synchronized (this) {
+            if (thread == null) {
+                if (wanted.isEmpty()) {
+                    return;
+                }
+                try {
+                    start();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to start listening to campfire rooms", e);
+                    return;
+                }
+            }
+        }
+        tasks.add(new Runnable() {
+            public void run() {
+                update(wanted);
+            }
+        });
+        selector.wakeup();
+    }
+
+    /**
+     * Number of rooms being listened to.
+     */
+    public int getWatchedCount() {
+        return watched.get();
+    }
+
+    /**
+     * Number of watched rooms whose stream is currently open.
+     */
+    public int getConnectedCount() {
+        return connected.get();
+    }
+
+    /**
+     * Closes every stream and stops the listener's threads.
+     */
+    public synchronized void shutdown() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private static String key(Room room) {
+        Campfire campfire = room.getCampfire();
+        return campfire.getSubdomain() + "|" + campfire.getToken() + "|" + campfire.getSsl() + "|" + room.getName();
+    }
+
+    private synchronized void start() throws IOException {
+        if (!running) {
+            throw new IOException("Campfire room listener has been shut down");
+        }
+        selector = Selector.open();
+        commands = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Campfire chat commands");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        setup = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Campfire room listener setup");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        thread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, "Campfire room listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                selector.select(1000);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ((Stream) key.attachment()).ready(key);
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                long now = System.currentTimeMillis();
+                for (Stream stream : streams.values()) {
+                    stream.tick(now);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Campfire room listener failed", e);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Campfire room listener failed", e);
+            }
+        }
+
+        for (Stream stream : streams.values()) {
+            stream.stop();
+        }
+        streams.clear();
+        watched.set(0);
+        commands.shutdown();
+        setup.shutdown();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close campfire selector", e);
+        }
+    }
+
+    private void update(Map<String, Room> wanted) {
+        for (Iterator<Map.Entry<String, Stream>> i = streams.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<String, Stream> entry = i.next();
+            if (!wanted.containsKey(entry.getKey())) {
+                entry.getValue().stop();
+                i.remove();
+            }
+        }
+        for (Map.Entry<String, Room> entry : wanted.entrySet()) {
+            if (!streams.containsKey(entry.getKey())) {
+                streams.put(entry.getKey(), new Stream(entry.getValue()));
+            }
+        }
+        watched.set(streams.size());
+    }
+
+    private static long backoff(int failures) {
+        long ceiling = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(failures - 1, 20));
+        // equal jitter, so that rooms that dropped together don't all reconnect together
+        return ceiling / 2 + (long) (RANDOM.nextDouble() * (ceiling / 2));
+    }
+
+    /**
+     * The stream of one watched room, from joining the room through reconnecting after a failure.
+     */
+    private class Stream implements MessageStreamParser.Handler, TlsSession.Receiver {
+        final Room room;
+        final MessageStreamParser parser = new MessageStreamParser(this);
+        int state = WAITING;
+        long nextAttempt;
+        int failures;
+        long userId = -1;
+        long openedAt;
+        long lastRead;
+
+        String host;
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer request;
+        // set for https streams
+        TlsSession tls;
+
+        ResponseDecoder response;
+        boolean inBody;
+
+        Stream(Room room) {
+            this.room = room;
+        }
+
+        void tick(long now) {
+            if (state == WAITING && now >= nextAttempt) {
+                prepare();
+            } else if (state == CONNECTING && now - lastRead > CONNECT_TIMEOUT) {
+                failed(new SocketTimeoutException("Timed out connecting to " + host));
+            } else if (state == STREAMING && now - lastRead > READ_TIMEOUT) {
+                failed(new SocketTimeoutException("Nothing received from " + host + " for " + READ_TIMEOUT + "ms"));
+            }
+        }
+
+        /**
+         * Looks up everything the stream needs with blocking calls, on the setup thread, and then
+         * connects on the selector thread.
+         */
+        private void prepare() {
+            state = PREPARING;
+            final long knownUserId = userId;
+            setup.execute(new Runnable() {
+                public void run() {
+                    try {
+                        Campfire campfire = room.getCampfire();
+                        room.resolve();
+                        final long ownId = knownUserId >= 0 ? knownUserId : campfire.getUserId();
+                        // messages are only streamed to users in the room
+                        room.join();
+                        final URL url = new URL(campfire.getStreamingUrl() + "/room/" + room.getId() + "/live.json");
+                        int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+                        final InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+                        if (address.isUnresolved()) {
+                            throw new UnknownHostException(url.getHost());
+                        }
+                        final byte[] encoded = encode(campfire, url);
+                        tasks.add(new Runnable() {
+                            public void run() {
+                                if (state != PREPARING) {
+                                    return;
+                                }
+                                userId = ownId;
+                                try {
+                                    connect(url, address, encoded);
+                                } catch (IOException e) {
+                                    failed(e);
+                                }
+                            }
+                        });
+                    } catch (final Exception e) {
+                        tasks.add(new Runnable() {
+                            public void run() {
+                                if (state == PREPARING) {
+                                    failed(e);
+                                }
+                            }
+                        });
+                    }
+                    selector.wakeup();
+                }
+            });
+        }
+
+        private void connect(URL url, InetSocketAddress address, byte[] encoded) throws IOException {
+            host = url.getHost();
+            request = ByteBuffer.wrap(encoded);
+            tls = "https".equals(url.getProtocol()) ? new TlsSession(host, address.getPort()) : null;
+            response = new ResponseDecoder(MAX_HEADER_SIZE) {
+                protected void head() throws IOException {
+                    if (getStatus() != 200) {
+                        throw new IOException("Campfire refused to stream room '" + room.getName() + "': HTTP status " + getStatus());
+                    }
+                    inBody = true;
+                    connected.incrementAndGet();
+                    if (failures > 0) {
+                        LOGGER.info("Listening to campfire room '" + room.getName() + "' again");
+                    }
+                }
+
+                protected void body(byte[] bytes, int offset, int count) {
+                    parser.feed(bytes, offset, count);
+                }
+            };
+            state = CONNECTING;
+            lastRead = System.currentTimeMillis();
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            key = channel.register(selector, 0, this);
+            if (channel.connect(address)) {
+                connected();
+            } else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            }
+        }
+
+        private void connected() throws IOException {
+            state = STREAMING;
+            openedAt = lastRead = System.currentTimeMillis();
+            if (tls != null) {
+                tls.begin();
+                pump();
+            } else {
+                write();
+            }
+        }
+
+        void ready(SelectionKey selected) {
+            try {
+                if (!selected.isValid()) {
+                    return;
+                }
+                if (selected.isConnectable()) {
+                    channel.finishConnect();
+                    connected();
+                } else if (tls != null) {
+                    if (selected.isReadable() && !tls.read(channel)) {
+                        throw new EOFException("Campfire closed the stream");
+                    }
+                    pump();
+                } else if (selected.isWritable()) {
+                    write();
+                } else if (selected.isReadable()) {
+                    readBuffer.clear();
+                    int read = channel.read(readBuffer);
+                    if (read < 0) {
+                        throw new EOFException("Campfire closed the stream");
+                    }
+                    received(readBuffer.array(), 0, read);
+                }
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+
+        private void write() throws IOException {
+            channel.write(request);
+            key.interestOps(request.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void pump() throws IOException {
+            int ops = tls.pump(channel, request, this);
+            if (ops == TlsSession.CLOSED) {
+                throw new EOFException("Campfire closed the stream");
+            }
+            key.interestOps(ops);
+        }
+
+        public void received(byte[] bytes, int offset, int count) throws IOException {
+            lastRead = System.currentTimeMillis();
+            response.feed(bytes, offset, count);
+            if (response.isComplete()) {
+                throw new EOFException("Campfire ended the stream");
+            }
+        }
+
+        public void message(long sender, String type, final String body) {
+            // the replies we speak come back on the stream too
+            if (!"TextMessage".equals(type) || body == null || sender == userId) {
+                return;
+            }
+            commands.execute(new Runnable() {
+                public void run() {
+                    try {
+                        String reply = handler.handle(room, body);
+                        if (reply != null) {
+                            room.speak(reply);
+                        }
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to answer '" + body + "' in campfire room '" + room.getName() + "'", e);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Failed to answer '" + body + "' in campfire room '" + room.getName() + "'", e);
+                    }
+                }
+            });
+        }
+
+        void failed(Exception cause) {
+            close();
+            long now = System.currentTimeMillis();
+            if (openedAt > 0 && now - openedAt >= STABLE_AFTER) {
+                failures = 0;
+            }
+            openedAt = 0;
+            failures++;
+            long delay = backoff(failures);
+            // log the first failure of a run, and only trace the retries that follow
+            LOGGER.log(failures == 1 ? Level.WARNING : Level.FINE, "Lost campfire stream for room '" + room.getName()
+                + "', reconnecting in " + delay + "ms: " + cause.getMessage(), failures == 1 ? null : cause);
+            state = WAITING;
+            nextAttempt = now + delay;
+        }
+
+        void stop() {
+            // the room has been joined once the stream got as far as connecting
+            boolean joined = userId >= 0;
+            close();
+            state = STOPPED;
+            if (joined && !setup.isShutdown()) {
+                setup.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            room.leave();
+                        } catch (IOException e) {
+                            LOGGER.log(Level.FINE, "Failed to leave campfire room '" + room.getName() + "'", e);
+                        } catch (RuntimeException e) {
+                            LOGGER.log(Level.FINE, "Failed to leave campfire room '" + room.getName() + "'", e);
+                        }
+                    }
+                });
+            }
+        }
+
+        private void close() {
+            if (state == STREAMING && inBody) {
+                connected.decrementAndGet();
+            }
+            if (key != null) {
+                key.cancel();
+                key = null;
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to close campfire stream for room '" + room.getName() + "'", e);
+                }
+                channel = null;
+            }
+            if (tls != null) {
+                tls.close();
+                tls = null;
+            }
+            parser.reset();
+            response = null;
+            inBody = false;
+        }
+    }
+
+    private static byte[] encode(Campfire campfire, URL url) throws IOException {
+        StringBuilder head = new StringBuilder(256);
+        head.append("GET ").append(url.getFile()).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() >= 0) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\n");
+        head.append("Authorization: Basic ")
+            .append(new String(Base64.encodeBase64((campfire.getToken() + ":x").getBytes("UTF-8")), "US-ASCII")).append("\r\n");
+        head.append("User-Agent: ").append(ConnectionPool.USER_AGENT).append("\r\n");
+        head.append("Accept: application/json\r\n");
+        head.append("\r\n");
+        return head.toString().getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,231 @@
+package hudson.plugins.campfire;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * TLS over a non-blocking socket channel, for the selector threads of {@link NioTransport} and
+ * {@link RoomListener}. Nothing here blocks: {@link #pump} moves handshake records, outgoing bytes
+ * and whatever has been read from the network through the engine as far as it can, and tells the
+ * caller what to wait for next. The server's certificate is checked against the host once the
+ * handshake is done, which SSLEngine leaves to its caller.
+ */
+class TlsSession {
+    /**
+     * Returned by {@link #pump} once the server has closed the session.
+     */
+    static final int CLOSED = -1;
+
+    private static final Pattern COMMON_NAME = Pattern.compile("(?:^|,)\\s*CN=([^,]+)");
+
+    private static SSLContext sslContext;
+
+    /**
+     * Receives the decrypted bytes.
+     */
+    interface Receiver {
+        void received(byte[] bytes, int offset, int count) throws IOException;
+    }
+
+    private final String host;
+    private final SSLEngine engine;
+    private ByteBuffer netIn;
+    private final ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private boolean verified;
+
+    TlsSession(String host, int port) throws IOException {
+        this.host = host;
+        engine = getSslContext().createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut.flip();
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+    }
+
+    private static synchronized SSLContext getSslContext() throws IOException {
+        if (sslContext == null) {
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+                sslContext = context;
+            } catch (GeneralSecurityException e) {
+                throw (IOException) new IOException("TLS is not available: " + e.getMessage()).initCause(e);
+            }
+        }
+        return sslContext;
+    }
+
+    /**
+     * Starts the handshake, once the channel is connected.
+     */
+    void begin() throws IOException {
+        engine.beginHandshake();
+    }
+
+    /**
+     * Reads what the network has for the engine, to be decrypted by the next {@link #pump}.
+     *
+     * @return false if the server closed the connection
+     */
+    boolean read(SocketChannel channel) throws IOException {
+        if (!netIn.hasRemaining()) {
+            netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+        }
+        return channel.read(netIn) >= 0;
+    }
+
+    /**
+     * Moves data through the engine as far as it will go without blocking: handshake records, the
+     * outgoing bytes once the handshake is done, and whatever has been read from the network.
+     *
+     * @param out bytes to send, consumed as they are encrypted
+     * @return the operations to wait for on the channel before pumping again, or {@link #CLOSED}
+     */
+    int pump(SocketChannel channel, ByteBuffer out, Receiver receiver) throws IOException {
+        while (true) {
+            if (netOut.hasRemaining()) {
+                channel.write(netOut);
+                if (netOut.hasRemaining()) {
+                    return SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+                }
+            }
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            boolean handshaking = status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                && status != SSLEngineResult.HandshakeStatus.FINISHED;
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                continue;
+            }
+            if (!handshaking && !verified) {
+                verifyHost(host, engine.getSession());
+                verified = true;
+            }
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP || (!handshaking && out.hasRemaining())) {
+                netOut.clear();
+                SSLEngineResult result = engine.wrap(out, netOut);
+                netOut.flip();
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    return CLOSED;
+                }
+                continue;
+            }
+
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            if (appIn.position() > 0) {
+                appIn.flip();
+                receiver.received(appIn.array(), 0, appIn.limit());
+                appIn.clear();
+            }
+            switch (result.getStatus()) {
+                case CLOSED:
+                    return CLOSED;
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    continue;
+                case BUFFER_UNDERFLOW:
+                    return SelectionKey.OP_READ;
+                default:
+                    SSLEngineResult.HandshakeStatus next = result.getHandshakeStatus();
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                            && next != SSLEngineResult.HandshakeStatus.NEED_TASK
+                            && next != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                        return SelectionKey.OP_READ;
+                    }
+            }
+        }
+    }
+
+    void close() {
+        engine.closeOutbound();
+        try {
+            engine.closeInbound();
+        } catch (SSLException e) {
+            // expected, as the server never got to close the session
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int size) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    /**
+     * Checks that the server's certificate was issued for the host.
+     */
+    static void verifyHost(String host, SSLSession session) throws IOException {
+        Certificate[] chain = session.getPeerCertificates();
+        if (chain.length == 0 || !(chain[0] instanceof X509Certificate)) {
+            throw new SSLPeerUnverifiedException("No server certificate from " + host);
+        }
+        X509Certificate certificate = (X509Certificate) chain[0];
+        List<String> names = new ArrayList<String>();
+        try {
+            Collection<List<?>> alternatives = certificate.getSubjectAlternativeNames();
+            if (alternatives != null) {
+                for (List<?> alternative : alternatives) {
+                    // 2 is dNSName
+                    if (((Integer) alternative.get(0)).intValue() == 2) {
+                        names.add((String) alternative.get(1));
+                    }
+                }
+            }
+        } catch (CertificateParsingException e) {
+            throw (IOException) new SSLPeerUnverifiedException("Unreadable server certificate from " + host).initCause(e);
+        }
+        if (names.isEmpty()) {
+            Matcher commonName = COMMON_NAME.matcher(certificate.getSubjectX500Principal().getName());
+            if (commonName.find()) {
+                names.add(commonName.group(1).trim());
+            }
+        }
+        for (String name : names) {
+            if (matchesHost(name, host)) {
+                return;
+            }
+        }
+        throw new SSLPeerUnverifiedException("Certificate for " + names + " does not match " + host);
+    }
+
+    static boolean matchesHost(String name, String host) {
+        name = name.toLowerCase(Locale.ENGLISH);
+        host = host.toLowerCase(Locale.ENGLISH);
+        if (name.startsWith("*.")) {
+            // a wildcard stands for exactly one label
+            int dot = host.indexOf('.');
+            return dot > 0 && host.substring(dot).equals(name.substring(1));
+        }
+        return name.equals(host);
+    }
+}
@@ -0,0 +1,40 @@
+package hudson.plugins.campfire;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * How requests get to Campfire. Implementations perform a single exchange; rate limiting, retries
+ * and the circuit breaker are applied by {@link Campfire} on top of whichever transport is in use.
+ *
+ * <p>Request bodies are commons-httpclient {@link RequestEntity}s, which only describe how to
+ * write themselves to a stream, so transports that don't use commons-httpclient can send them too.
+ */
+public interface Transport {
+    /**
+     * Performs one request. The response must be closed once it has been read.
+     *
+     * @param campfire the account making the request, for its credentials
+     * @param method "GET" or "POST"
+     * @param body the request body, or null for a GET
+     */
+    Response execute(Campfire campfire, String method, String url, RequestEntity body) throws IOException;
+
+    interface Response {
+        int getStatus();
+
+        /**
+         * @return the value of the named response header, or null if there is none
+         */
+        String getHeader(String name);
+
+        InputStream getBody() throws IOException;
+
+        /**
+         * Releases the connection the response came in on.
+         */
+        void close();
+    }
+}
@@ -0,0 +1,92 @@
+package hudson.plugins.campfire;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends messages from many parallel script branches at once through {@link CampfireSend}, against a
+ * {@link StubCampfireServer} that is slow to accept them. As in a build script, every branch is
+ * started from one thread, which only waits for the messages after starting them all. Checks that
+ * starting the sends keeps that thread busy for much less time than sending takes, and that every
+ * message and sound arrives.
+ */
+public class CampfireSendTest extends TestCase {
+    private static final int BRANCHES = 200;
+    private static final int MESSAGES = 3;
+    private static final int ROOMS = 10;
+
+    private StubCampfireServer server;
+    private NioTransport nio;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubCampfireServer(ROOMS, 64);
+        server.setPostDelay(50);
+        RoomCache.getInstance().invalidateAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (nio != null) {
+            nio.shutdown();
+        }
+        server.stop();
+        RoomCache.getInstance().invalidateAll();
+        Campfire.configure(null, new CommonsHttpTransport());
+    }
+
+    public void testBranchesArentHeldUpWithNioTransport() throws Exception {
+        nio = new NioTransport(NioTransport.DEFAULT_MAX_IN_FLIGHT_PER_HOST);
+        Campfire.configure(server.getUrl() + "/{subdomain}", nio);
+        assertSentWithoutHoldingTheScript("send-nio");
+    }
+
+    public void testBranchesArentHeldUpWithCommonsTransport() throws Exception {
+        Campfire.configure(server.getUrl() + "/{subdomain}", new CommonsHttpTransport());
+        assertSentWithoutHoldingTheScript("send-commons");
+    }
+
+    public void testTemplateNeedsABuild() throws Exception {
+        CampfireSend send = new CampfireSend(new Room(Campfire.forAccount("send-template", "token", false), "Room 1", "1"));
+        send.setTemplate("$PROJECT_NAME");
+        try {
+            send.start(null);
+            fail("a template was rendered without a build");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private void assertSentWithoutHoldingTheScript(String subdomain) throws Exception {
+        // the test is about the calling thread, not the account's rate limit
+        RateLimiter.setForAccount(subdomain, "token", new RateLimiter(1e9, 1e9));
+        Campfire campfire = Campfire.forAccount(subdomain, "token", false);
+
+        List<CampfireFuture<Void>> sends = new ArrayList<CampfireFuture<Void>>();
+        long busy = 0;
+        long start = System.nanoTime();
+        for (int m = 0; m < MESSAGES; m++) {
+            for (int b = 0; b < BRANCHES; b++) {
+                CampfireSend send = new CampfireSend(new Room(campfire, "Room " + (1 + b % ROOMS), null));
+                send.setMessage("branch " + b + " message " + m);
+                if (m == MESSAGES - 1) {
+                    send.setSound("rimshot");
+                }
+                long before = System.nanoTime();
+                sends.add(send.start(null));
+                busy += System.nanoTime() - before;
+            }
+        }
+        for (CampfireFuture<Void> send : sends) {
+            send.get(120, TimeUnit.SECONDS);
+        }
+        long took = System.nanoTime() - start;
+
+        assertEquals((long) BRANCHES * MESSAGES + BRANCHES, server.getSpeaks());
+        assertTrue("script thread busy " + TimeUnit.NANOSECONDS.toMillis(busy) + "ms of "
+            + TimeUnit.NANOSECONDS.toMillis(took) + "ms", busy < took / 4);
+    }
+}
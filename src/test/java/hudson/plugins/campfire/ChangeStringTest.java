@@ -0,0 +1,218 @@
+package hudson.plugins.campfire;
+
+import hudson.model.User;
+import hudson.scm.ChangeLogSet;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Checks that finding the latest commit from the head of changelog.xml gives the same answer as
+ * reading the whole file line by line, as the notifier used to.
+ */
+public class ChangeStringTest extends TestCase {
+    private File rootDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        rootDir = File.createTempFile("campfire-changes", "");
+        rootDir.delete();
+        rootDir.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new File(rootDir, "changelog.xml").delete();
+        rootDir.delete();
+    }
+
+    public void testSingleCommit() throws Exception {
+        assertSameAsBefore(commits(1, "Fix the build"), "\n");
+    }
+
+    public void testThousandsOfCommits() throws Exception {
+        assertSameAsBefore(commits(5000, "Fix the frobnicator so that it no longer drops widgets on the floor"), "\n");
+        assertSameAsBefore(commits(10000, "Fix the frobnicator so that it no longer drops widgets on the floor"), "\n");
+    }
+
+    public void testMultiLineMessages() throws Exception {
+        assertSameAsBefore(commits(3000, "Fix the build\n\ncommit deadbeef was wrong\nso revert it"), "\n");
+    }
+
+    public void testNonAsciiMessages() throws Exception {
+        // some of these straddle the end of the head that is read
+        for (int commits = 50; commits < 90; commits++) {
+            assertSameAsBefore(commits(commits, "R\u00e9parer le d\u00e9ploiement \u2014 \u65e5\u672c\u8a9e \ud83d\udd25 commit cafe"), "\n");
+        }
+    }
+
+    public void testWindowsLineEndings() throws Exception {
+        assertSameAsBefore(commits(2000, "Fix the build\nand the tests"), "\r\n");
+    }
+
+    public void testCommitLineOnEveryOffsetAroundTheEndOfTheHead() throws Exception {
+        for (int padding = 8100; padding < 8300; padding++) {
+            StringBuilder preamble = new StringBuilder();
+            for (int i = 0; i < padding; i++) {
+                preamble.append(i % 80 == 79 ? '\n' : 'x');
+            }
+            preamble.append('\n');
+            writeChangeLog(preamble.toString(), commits(3, "Fix the build"), "\n");
+            assertEquals("padding " + padding, oldCommitHash(), CampfireNotifier.getCommitHash(changeLog()));
+        }
+    }
+
+    public void testNoCommitLine() throws Exception {
+        writeChangeLog("nothing to see here\n", Collections.<CommitEntry>emptyList(), "\n");
+        assertEquals("", CampfireNotifier.getCommitHash(changeLog()));
+    }
+
+    public void testUnknownCommitFallsBackToTheLastEntry() throws Exception {
+        List<CommitEntry> commits = commits(100, "Fix the build");
+        writeChangeLog("commit 0123456789abcdef\n\n", commits, "\n");
+        Collections.reverse(commits);
+        GitChangeSetList changeSet = new GitChangeSetList(commits);
+        assertSame(oldLatestEntry(changeSet), CampfireNotifier.getLatestEntry(changeSet, rootDir));
+        assertSame(commits.get(commits.size() - 1), CampfireNotifier.getLatestEntry(changeSet, rootDir));
+    }
+
+    /**
+     * Writes the commits, most recent first, as the git plugin does, and checks that the same
+     * commit is found as before in the change set, which lists them oldest first.
+     */
+    private void assertSameAsBefore(List<CommitEntry> commits, String lineEnd) throws Exception {
+        writeChangeLog("", commits, lineEnd);
+        String sha = CampfireNotifier.getCommitHash(changeLog());
+        assertEquals(oldCommitHash(), sha);
+        assertEquals(commits.get(0).getId(), sha);
+
+        List<CommitEntry> reversed = new ArrayList<CommitEntry>(commits);
+        Collections.reverse(reversed);
+        GitChangeSetList changeSet = new GitChangeSetList(reversed);
+        ChangeLogSet.Entry latest = CampfireNotifier.getLatestEntry(changeSet, rootDir);
+        assertSame(oldLatestEntry(changeSet), latest);
+        assertSame(commits.get(0), latest);
+    }
+
+    private File changeLog() {
+        return new File(rootDir, "changelog.xml");
+    }
+
+    private static List<CommitEntry> commits(int count, String message) {
+        List<CommitEntry> commits = new ArrayList<CommitEntry>();
+        for (int i = 0; i < count; i++) {
+            commits.add(new CommitEntry(String.format("%040x", 0xc0ffee00L + count - i), "Commit " + i + ": " + message));
+        }
+        return commits;
+    }
+
+    private void writeChangeLog(String preamble, List<CommitEntry> commits, String lineEnd) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(changeLog()), "UTF-8");
+        try {
+            out.write(preamble);
+            for (CommitEntry commit : commits) {
+                out.write("commit " + commit.getId() + lineEnd);
+                out.write("tree 4b825dc642cb6eb9a060e54bf8d69288fbee4904" + lineEnd);
+                out.write("author Jane Developer <dev@example.com> 1318000000 +0200" + lineEnd);
+                out.write("committer Jane Developer <dev@example.com> 1318000000 +0200" + lineEnd + lineEnd);
+                for (String line : commit.getMsg().split("\n")) {
+                    out.write("    " + line + lineEnd);
+                }
+                out.write(lineEnd + ":100644 100644 0000000... 1111111... M\tsrc/main/java/Example.java" + lineEnd + lineEnd);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * How the notifier used to find the sha of the first commit: every line of the whole file.
+     */
+    private String oldCommitHash() throws IOException {
+        String sha = "";
+        BufferedReader reader = new BufferedReader(new FileReader(changeLog()));
+        String line;
+        while((line = reader.readLine()) != null) {
+            if (line.matches("^commit [a-zA-Z0-9]+$")) {
+                sha = line.replace("commit ", "");
+                break;
+            }
+        }
+        reader.close();
+        return sha;
+    }
+
+    /**
+     * How the notifier used to pick the entry for that sha.
+     */
+    private ChangeLogSet.Entry oldLatestEntry(GitChangeSetList changeSet) throws Exception {
+        ChangeLogSet.Entry entry = changeSet.iterator().next();
+        String sha = oldCommitHash();
+        if (!"".equals(sha)) {
+            Method getIdMethod = entry.getClass().getDeclaredMethod("getId");
+            for(ChangeLogSet.Entry nextEntry : changeSet) {
+                if ( ( (String)getIdMethod.invoke(entry) ).compareTo(sha) != 0 ) entry = nextEntry;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Named after the git plugin's change set, since the notifier special-cases it by class name.
+     */
+    public static class GitChangeSetList extends ChangeLogSet<CommitEntry> {
+        private final List<CommitEntry> entries;
+
+        GitChangeSetList(List<CommitEntry> entries) {
+            super(null);
+            this.entries = entries;
+        }
+
+        public boolean isEmptySet() {
+            return entries.isEmpty();
+        }
+
+        public Iterator<CommitEntry> iterator() {
+            return entries.iterator();
+        }
+    }
+
+    public static class CommitEntry extends ChangeLogSet.Entry {
+        private final String id;
+        private final String msg;
+
+        CommitEntry(String id, String msg) {
+            this.id = id;
+            this.msg = msg;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getMsg() {
+            return msg;
+        }
+
+        public User getAuthor() {
+            return null;
+        }
+
+        public Collection<String> getAffectedPaths() {
+            return Collections.singletonList("src/main/java/Example.java");
+        }
+    }
+}
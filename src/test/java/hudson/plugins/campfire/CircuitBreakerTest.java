@@ -0,0 +1,63 @@
+package hudson.plugins.campfire;
+
+import junit.framework.TestCase;
+
+/**
+ * Opens a breaker and checks how its half-open trial request is let through.
+ */
+public class CircuitBreakerTest extends TestCase {
+    @Override
+    protected void setUp() throws Exception {
+        // no cool-down, so that the breaker is half-open as soon as it has opened
+        CircuitBreaker.configure(CircuitBreaker.DEFAULT_FAILURE_RATE_THRESHOLD, 0);
+        CircuitBreaker.setTrialTimeout(200);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CircuitBreaker.configure(CircuitBreaker.DEFAULT_FAILURE_RATE_THRESHOLD, CircuitBreaker.DEFAULT_COOL_DOWN);
+        CircuitBreaker.setTrialTimeout(120000);
+    }
+
+    public void testOnlyOneTrialAtATime() throws Exception {
+        CircuitBreaker breaker = open("one-trial");
+        breaker.acquire();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        try {
+            breaker.acquire();
+            fail("a second trial was let through");
+        } catch (CircuitBreaker.OpenException e) {
+            // expected
+        }
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquire();
+    }
+
+    public void testFailedTrialReopens() throws Exception {
+        CircuitBreaker breaker = open("failed-trial");
+        breaker.acquire();
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    public void testTrialThatNeverFinishesTimesOut() throws Exception {
+        CircuitBreaker breaker = open("lost-trial");
+        // the trial's outcome is never recorded
+        breaker.acquire();
+        Thread.sleep(300);
+        breaker.acquire();
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    private static CircuitBreaker open(String subdomain) throws Exception {
+        CircuitBreaker breaker = CircuitBreaker.forSubdomain(subdomain);
+        for (int i = 0; i < 5; i++) {
+            breaker.acquire();
+            breaker.recordFailure();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+}
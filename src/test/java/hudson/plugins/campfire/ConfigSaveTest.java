@@ -0,0 +1,94 @@
+package hudson.plugins.campfire;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves many job configurations at once, each checking its room as saving the form does, against a
+ * {@link StubCampfireServer} that is slow to list rooms. Checks that no save waits much longer than
+ * the form timeout while the rooms are being listed, that saves are answered from the cache once
+ * they have been listed, that a missing room is still reported, and that rooms are listed at most
+ * once per account.
+ */
+public class ConfigSaveTest extends TestCase {
+    private static final int SAVES = 200;
+    private static final int ACCOUNTS = 5;
+    private static final long DELAY = RoomCache.FORM_TIMEOUT + 2000;
+
+    private StubCampfireServer server;
+    private NioTransport nio;
+    private ExecutorService pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubCampfireServer(10, ACCOUNTS + 4);
+        server.setRoomsDelay(DELAY);
+        nio = new NioTransport(NioTransport.DEFAULT_MAX_IN_FLIGHT_PER_HOST);
+        Campfire.configure(server.getUrl() + "/{subdomain}", nio);
+        RoomCache.getInstance().invalidateAll();
+        pool = Executors.newFixedThreadPool(50);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pool.shutdown();
+        nio.shutdown();
+        server.stop();
+        RoomCache.getInstance().invalidateAll();
+        Campfire.configure(null, new CommonsHttpTransport());
+    }
+
+    public void testSavesDontWaitOnASlowCampfire() throws Exception {
+        long slowest = saveAll("Room 3");
+        assertTrue("slowest save took " + slowest + "ms", slowest <= RoomCache.FORM_TIMEOUT + 1000);
+
+        // let the fetches started by the first saves finish
+        long deadline = System.currentTimeMillis() + 2 * DELAY + 10000;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            Campfire campfire = Campfire.forAccount("account-" + i, "token", false);
+            while (RoomCache.getInstance().getRooms(campfire, 0) == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+        }
+        slowest = saveAll("Room 7");
+        assertTrue("slowest cached save took " + slowest + "ms", slowest <= 100);
+
+        try {
+            new CampfireNotifier("account-0", "token", "No Such Room", null, "", false, false, false).validateRoom();
+            fail("a missing room wasn't reported");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue("listed rooms " + server.getRoomLists() + " times", server.getRoomLists() <= ACCOUNTS);
+    }
+
+    /**
+     * @return how long the slowest save took, in milliseconds
+     */
+    private long saveAll(final String roomName) throws Exception {
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        for (int i = 0; i < SAVES; i++) {
+            final String subdomain = "account-" + (i % ACCOUNTS);
+            results.add(pool.submit(new Callable<Long>() {
+                public Long call() throws Exception {
+                    long start = System.nanoTime();
+                    new CampfireNotifier(subdomain, "token", roomName, null, "", false, false, false).validateRoom();
+                    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                }
+            }));
+        }
+        long slowest = 0;
+        for (Future<Long> result : results) {
+            slowest = Math.max(slowest, result.get(60, TimeUnit.SECONDS));
+        }
+        return slowest;
+    }
+}
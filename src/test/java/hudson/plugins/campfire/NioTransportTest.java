@@ -0,0 +1,224 @@
+package hudson.plugins.campfire;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends requests in a session through {@link NioTransport} to a server that only answers once
+ * several requests have arrived on a connection, so they can only complete if they were pipelined.
+ */
+public class NioTransportTest extends TestCase {
+    private NioTransport nio;
+    private ServerSocket server;
+    private Thread acceptor;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    protected void setUp() throws Exception {
+        nio = new NioTransport(NioTransport.DEFAULT_MAX_IN_FLIGHT_PER_HOST);
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        nio.shutdown();
+        server.close();
+        if (acceptor != null) {
+            acceptor.join(5000);
+        }
+    }
+
+    public void testRequestsInASessionArePipelinedOnOneConnection() throws Exception {
+        serve(5, false);
+        List<CampfireFuture<Transport.Response>> responses = submitAll(20, "room/1");
+
+        for (int i = 0; i < responses.size(); i++) {
+            Transport.Response response = responses.get(i).get(10, TimeUnit.SECONDS);
+            assertEquals(201, response.getStatus());
+            // responses come back in the order the requests were sent
+            assertEquals("message " + i, read(response.getBody()));
+        }
+        assertEquals(1, connections.get());
+        assertEquals(20, received.size());
+    }
+
+    public void testRequestsAreResentWhenTheServerClosesTheConnection() throws Exception {
+        serve(1, true);
+        List<CampfireFuture<Transport.Response>> responses = submitAll(9, "room/1");
+
+        for (int i = 0; i < responses.size(); i++) {
+            Transport.Response response = responses.get(i).get(10, TimeUnit.SECONDS);
+            assertEquals(201, response.getStatus());
+            assertEquals("message " + i, read(response.getBody()));
+        }
+        // the server only answers the first request sent on each connection
+        assertEquals(9, connections.get());
+    }
+
+    public void testUnknownHostFailsTheRequest() throws Exception {
+        Campfire campfire = new Campfire("unknown", "token", false);
+        CampfireFuture<Transport.Response> response = nio.submit(campfire, "GET", "http://campfire.invalid/rooms.xml", null);
+        try {
+            response.get(30, TimeUnit.SECONDS);
+            fail("expected the lookup to fail");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof UnknownHostException);
+        }
+    }
+
+    private List<CampfireFuture<Transport.Response>> submitAll(int count, String session) throws IOException {
+        Campfire campfire = new Campfire("pipelined", "token", false);
+        String url = "http://127.0.0.1:" + server.getLocalPort() + "/room/1/speak.xml";
+        List<CampfireFuture<Transport.Response>> responses = new ArrayList<CampfireFuture<Transport.Response>>();
+        for (int i = 0; i < count; i++) {
+            StringRequestEntity entity = new StringRequestEntity("message " + i, "application/xml", "UTF-8");
+            responses.add(nio.submit(campfire, "POST", url, entity, session));
+        }
+        return responses;
+    }
+
+    /**
+     * Accepts connections, and on each one waits for a batch of requests before answering any of
+     * them, alternating between fixed-length and chunked responses that echo the request body.
+     *
+     * @param close whether to close the connection after answering its first request
+     */
+    private void serve(final int batch, final boolean close) {
+        acceptor = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    final Socket socket;
+                    try {
+                        socket = server.accept();
+                    } catch (IOException e) {
+                        return;
+                    }
+                    connections.incrementAndGet();
+                    Thread handler = new Thread(new Runnable() {
+                        public void run() {
+                            try {
+                                answer(socket, batch, close);
+                            } catch (IOException e) {
+                                // the client closed the connection
+                            } finally {
+                                try {
+                                    socket.close();
+                                } catch (IOException e) {
+                                    // ignore
+                                }
+                            }
+                        }
+                    });
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void answer(Socket socket, int batch, boolean close) throws IOException {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        while (true) {
+            List<String> bodies = new ArrayList<String>();
+            while (bodies.size() < batch) {
+                String body = readRequest(in);
+                if (body == null) {
+                    if (bodies.isEmpty()) {
+                        return;
+                    }
+                    break;
+                }
+                bodies.add(body);
+                received.add(body);
+            }
+            ByteArrayOutputStream responses = new ByteArrayOutputStream();
+            for (int i = 0; i < bodies.size(); i++) {
+                byte[] body = bodies.get(i).getBytes("UTF-8");
+                if (close) {
+                    responses.write(("HTTP/1.1 201 Created\r\nConnection: close\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes("US-ASCII"));
+                    responses.write(body);
+                    out.write(responses.toByteArray());
+                    out.flush();
+                    // ignores the rest, without resetting the connection before the answer is read
+                    socket.shutdownOutput();
+                    while (in.read() >= 0) {
+                        // discard
+                    }
+                    return;
+                }
+                if (i % 2 == 0) {
+                    responses.write(("HTTP/1.1 201 Created\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes("US-ASCII"));
+                    responses.write(body);
+                } else {
+                    responses.write(("HTTP/1.1 201 Created\r\nTransfer-Encoding: chunked\r\n\r\n"
+                        + Integer.toHexString(body.length) + "\r\n").getBytes("US-ASCII"));
+                    responses.write(body);
+                    responses.write("\r\n0\r\n\r\n".getBytes("US-ASCII"));
+                }
+            }
+            // every answer in one write, so that responses are split across reads arbitrarily
+            out.write(responses.toByteArray());
+            out.flush();
+        }
+    }
+
+    /**
+     * @return the body of the next request, or null at the end of the stream
+     */
+    private static String readRequest(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int c;
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            if ((c = in.read()) < 0) {
+                return null;
+            }
+            head.append((char) c);
+        }
+        int length = 0;
+        for (String line : head.toString().split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                length = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(body, read, length - read);
+            if (count < 0) {
+                return null;
+            }
+            read += count;
+        }
+        return new String(body, "UTF-8");
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,81 @@
+package hudson.plugins.campfire;
+
+import hudson.model.Items;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads many job configurations with notifiers the way Jenkins does on startup, counting the
+ * requests made to Campfire: none while loading, and one room listing per account once the
+ * notifiers' rooms are first used.
+ */
+public class NotifierLoadTest extends TestCase {
+    private static final int JOBS = 2000;
+    private static final int ACCOUNTS = 5;
+
+    private RecordingTransport transport;
+
+    @Override
+    protected void setUp() throws Exception {
+        transport = new RecordingTransport(10, 0, 0);
+        Campfire.configure("http://campfire.example.com/{subdomain}", transport);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Campfire.configure(null, new CommonsHttpTransport());
+    }
+
+    public void testLoadingJobsMakesNoRequests() throws Exception {
+        List<String> configs = configs("load", JOBS, ACCOUNTS);
+        List<CampfireNotifier> notifiers = new ArrayList<CampfireNotifier>();
+        for (String config : configs) {
+            notifiers.add((CampfireNotifier) Items.XSTREAM.fromXML(config));
+        }
+        assertEquals(0, transport.getGets());
+        assertEquals(0, transport.getPosts());
+
+        for (CampfireNotifier notifier : notifiers) {
+            for (Room room : notifier.getRooms()) {
+                assertNotNull(room.resolve().getId());
+            }
+        }
+        assertEquals(ACCOUNTS, transport.getGets());
+        assertEquals(0, transport.getPosts());
+    }
+
+    public void testConfiguringJobsMakesNoRequests() throws Exception {
+        configs("configure", JOBS, ACCOUNTS);
+        assertEquals(0, transport.getGets());
+        assertEquals(0, transport.getPosts());
+    }
+
+    public void testRoomsOnRemovedAccountsAreLeftOut() throws Exception {
+        String config = configs("removed", 1, 1).get(0).replace("<string>Room 3</string>", "<string>Room 3 @ removed</string>");
+        CampfireNotifier notifier = (CampfireNotifier) Items.XSTREAM.fromXML(config);
+
+        List<String> names = new ArrayList<String>();
+        for (Room room : notifier.getRooms()) {
+            names.add(room.getName());
+        }
+        assertEquals("[Room 1, Room 2]", names.toString());
+    }
+
+    /**
+     * Job configurations of notifiers spread over the given number of accounts, each with a room and
+     * two additional rooms, as saved by Jenkins.
+     */
+    static List<String> configs(String prefix, int jobs, int accounts) {
+        List<String> configs = new ArrayList<String>();
+        for (int i = 0; i < jobs; i++) {
+            CampfireNotifier notifier = new CampfireNotifier(prefix + "-" + (i % accounts), "token", "Room " + (1 + i % 10),
+                "Room " + (1 + (i + 1) % 10) + "\nRoom " + (1 + (i + 2) % 10), null, "%PROJECT_NAME% %BUILD_DISPLAY_NAME%: %RESULT%",
+                false, false, false);
+            configs.add(Items.XSTREAM.toXML(notifier));
+        }
+        return configs;
+    }
+}
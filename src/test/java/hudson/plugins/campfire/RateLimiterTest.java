@@ -0,0 +1,121 @@
+package hudson.plugins.campfire;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Posts messages from several threads against a {@link StubCampfireServer}, checking that they are
+ * held to the account's rate and that, when Campfire throttles the account, every message still
+ * arrives at about the rate Campfire accepts them.
+ */
+public class RateLimiterTest extends TestCase {
+    private static final int THREADS = 10;
+
+    private StubCampfireServer server;
+    private NioTransport nio;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubCampfireServer(1, THREADS + 2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (nio != null) {
+            nio.shutdown();
+        }
+        server.stop();
+        Campfire.configure(null, new CommonsHttpTransport());
+    }
+
+    public void testPostsAreHeldToTheAccountsRate() throws Exception {
+        Campfire.configure(server.getUrl() + "/{subdomain}", new CommonsHttpTransport());
+        RateLimiter.setForAccount("limited", "token", new RateLimiter(100, 10));
+        Campfire campfire = Campfire.forAccount("limited", "token", false);
+
+        long start = System.nanoTime();
+        List<Integer> statuses = postAll(campfire, 210, false);
+        long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertAllCreated(statuses);
+        assertEquals(210, server.getPosts());
+        // the burst of 10 goes at once, the other 200 at 100 a second
+        assertTrue("took " + took + "ms", took >= 1800);
+    }
+
+    public void testEveryMessageArrivesWhileThrottled() throws Exception {
+        Campfire.configure(server.getUrl() + "/{subdomain}", new CommonsHttpTransport());
+        assertThrottledThroughput("throttled-commons", false);
+    }
+
+    public void testEveryAsyncMessageArrivesWhileThrottled() throws Exception {
+        nio = new NioTransport(NioTransport.DEFAULT_MAX_IN_FLIGHT_PER_HOST);
+        Campfire.configure(server.getUrl() + "/{subdomain}", nio);
+        assertThrottledThroughput("throttled-nio", true);
+    }
+
+    /**
+     * Posts much faster than Campfire accepts, so that most seconds end in throttling.
+     */
+    private void assertThrottledThroughput(String subdomain, boolean async) throws Exception {
+        int messages = 100;
+        int accepted = 20;
+        server.setPostLimit(accepted);
+        RateLimiter.setForAccount(subdomain, "token", new RateLimiter(100, 20));
+        Campfire campfire = Campfire.forAccount(subdomain, "token", false);
+
+        long start = System.nanoTime();
+        List<Integer> statuses = postAll(campfire, messages, async);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        assertAllCreated(statuses);
+        assertEquals(messages, server.getPosts());
+        double throughput = messages / seconds;
+        assertTrue("throughput " + throughput + "/s", throughput <= accepted * 1.5);
+        assertTrue("throughput " + throughput + "/s", throughput >= accepted / 3.0);
+        // every caller backs off once one of them is turned away
+        assertTrue("throttled " + server.getThrottled() + " times", server.getThrottled() < messages);
+        assertEquals(CircuitBreaker.State.CLOSED, CircuitBreaker.forSubdomain(subdomain).getState());
+    }
+
+    private static List<Integer> postAll(final Campfire campfire, int messages, final boolean async) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < messages; i++) {
+                final String body = "<message><type>TextMessage</type><body>message " + i + "</body></message>";
+                results.add(pool.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        StringRequestEntity entity = new StringRequestEntity(body, "application/xml", "UTF-8");
+                        if (async) {
+                            return campfire.postAsync("room/1/speak.xml", entity).get(60, TimeUnit.SECONDS);
+                        }
+                        return campfire.post("room/1/speak.xml", entity);
+                    }
+                }));
+            }
+            List<Integer> statuses = new ArrayList<Integer>();
+            for (Future<Integer> result : results) {
+                statuses.add(result.get(120, TimeUnit.SECONDS));
+            }
+            return statuses;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void assertAllCreated(List<Integer> statuses) {
+        for (Integer status : statuses) {
+            assertEquals(201, status.intValue());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package hudson.plugins.campfire;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process transport that answers like Campfire without any network I/O, and records what was
+ * sent. Room listings list the rooms "Room 1" to "Room n", and every post is accepted.
+ */
+public class RecordingTransport implements Transport {
+    /**
+     * A request as it was sent.
+     */
+    public static class Request {
+        public final String method;
+        public final String url;
+        public final byte[] body;
+
+        Request(String method, String url, byte[] body) {
+            this.method = method;
+            this.url = url;
+            this.body = body;
+        }
+    }
+
+    private final byte[] roomsXml;
+    private final long latencyMillis;
+    private final int retained;
+    private final ConcurrentLinkedQueue<Request> requests = new ConcurrentLinkedQueue<Request>();
+    private final AtomicInteger retainedCount = new AtomicInteger();
+    private final AtomicLong posts = new AtomicLong();
+    private final AtomicLong gets = new AtomicLong();
+
+    /**
+     * @param rooms number of rooms in the account
+     * @param latencyMillis time each request takes, to simulate the network
+     * @param retained number of requests to keep for inspection; the rest are only counted
+     */
+    public RecordingTransport(int rooms, long latencyMillis, int retained) {
+        this.roomsXml = StubCampfireServer.roomsXml(rooms);
+        this.latencyMillis = latencyMillis;
+        this.retained = retained;
+    }
+
+    public Response execute(Campfire campfire, String method, String url, RequestEntity body) throws IOException {
+        byte[] sent = null;
+        if (body != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(0, body.getContentLength()));
+            body.writeRequest(out);
+            sent = out.toByteArray();
+        }
+        if (retainedCount.incrementAndGet() <= retained) {
+            requests.add(new Request(method, url, sent));
+        }
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                throw new java.io.InterruptedIOException();
+            }
+        }
+
+        if ("GET".equals(method)) {
+            gets.incrementAndGet();
+            if (url.endsWith("/rooms.xml")) {
+                return response(200, roomsXml);
+            }
+            return response(404, new byte[0]);
+        }
+        posts.incrementAndGet();
+        return response(201, new byte[0]);
+    }
+
+    private static Response response(final int status, final byte[] body) {
+        return new Response() {
+            public int getStatus() {
+                return status;
+            }
+
+            public String getHeader(String name) {
+                return null;
+            }
+
+            public InputStream getBody() {
+                return new ByteArrayInputStream(body);
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    public long getPosts() {
+        return posts.get();
+    }
+
+    public long getGets() {
+        return gets.get();
+    }
+
+    public List<Request> getRequests() {
+        return new ArrayList<Request>(requests);
+    }
+}
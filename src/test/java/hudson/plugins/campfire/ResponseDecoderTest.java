@@ -0,0 +1,91 @@
+package hudson.plugins.campfire;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Feeds responses to a {@link ResponseDecoder} split in every way, checking that it finds the same
+ * end of each response and the same body, and hands on whatever follows.
+ */
+public class ResponseDecoderTest extends TestCase {
+    private static final String CHUNKED = "HTTP/1.1 100 Continue\r\n\r\n"
+        + "HTTP/1.1 201 Created\r\nTransfer-Encoding: chunked\r\nX-Id: 7\r\n\r\n"
+        + "5;name=value\r\nhello\r\n7\r\n, world\r\n0\r\nX-Trailer: yes\r\n\r\n";
+    private static final String FIXED = "HTTP/1.1 200 OK\r\nContent-Length: 3\r\n\r\nbye";
+
+    public void testEverySplitOfPipelinedResponses() throws Exception {
+        byte[] bytes = (CHUNKED + FIXED).getBytes("US-ASCII");
+        for (int split = 0; split <= bytes.length; split++) {
+            ResponseDecoder first = new ResponseDecoder(1024);
+            first.feed(bytes, 0, split);
+            first.feed(bytes, split, bytes.length - split);
+            assertTrue("split at " + split, first.isComplete());
+            assertEquals(201, first.getStatus());
+            assertEquals("7", first.getHeader("x-id"));
+            assertEquals("hello, world", new String(first.getBody(), "US-ASCII"));
+            assertTrue(first.isKeepAlive());
+
+            ResponseDecoder second = new ResponseDecoder(1024);
+            assertTrue(first.hasExtra());
+            first.moveExtra(second);
+            assertFalse(first.hasExtra());
+            assertTrue("split at " + split, second.isComplete());
+            assertEquals(200, second.getStatus());
+            assertEquals("bye", new String(second.getBody(), "US-ASCII"));
+        }
+    }
+
+    public void testOneByteAtATime() throws Exception {
+        byte[] bytes = CHUNKED.getBytes("US-ASCII");
+        ResponseDecoder decoder = new ResponseDecoder(1024);
+        for (int i = 0; i < bytes.length; i++) {
+            assertFalse(decoder.isComplete());
+            decoder.feed(bytes, i, 1);
+        }
+        assertTrue(decoder.isComplete());
+        assertFalse(decoder.hasExtra());
+        assertEquals("hello, world", new String(decoder.getBody(), "US-ASCII"));
+    }
+
+    public void testBodyEndedByTheConnection() throws Exception {
+        byte[] bytes = "HTTP/1.0 200 OK\r\n\r\nuntil the end".getBytes("US-ASCII");
+        ResponseDecoder decoder = new ResponseDecoder(1024);
+        decoder.feed(bytes, 0, bytes.length);
+        assertFalse(decoder.isComplete());
+        decoder.endOfStream();
+        assertTrue(decoder.isComplete());
+        assertFalse(decoder.isKeepAlive());
+        assertEquals("until the end", new String(decoder.getBody(), "US-ASCII"));
+    }
+
+    public void testStreamedBodyIsntCollected() throws Exception {
+        final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        ResponseDecoder decoder = new ResponseDecoder(64) {
+            protected void body(byte[] bytes, int offset, int count) {
+                streamed.write(bytes, offset, count);
+            }
+        };
+        StringBuilder body = new StringBuilder("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n");
+        for (int i = 0; i < 100; i++) {
+            body.append("a\r\n0123456789\r\n");
+        }
+        byte[] bytes = body.toString().getBytes("US-ASCII");
+        // far more than the decoder's limit, which only applies to what it keeps
+        decoder.feed(bytes, 0, bytes.length);
+        assertFalse(decoder.isComplete());
+        assertEquals(1000, streamed.size());
+        assertEquals(0, decoder.getBody().length);
+    }
+
+    public void testMalformedChunkSize() throws Exception {
+        byte[] bytes = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n".getBytes("US-ASCII");
+        try {
+            new ResponseDecoder(1024).feed(bytes, 0, bytes.length);
+            fail("a malformed chunk size was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package hudson.plugins.campfire;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends notifications through the non-blocking transport to a {@link StubCampfireServer} that is
+ * slow to accept messages, checking that the sound only follows a message that wasn't cancelled.
+ */
+public class RoomFanOutTest extends TestCase {
+    private StubCampfireServer server;
+    private NioTransport nio;
+    private Room room;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubCampfireServer(1, 4);
+        server.setPostDelay(300);
+        nio = new NioTransport(NioTransport.DEFAULT_MAX_IN_FLIGHT_PER_HOST);
+        Campfire.configure(server.getUrl() + "/{subdomain}", nio);
+        room = new Room(Campfire.forAccount("fan-out", "token", false), "Room 1", "1");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        nio.shutdown();
+        server.stop();
+        Campfire.configure(null, new CommonsHttpTransport());
+    }
+
+    public void testSoundFollowsTheMessage() throws Exception {
+        RoomFanOut.start(room, "Project #1: SUCCESS", "rimshot", System.nanoTime()).get(10, TimeUnit.SECONDS);
+        assertEquals(2, server.getPosts());
+    }
+
+    public void testCancelledMessageIsNotFollowedByTheSound() throws Exception {
+        CampfireFuture<Void> sent = RoomFanOut.start(room, "Project #1: SUCCESS", "rimshot", System.nanoTime());
+        // the message is on its way, but not yet accepted
+        Thread.sleep(100);
+        assertTrue(sent.cancel(false));
+
+        // long enough for the message to be accepted and the sound to follow, if it were going to
+        Thread.sleep(1000);
+        assertEquals(1, server.getPosts());
+    }
+}
@@ -0,0 +1,124 @@
+package hudson.plugins.campfire;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Listens to several rooms of a {@link StubCampfireServer} whose streams play back a script of
+ * commands, chatter and Jenkins' own replies, split into small chunks, and then end. Checks that
+ * every command in every playback is handled and answered, that chatter is decoded intact, that
+ * Jenkins' own messages are ignored, and that every room reconnects after its stream ends.
+ */
+public class RoomListenerTest extends TestCase {
+    private static final int ROOMS = 8;
+    private static final int MESSAGES = 200;
+    private static final int PLAYBACKS = 3;
+    private static final String CHATTER = "hello, \"world\" \u00e9\t\\ done";
+
+    private StubCampfireServer server;
+    private NioTransport nio;
+    private RoomListener listener;
+
+    private final AtomicInteger commands = new AtomicInteger();
+    private final AtomicInteger chatter = new AtomicInteger();
+    private final AtomicInteger mangled = new AtomicInteger();
+    private final AtomicInteger own = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubCampfireServer(ROOMS, ROOMS * 2 + 4);
+        nio = new NioTransport(NioTransport.DEFAULT_MAX_IN_FLIGHT_PER_HOST);
+        Campfire.configure(server.getUrl() + "/{subdomain}", nio);
+        // the test is about the streams, not the account's rate limit on replies
+        RateLimiter.setForAccount("stream", "token", new RateLimiter(1e9, 1e9));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (listener != null) {
+            listener.shutdown();
+        }
+        nio.shutdown();
+        server.stop();
+        Campfire.configure(null, new CommonsHttpTransport());
+    }
+
+    public void testCommandsInEveryPlaybackAreAnswered() throws Exception {
+        int commandsPerPlayback = playScript();
+        Campfire campfire = Campfire.forAccount("stream", "token", false);
+        listener = new RoomListener(new RoomListener.CommandHandler() {
+            public String handle(Room room, String message) {
+                if (message.startsWith("status own-")) {
+                    own.incrementAndGet();
+                } else if (message.startsWith("status job-")) {
+                    commands.incrementAndGet();
+                    return "job is fine";
+                } else if (message.equals(CHATTER)) {
+                    chatter.incrementAndGet();
+                } else {
+                    mangled.incrementAndGet();
+                }
+                return null;
+            }
+        });
+        List<Room> watched = new ArrayList<Room>();
+        for (int i = 1; i <= ROOMS; i++) {
+            watched.add(new Room(campfire, "Room " + i, String.valueOf(i)));
+        }
+
+        listener.watch(watched);
+        long deadline = System.currentTimeMillis() + 60000;
+        while (System.currentTimeMillis() < deadline
+                && (server.getStreamsPlayed() < (long) ROOMS * PLAYBACKS
+                    || commands.get() < server.getStreamsPlayed() * commandsPerPlayback
+                    || server.getSpeaks() < commands.get())) {
+            Thread.sleep(50);
+        }
+        listener.shutdown();
+        long played = server.getStreamsPlayed();
+
+        // every room reconnected after its stream ended
+        assertTrue("played " + played + " times", played >= (long) ROOMS * PLAYBACKS);
+        assertTrue("handled " + commands.get() + " commands", commands.get() >= played * commandsPerPlayback);
+        assertTrue("answered " + server.getSpeaks() + " commands", server.getSpeaks() >= commands.get());
+        assertTrue(chatter.get() > 0);
+        assertEquals(0, own.get());
+        assertEquals(0, mangled.get());
+    }
+
+    /**
+     * @return the number of commands in each playback of the script
+     */
+    private int playScript() throws IOException {
+        StringBuilder script = new StringBuilder();
+        int commandsPerPlayback = 0;
+        for (int i = 0; i < MESSAGES; i++) {
+            long userId = 42;
+            String body;
+            if (i % 4 == 0) {
+                userId = StubCampfireServer.USER_ID;
+                body = "status own-" + i;
+            } else if (i % 4 == 1) {
+                body = CHATTER;
+            } else {
+                body = "status job-" + i;
+                commandsPerPlayback++;
+            }
+            script.append("{\"room_id\":1,\"created_at\":\"2011/09/01 10:00:00 +0000\",\"body\":\"")
+                .append(body.replace("\\", "\\\\").replace("\"", "\\\"").replace("\t", "\\t").replace("\u00e9", "\\u00e9"))
+                .append("\",\"id\":").append(i).append(",\"user_id\":").append(userId)
+                .append(",\"type\":\"TextMessage\",\"starred\":false,\"tags\":[{\"id\":1,\"name\":\"}\"}]}\r\n");
+            if (i % 10 == 0) {
+                script.append(' ');
+                script.append("{\"room_id\":1,\"created_at\":\"2011/09/01 10:00:00 +0000\",\"body\":null,\"id\":")
+                    .append(i).append(",\"user_id\":null,\"type\":\"TimestampMessage\"}\r\n");
+            }
+        }
+        server.setStreamScript(script.toString());
+        return commandsPerPlayback;
+    }
+}
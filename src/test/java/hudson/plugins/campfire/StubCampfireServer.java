@@ -0,0 +1,284 @@
+package hudson.plugins.campfire;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Campfire stand-in served over HTTP on the loopback interface, for transports that need a real
+ * socket. Answers as {@link RecordingTransport} does, counting requests instead of keeping them, and
+ * can throttle posts as Campfire does.
+ * Uploads are read and discarded as they arrive, counting their bytes and how many run at once.
+ * Room streams play back a script, in small chunks so that messages are split across reads, and
+ * then end, so that listeners have to reconnect; each stream holds a server thread while it plays.
+ */
+public class StubCampfireServer {
+    /**
+     * Id of the user that the stub says the token belongs to.
+     */
+    public static final long USER_ID = 999;
+
+    private final HttpServer server;
+    private final ExecutorService threads;
+    private final AtomicLong posts = new AtomicLong();
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicInteger concurrentUploads = new AtomicInteger();
+    private final AtomicInteger maxConcurrentUploads = new AtomicInteger();
+    private final AtomicLong speaks = new AtomicLong();
+    private final AtomicLong streams = new AtomicLong();
+    private final AtomicLong streamsPlayed = new AtomicLong();
+    private final AtomicLong roomLists = new AtomicLong();
+    private volatile long roomsDelay;
+    private volatile long postDelay;
+    private volatile int postLimit;
+    private long postSecond;
+    private int postsThisSecond;
+    private final AtomicLong throttled = new AtomicLong();
+    private volatile byte[] streamScript = new byte[0];
+
+    public StubCampfireServer(int rooms, int threadCount) throws IOException {
+        final byte[] roomsXml = roomsXml(rooms);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1000);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                boolean upload = exchange.getRequestURI().getPath().endsWith("/uploads.xml");
+                if (upload) {
+                    int running = concurrentUploads.incrementAndGet();
+                    int max;
+                    while (running > (max = maxConcurrentUploads.get()) && !maxConcurrentUploads.compareAndSet(max, running)) {
+                        // retry
+                    }
+                }
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    // drain the request so the connection can be kept alive
+                    if (upload) {
+                        uploadedBytes.addAndGet(read);
+                    }
+                }
+                if (upload) {
+                    concurrentUploads.decrementAndGet();
+                    uploads.incrementAndGet();
+                }
+                String path = exchange.getRequestURI().getPath();
+                if ("GET".equals(exchange.getRequestMethod())) {
+                    if (path.endsWith("/rooms.xml")) {
+                        roomLists.incrementAndGet();
+                        if (roomsDelay > 0) {
+                            try {
+                                Thread.sleep(roomsDelay);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=utf-8");
+                        exchange.sendResponseHeaders(200, roomsXml.length);
+                        OutputStream out = exchange.getResponseBody();
+                        out.write(roomsXml);
+                        out.close();
+                    } else if (path.endsWith("/users/me.xml")) {
+                        byte[] me = ("<user><id type=\"integer\">" + USER_ID + "</id><name>Jenkins</name></user>").getBytes("UTF-8");
+                        exchange.sendResponseHeaders(200, me.length);
+                        OutputStream out = exchange.getResponseBody();
+                        out.write(me);
+                        out.close();
+                    } else if (path.endsWith("/live.json")) {
+                        streams.incrementAndGet();
+                        play(exchange);
+                    } else {
+                        exchange.sendResponseHeaders(404, -1);
+                    }
+                } else {
+                    if (postDelay > 0) {
+                        try {
+                            Thread.sleep(postDelay);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    if (!admitPost()) {
+                        throttled.incrementAndGet();
+                        exchange.getResponseHeaders().set("Retry-After", "1");
+                        exchange.sendResponseHeaders(503, -1);
+                        exchange.close();
+                        return;
+                    }
+                    posts.incrementAndGet();
+                    if (path.endsWith("/speak.xml")) {
+                        speaks.incrementAndGet();
+                    }
+                    exchange.sendResponseHeaders(201, -1);
+                }
+                exchange.close();
+            }
+        });
+        threads = Executors.newFixedThreadPool(threadCount);
+        server.setExecutor(threads);
+        server.start();
+    }
+
+    /**
+     * Campfire's rooms.xml listing the given number of rooms, named "Room 1" to "Room n" with ids from 1.
+     */
+    public static byte[] roomsXml(int rooms) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<rooms type=\"array\">\n");
+        for (int i = 1; i <= rooms; i++) {
+            xml.append("  <room>\n")
+               .append("    <created-at type=\"datetime\">2011-10-01T12:00:00Z</created-at>\n")
+               .append("    <id type=\"integer\">").append(i).append("</id>\n")
+               .append("    <membership-limit type=\"integer\">60</membership-limit>\n")
+               .append("    <name>Room ").append(i).append("</name>\n")
+               .append("    <topic>Builds &amp; deploys for team ").append(i).append("</topic>\n")
+               .append("    <updated-at type=\"datetime\">2011-10-01T12:00:00Z</updated-at>\n")
+               .append("  </room>\n");
+        }
+        xml.append("</rooms>\n");
+        try {
+            return xml.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Sets what room streams send: messages as Campfire would stream them, with whatever keep-alives
+     * between them.
+     */
+    public void setStreamScript(String script) throws IOException {
+        streamScript = script.getBytes("UTF-8");
+    }
+
+    private void play(HttpExchange exchange) throws IOException {
+        byte[] script = streamScript;
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        // chunked
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        Random random = new Random();
+        try {
+            for (int offset = 0; offset < script.length;) {
+                int count = Math.min(script.length - offset, 1 + random.nextInt(64));
+                out.write(script, offset, count);
+                out.flush();
+                offset += count;
+            }
+            streamsPlayed.incrementAndGet();
+        } catch (IOException e) {
+            // the listener went away
+        }
+        out.close();
+    }
+
+    /**
+     * Base URL to configure {@link Campfire} with.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Makes rooms.xml take the given time to answer, like a slow Campfire.
+     */
+    public void setRoomsDelay(long millis) {
+        roomsDelay = millis;
+    }
+
+    /**
+     * Makes posts, such as messages, take the given time to answer.
+     */
+    public void setPostDelay(long millis) {
+        postDelay = millis;
+    }
+
+    /**
+     * Makes posts beyond the given number in any one second be turned away with 503 and
+     * Retry-After, as Campfire throttles busy accounts.
+     *
+     * @param perSecond posts accepted per second, or 0 for no limit
+     */
+    public void setPostLimit(int perSecond) {
+        postLimit = perSecond;
+    }
+
+    private synchronized boolean admitPost() {
+        if (postLimit <= 0) {
+            return true;
+        }
+        long second = System.currentTimeMillis() / 1000;
+        if (second != postSecond) {
+            postSecond = second;
+            postsThisSecond = 0;
+        }
+        return ++postsThisSecond <= postLimit;
+    }
+
+    /**
+     * Posts turned away because of the post limit.
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    /**
+     * Requests for rooms.xml.
+     */
+    public long getRoomLists() {
+        return roomLists.get();
+    }
+
+    public long getPosts() {
+        return posts.get();
+    }
+
+    /**
+     * Messages spoken in rooms, such as replies to commands.
+     */
+    public long getSpeaks() {
+        return speaks.get();
+    }
+
+    public long getStreams() {
+        return streams.get();
+    }
+
+    /**
+     * Streams that sent their whole script.
+     */
+    public long getStreamsPlayed() {
+        return streamsPlayed.get();
+    }
+
+    public long getUploads() {
+        return uploads.get();
+    }
+
+    /**
+     * Bytes received in upload requests, multipart framing included.
+     */
+    public long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    public int getMaxConcurrentUploads() {
+        return maxConcurrentUploads.get();
+    }
+
+    public void stop() {
+        server.stop(0);
+        threads.shutdownNow();
+    }
+}
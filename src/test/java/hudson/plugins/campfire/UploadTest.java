@@ -0,0 +1,85 @@
+package hudson.plugins.campfire;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads a file to several rooms at once against a {@link StubCampfireServer}, with each transport,
+ * checking that every byte arrives and that no more uploads run at once than allowed per account.
+ */
+public class UploadTest extends TestCase {
+    private static final int ROOMS = 4;
+    private static final long SIZE = 32L * 1024 * 1024;
+
+    private StubCampfireServer server;
+    private NioTransport nio;
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubCampfireServer(ROOMS, ROOMS + 2);
+        // sparse, so that it takes no time or disk to create
+        file = File.createTempFile("campfire-upload", ".zip");
+        RandomAccessFile content = new RandomAccessFile(file, "rw");
+        try {
+            content.setLength(SIZE);
+        } finally {
+            content.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (nio != null) {
+            nio.shutdown();
+        }
+        server.stop();
+        file.delete();
+        Campfire.configure(null, new CommonsHttpTransport());
+    }
+
+    public void testUploadsWithCommonsTransport() throws Exception {
+        Campfire.configure(server.getUrl() + "/{subdomain}", new CommonsHttpTransport());
+        assertUploadedToEveryRoom(Campfire.forAccount("upload-commons", "token", false));
+    }
+
+    public void testUploadsWithNioTransport() throws Exception {
+        nio = new NioTransport(NioTransport.DEFAULT_MAX_IN_FLIGHT_PER_HOST);
+        Campfire.configure(server.getUrl() + "/{subdomain}", nio);
+        assertUploadedToEveryRoom(Campfire.forAccount("upload-nio", "token", false));
+    }
+
+    private void assertUploadedToEveryRoom(Campfire campfire) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(ROOMS);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 1; i <= ROOMS; i++) {
+                final Room room = new Room(campfire, "Room " + i, String.valueOf(i));
+                results.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        room.upload(file);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get(120, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(ROOMS * new MultipartFileEntity("upload", file).getContentLength(), server.getUploadedBytes());
+        int allowed = Integer.getInteger(Campfire.class.getName() + ".maxConcurrentUploads", 2);
+        assertTrue("at most " + server.getMaxConcurrentUploads() + " at once",
+            server.getMaxConcurrentUploads() <= allowed);
+    }
+}